@@ -0,0 +1,72 @@
+package org.csgeeks.TinyG.Support;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A jog and an axis settings update, each as the bytes that get queued.
+// The *Format benchmarks build them the way the code did before
+// CommandEncoder: String.format for the jog, and "%s"-formatted pairs
+// of Float.toString values joined by concatenation for the update.  The
+// settings come from an array here rather than a Bundle, which only
+// flatters the old code.  Run with -prof gc for bytes allocated per op.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandEncoderBenchmark {
+	private static final String PREFIX = "{\"gc\": \"", SUFFIX = "\"}\n";
+	private static final String NAMES[] = { "tm", "vm", "jm", "jd", "ra",
+			"fr", "am", "sv", "lv", "sn", "sx", "zb" };
+	private final float values[] = { 220, 16000, 5000, 0.05f, 0, 16000, 1,
+			3000, 1000, 1, 0, 1.5f };
+	private final CommandEncoder encoder = new CommandEncoder();
+	private double step = 0.1;
+
+	@Benchmark
+	public byte[] jogFormat() {
+		String cmd = String.format("g91 g0%s%f", "x", step);
+		return (PREFIX + cmd + SUFFIX).getBytes();
+	}
+
+	@Benchmark
+	public int jogEncoded() {
+		encoder.reset().append(PREFIX).jog('x', step).append(SUFFIX);
+		return encoder.length();
+	}
+
+	@Benchmark
+	public byte[] axisFormat() {
+		String cmds = null;
+
+		for (int i = 0; i < NAMES.length; i++) {
+			String scratch = String.format("\"%s\": %s", NAMES[i],
+					Float.toString(values[i]));
+			cmds = cmds == null ? scratch : cmds + ", " + scratch;
+		}
+		return (String.format("{\"%s\": {%s}}", "x", cmds) + "\n").getBytes();
+	}
+
+	@Benchmark
+	public int axisEncoded() {
+		encoder.reset().append("{\"x\": {");
+		for (int i = 0; i < NAMES.length; i++) {
+			if (i > 0)
+				encoder.append(", ");
+			encoder.append('"').append(NAMES[i]).append("\": ")
+					.appendFloat(values[i]);
+		}
+		encoder.append("}}\n");
+		return encoder.length();
+	}
+}
@@ -0,0 +1,79 @@
+package org.csgeeks.TinyG.Support;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Estimating a whole file of short moves, the kind a CAM program writes
+// for a 3D surface: mostly G1 segments of a fraction of a mm with changing
+// direction, an arc now and then and a Z step every so often.  Divide
+// lines by the time per op for the lines per second, parsing included.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JobEstimatorBenchmark {
+	@Param({ "200000" })
+	public int lines;
+
+	private File file;
+	private GcodeFile gcode;
+	private final JobEstimator estimator = new JobEstimator();
+
+	@Setup
+	public void setUp() throws IOException {
+		file = File.createTempFile("estimate", ".nc");
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		double x = 0, y = 0;
+
+		out.write("G21 G90 G17\nG0 Z5\nG0 X0 Y0\nG1 Z-1 F800\n".getBytes());
+		for (int i = 4; i < lines; i++) {
+			String l;
+			if (i % 500 == 0) {
+				l = "G1 Z" + (-1 - i / 500 % 5 * 0.2);
+			} else if (i % 97 == 0) {
+				l = "G2 X" + fmt(x + 1) + " Y" + fmt(y) + " I0.5 J0";
+				x += 1;
+			} else {
+				x += 0.3 * Math.cos(i * 0.01);
+				y += 0.3 * Math.sin(i * 0.013);
+				l = "G1 X" + fmt(x) + " Y" + fmt(y);
+			}
+			out.write((l + "\n").getBytes());
+		}
+		out.close();
+		gcode = GcodeFile.open(file, null);
+	}
+
+	private static String fmt(double v) {
+		return String.valueOf(Math.round(v * 1000) / 1000.0);
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public double estimate() {
+		return estimator.estimate(gcode);
+	}
+}
@@ -0,0 +1,93 @@
+package org.csgeeks.TinyG.Support;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Parsing the responses TinyG sends most: status reports, bare and inside
+// a response, and a settings response.  machine is the real path into the
+// machine state; orgJson reads the same fields the way Machine did before
+// the tokenizer.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonTokenizerBenchmark {
+	private static final String BODIES[] = {
+		"{\"sr\":{\"line\":1234,\"posx\":12.345,\"posy\":-3.500,\"posz\":0.000,\"posa\":0.000,\"vel\":1200.000,\"momo\":1,\"stat\":5}}",
+		"{\"sr\":{\"posx\":12.346,\"vel\":1199.500}}",
+		"{\"x\":{\"am\":1,\"vm\":16000,\"fr\":16000,\"tm\":220,\"jm\":5000000000,\"jd\":0.0500,\"sn\":1,\"sv\":3000,\"lv\":1000,\"zb\":1.000}}",
+	};
+	private String lines[];
+	private byte bytes[][];
+	private final Machine machine = new Machine();
+	private final JsonTokenizer json = new JsonTokenizer();
+
+	@Setup
+	public void setUp() {
+		lines = new String[BODIES.length * 2];
+		bytes = new byte[lines.length][];
+		for (int i = 0; i < BODIES.length; i++) {
+			// A bare report, and the same as the body of a response with
+			// its footer and checksum
+			String head = "{\"r\":" + BODIES[i] + ",\"f\":[1,0,10";
+			lines[2 * i] = BODIES[i].startsWith("{\"sr\"") ? BODIES[i] : "{\"r\":"
+					+ BODIES[i] + "}";
+			lines[2 * i + 1] = head + ","
+					+ (head.hashCode() & 0xffffffffL) % 9999 + "]}";
+		}
+		for (int i = 0; i < lines.length; i++)
+			bytes[i] = lines[i].getBytes();
+	}
+
+	@Benchmark
+	public void tokenize(Blackhole bh) {
+		for (byte b[] : bytes) {
+			int t;
+			json.reset(b, 0, b.length);
+			while ((t = json.next()) != JsonTokenizer.END
+					&& t != JsonTokenizer.ERROR)
+				if (t == JsonTokenizer.NUMBER)
+					bh.consume(json.doubleValue());
+		}
+	}
+
+	@Benchmark
+	public void machine(Blackhole bh) {
+		for (byte b[] : bytes)
+			bh.consume(machine.processJSON(b, 0, b.length).report);
+	}
+
+	@Benchmark
+	public void orgJson(Blackhole bh) {
+		for (String line : lines) {
+			JSONObject o = new JSONObject(line);
+			if (o.has("r"))
+				o = o.getJSONObject("r");
+			if (o.has("sr")) {
+				JSONObject sr = o.getJSONObject("sr");
+				if (sr.has("posx"))
+					bh.consume((float) sr.getDouble("posx"));
+				if (sr.has("vel"))
+					bh.consume((float) sr.getDouble("vel"));
+				if (sr.has("line"))
+					bh.consume(sr.getInt("line"));
+			} else {
+				bh.consume(o.getJSONObject("x").getDouble("vm"));
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package org.csgeeks.TinyG.Support;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Framing a stream of responses into lines, fed in the chunks each
+// transport reads: 62 bytes for a USB host FTDI packet less its status
+// bytes, 512 for an accessory read and 8192 for the network loop.
+// oldSplit is the way the transports did it before LineFramer: a char at a
+// time into a StringBuilder, then the checksum from a substring.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LineFramerBenchmark {
+	@Param({ "62", "512", "8192" })
+	public int chunk;
+
+	private byte stream[];
+	private Blackhole bh;
+	private final LineFramer framer = new LineFramer(new LineFramer.Sink() {
+		public void line(byte b[], int off, int len, int checksum) {
+			bh.consume(checksum);
+		}
+	});
+	private final StringBuilder old = new StringBuilder();
+
+	// A thousand lines of a job running: mostly status reports, with a
+	// response and a queue report now and then
+	@Setup
+	public void setUp() {
+		StringBuilder s = new StringBuilder();
+
+		for (int i = 0; i < 1000; i++) {
+			if (i % 4 == 3)
+				s.append("{\"r\":{\"gc\":\"N").append(i).append(" G1 X")
+						.append(i % 50).append(".125\"},\"f\":[1,0,28,")
+						.append(i * 37 % 9999).append("]}\n");
+			else if (i % 10 == 9)
+				s.append("{\"qr\":").append(i % 28).append("}\n");
+			else
+				s.append("{\"sr\":{\"line\":").append(i).append(",\"posx\":")
+						.append(i % 50).append(".125,\"posy\":-3.500,\"vel\":1199.870}}\r\n");
+		}
+		stream = s.toString().getBytes();
+	}
+
+	@Benchmark
+	public void framer(Blackhole bh) {
+		this.bh = bh;
+		for (int off = 0; off < stream.length; off += chunk)
+			framer.feed(stream, off, Math.min(chunk, stream.length - off));
+	}
+
+	@Benchmark
+	public void oldSplit(Blackhole bh) {
+		for (int off = 0; off < stream.length; off += chunk) {
+			int end = Math.min(off + chunk, stream.length);
+			for (int i = off; i < end; i++) {
+				char c = (char) stream[i];
+				if (c != '\n') {
+					old.append(c);
+					continue;
+				}
+				String line = old.toString();
+				old.setLength(0);
+				int comma = line.lastIndexOf(',');
+				bh.consume(comma < 0 ? -1 : (int) ((line.substring(0, comma)
+						.hashCode() & 0xffffffffL) % 9999));
+			}
+		}
+	}
+}
@@ -2,6 +2,9 @@ package org.csgeeks.TinyG;
 
 // Copyright 2012 Matthew Stock
 
+import java.io.IOException;
+import java.util.List;
+
 import org.csgeeks.TinyG.Net.TinyGNetwork;
 import org.csgeeks.TinyG.Support.*;
 import org.csgeeks.TinyG.Support.TinyGService.TinyGBinder;
@@ -47,16 +50,16 @@ public class BaseActivity extends SherlockFragmentActivity implements
 	private ServiceConnection currentServiceConnection;
 	private PrefsListener mPreferencesListener;
 	private BroadcastReceiver mIntentReceiver;
+	private StateBus.Subscription stateSub;
 
 	@Override
 	public void onResume() {
 		IntentFilter updateFilter = new IntentFilter();
-		updateFilter.addAction(TinyGService.STATUS);
 		updateFilter.addAction(TinyGService.CONNECTION_STATUS);
-		updateFilter.addAction(TinyGService.JSON_ERROR);
-		updateFilter.addAction(TinyGService.AXIS_UPDATE);
 		mIntentReceiver = new TinyGServiceReceiver();
 		registerReceiver(mIntentReceiver, updateFilter);
+		stateSub = TinyGService.getStateBus().subscribe(new StateListener(),
+				StateBus.AXIS);
 
 		super.onResume();
 	}
@@ -64,6 +67,8 @@ public class BaseActivity extends SherlockFragmentActivity implements
 	@Override
 	public void onPause() {
 		unregisterReceiver(mIntentReceiver);
+		TinyGService.getStateBus().unsubscribe(stateSub);
+		stateSub = null;
 		super.onPause();
 	}
 
@@ -141,36 +146,26 @@ public class BaseActivity extends SherlockFragmentActivity implements
 		super.onDestroy();
 	}
 
-	// This is how we get messages from the TinyG service. Two different message
-	// types - a STATUS giving us
-	// updates from an SR statement, and a CONNECTION_STATUS signal so that we
-	// know if the service is connected
-	// to the USB or network port.
+	// Status reports reach the status and file fragments on the state bus,
+	// which they subscribe to themselves.  Axis settings go to the jog tab
+	// from here, as it needs the service's machine.
+	private class StateListener implements StateBus.Listener {
+		public void onState(StateBus.Snapshot s, int changed) {
+			Fragment f = getSupportFragmentManager().findFragmentById(
+					R.id.tabview);
+			if (f != null && f.getClass() == JogFragment.class && tinyg != null)
+				((JogFragment) f).updateState(tinyg.getMachine());
+		}
+	}
+
+	// This is how we hear from the TinyG service whether it is connected to
+	// the USB or network port.
 	public class TinyGServiceReceiver extends BroadcastReceiver {
 		@SuppressLint("NewApi")
 		@Override
 		public void onReceive(Context context, Intent intent) {
 			Bundle b = intent.getExtras();
 			String action = intent.getAction();
-			if (action.equals(TinyGService.JSON_ERROR)) {
-//				Toast.makeText(BaseActivity.this, b.getString("error"), Toast.LENGTH_SHORT)
-//				.show();
-			}
-			if (action.equals(TinyGService.STATUS)) {
-				StatusFragment sf = (StatusFragment) getSupportFragmentManager()
-						.findFragmentById(R.id.statusF);
-				sf.updateState(b);
-				Fragment f = getSupportFragmentManager().findFragmentById(
-						R.id.tabview);
-				if (f != null && f.getClass() == FileFragment.class && tinyg != null)
-					((FileFragment) f).nextLine(b.getInt("line"));		
-			}
-			if (action.equals(TinyGService.AXIS_UPDATE)) {
-				Fragment f = getSupportFragmentManager().findFragmentById(
-						R.id.tabview);
-				if (f != null && f.getClass() == JogFragment.class && tinyg != null)
-					((JogFragment) f).updateState(tinyg.getMachine());		
-			}
 			if (action.equals(TinyGService.CONNECTION_STATUS)) {
 				connected = b.getBoolean("connection");
 				if (connected == false)
@@ -449,10 +444,78 @@ public class BaseActivity extends SherlockFragmentActivity implements
 		}
 	}
 
+	// Called from the UI thread, so never block on a full queue
 	public void sendGcode(String cmd) {
 		if (tinyg == null || !connected)
 			return;
-		tinyg.send_gcode(cmd);
+		if (!tinyg.offer_gcode(cmd))
+			Toast.makeText(this, R.string.queue_full, Toast.LENGTH_SHORT)
+					.show();
+	}
+
+	public void sendJog(int axis, float step) {
+		if (tinyg == null || !connected)
+			return;
+		if (!tinyg.offer_jog(axis, step))
+			Toast.makeText(this, R.string.queue_full, Toast.LENGTH_SHORT)
+					.show();
+	}
+
+	public void sendJog(int axis, float step, float feed) {
+		if (tinyg == null || !connected)
+			return;
+		if (!tinyg.offer_jog(axis, step, feed))
+			Toast.makeText(this, R.string.queue_full, Toast.LENGTH_SHORT)
+					.show();
+	}
+
+	public boolean streamFile(String path) {
+		if (tinyg == null || !connected)
+			return false;
+		try {
+			tinyg.stream_file(path);
+		} catch (IOException e) {
+			Log.e(TAG, "error opening file: " + e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	public boolean resumeFile(String path, int line, long offset,
+			List<String> preamble) {
+		if (tinyg == null || !connected)
+			return false;
+		try {
+			tinyg.stream_file(path, line, offset, preamble);
+		} catch (IOException e) {
+			Log.e(TAG, "error opening file: " + e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	public boolean isStreaming() {
+		if (tinyg == null || !connected)
+			return false;
+		return tinyg.isStreaming();
+	}
+
+	public float getTravel(int axis) {
+		if (tinyg == null || !connected)
+			return 0;
+		return tinyg.getAxis(axis).getFloat("tm", 0);
+	}
+
+	public Bundle getAxisConfig(int axis) {
+		if (tinyg == null || !connected)
+			return null;
+		return tinyg.getAxis(axis);
+	}
+
+	public Bundle getSystemConfig() {
+		if (tinyg == null || !connected)
+			return null;
+		return tinyg.getMachineStatus();
 	}
 
 	public void stopMove() {
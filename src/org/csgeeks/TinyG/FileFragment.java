@@ -1,10 +1,15 @@
 package org.csgeeks.TinyG;
 
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.List;
 
 import org.csgeeks.TinyG.JogFragment.JogFragmentListener;
+import org.csgeeks.TinyG.Support.GcodeFile;
+import org.csgeeks.TinyG.Support.JobEstimator;
+import org.csgeeks.TinyG.Support.PreflightAnalyzer;
+import org.csgeeks.TinyG.Support.ResumeIndex;
+import org.csgeeks.TinyG.Support.StateBus;
 import org.csgeeks.TinyG.Support.TinyGService;
 
 import com.actionbarsherlock.app.SherlockFragment;
@@ -12,25 +17,27 @@ import com.lamerman.FileDialog;
 import com.lamerman.SelectionMode;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.ActivityNotFoundException;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.res.ColorStateList;
 import android.graphics.Color;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.preference.PreferenceManager;
-import android.text.Spannable;
-import android.text.SpannableStringBuilder;
-import android.text.style.ForegroundColorSpan;
+import android.text.InputType;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.ScrollView;
+import android.widget.ListView;
 import android.widget.TextView;
-import android.widget.TextView.BufferType;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
@@ -41,12 +48,15 @@ public class FileFragment extends SherlockFragment {
 	private String filename;
 	private EditText fileView;
 	private SharedPreferences settings;
-	private long numLines;
 	private volatile int currentLinenum;
-	private TextView fileContent;
-	private ScrollView fileScroll;
-	private RandomAccessFile gcodeFile;
-	private ForegroundColorSpan activeSpan;
+	private ListView fileContent;
+	private final LineAdapter lines = new LineAdapter();
+	private GcodeFile gcodeFile;
+	private TextView etaView;
+	private JobEstimator estimate;
+	private EstimateTask estimating;
+	private ResumeIndex resumeIndex;
+	private StateBus.Subscription lineSub;
 
 	@Override
 	public void onAttach(Activity activity) {
@@ -74,9 +84,9 @@ public class FileFragment extends SherlockFragment {
 		fileView.setText(filename);
 		startButton = (ToggleButton) v.findViewById(R.id.start);
 		pauseButton = (ToggleButton) v.findViewById(R.id.pause);
-		fileContent = (TextView) v.findViewById(R.id.fileContent);
-		fileScroll = (ScrollView) v.findViewById(R.id.fileScroll);
-		activeSpan = new ForegroundColorSpan(Color.RED);
+		fileContent = (ListView) v.findViewById(R.id.fileContent);
+		fileContent.setAdapter(lines);
+		etaView = (TextView) v.findViewById(R.id.eta);
 		
 		return v;
 	}
@@ -85,11 +95,18 @@ public class FileFragment extends SherlockFragment {
 	public void onResume() {
 		super.onResume();
 		openFile();			
+		lineSub = TinyGService.getStateBus().subscribe(new StateBus.Listener() {
+			public void onState(StateBus.Snapshot s, int changed) {
+				nextLine(s.line);
+			}
+		}, StateBus.LINE);
 	}
 	
 	@Override
 	public void onPause() {
 		super.onPause();
+		TinyGService.getStateBus().unsubscribe(lineSub);
+		lineSub = null;
 		SharedPreferences.Editor editor = settings.edit();
 		editor.putString("filename", filename);
 		editor.commit();
@@ -103,13 +120,6 @@ public class FileFragment extends SherlockFragment {
 			if (newname != null) {
 				filename = newname;
 				fileView.setText(newname);
-				try {
-					if (gcodeFile != null)
-						gcodeFile.close();
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
 				openFile();
 			}
 		}
@@ -131,6 +141,196 @@ public class FileFragment extends SherlockFragment {
 				parent.pauseMove();
 			else
 				parent.resumeMove();
+			break;
+		case R.id.preflight:
+			if (gcodeFile == null) {
+				Toast.makeText((Activity)parent, "Invalid file", Toast.LENGTH_SHORT).show();
+				return;
+			}
+			double travel[] = new double[3];
+			for (int i = 0; i < 3; i++)
+				travel[i] = parent.getTravel(i);
+			new PreflightTask(travel).execute(gcodeFile);
+			break;
+		case R.id.resume_from:
+			if (gcodeFile == null) {
+				Toast.makeText((Activity)parent, "Invalid file", Toast.LENGTH_SHORT).show();
+				return;
+			}
+			askResumeLine();
+		}
+	}
+
+	// Defaults to the last line TinyG reported, where the job stopped
+	private void askResumeLine() {
+		final EditText input = new EditText(getActivity());
+
+		input.setInputType(InputType.TYPE_CLASS_NUMBER);
+		input.setText(Integer.toString(Math.max(1, currentLinenum)));
+		new AlertDialog.Builder(getActivity())
+				.setTitle(R.string.resume_from)
+				.setView(input)
+				.setPositiveButton(android.R.string.ok,
+						new DialogInterface.OnClickListener() {
+							public void onClick(DialogInterface dialog, int which) {
+								int line;
+								try {
+									line = Integer.parseInt(input.getText()
+											.toString().trim());
+								} catch (NumberFormatException e) {
+									return;
+								}
+								if (line < 1 || line > gcodeFile.lineCount())
+									return;
+								new ResumeTask(gcodeFile, line).execute();
+							}
+						}).setNegativeButton(android.R.string.cancel, null)
+				.show();
+	}
+
+	// Builds the checkpoints the first time, then works out what to send
+	// before the line and asks before sending it
+	private class ResumeTask extends AsyncTask<Void, Void, List<String>> {
+		private final GcodeFile file;
+		private final int line;
+		private ResumeIndex index;
+
+		ResumeTask(GcodeFile file, int line) {
+			this.file = file;
+			this.line = line;
+			index = resumeIndex;
+		}
+
+		@Override
+		protected List<String> doInBackground(Void... v) {
+			if (index == null || index.getFile() != file)
+				index = ResumeIndex.build(file);
+			return index.preamble(line);
+		}
+
+		@Override
+		protected void onPostExecute(final List<String> preamble) {
+			if (getActivity() == null || file != gcodeFile)
+				return;
+			resumeIndex = index;
+			StringBuilder msg = new StringBuilder(getString(R.string.resume_preamble));
+			for (String cmd : preamble)
+				msg.append('\n').append(cmd);
+			new AlertDialog.Builder(getActivity())
+					.setTitle(getString(R.string.resume_from) + " " + line)
+					.setMessage(msg)
+					.setPositiveButton(android.R.string.ok,
+							new DialogInterface.OnClickListener() {
+								public void onClick(DialogInterface dialog,
+										int which) {
+									resumeFile(line, preamble);
+								}
+							}).setNegativeButton(android.R.string.cancel, null)
+					.show();
+		}
+	}
+
+	private void resumeFile(int line, List<String> preamble) {
+		if (!parent.resumeFile(filename, line, gcodeFile.lineStart(line - 1),
+				preamble)) {
+			Toast.makeText((Activity)parent, "Gcode file read error", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		startButton.setChecked(true);
+		startEstimate();
+	}
+
+	// Times the file against the axis settings TinyG last reported, or
+	// TinyG's defaults if we aren't connected
+	private void startEstimate() {
+		JobEstimator e = new JobEstimator();
+
+		if (estimating != null)
+			estimating.cancel(false);
+		estimating = null;
+		estimate = null;
+		etaView.setText(R.string.na);
+		if (gcodeFile == null)
+			return;
+		for (int i = 0; i < 3; i++)
+			e.setAxis(i, parent.getAxisConfig(i));
+		e.setSystem(parent.getSystemConfig());
+		estimating = new EstimateTask(e, gcodeFile);
+		estimating.execute();
+	}
+
+	private class EstimateTask extends AsyncTask<Void, Void, Boolean> {
+		private final JobEstimator estimator;
+		private final GcodeFile file;
+
+		EstimateTask(JobEstimator estimator, GcodeFile file) {
+			this.estimator = estimator;
+			this.file = file;
+		}
+
+		@Override
+		protected Boolean doInBackground(Void... v) {
+			try {
+				estimator.estimate(file);
+				return true;
+			} catch (Exception e) {
+				Log.e(TAG, "estimate failed: " + e.getMessage());
+				return false;
+			}
+		}
+
+		@Override
+		protected void onPostExecute(Boolean ok) {
+			if (estimating != this || !ok || getActivity() == null)
+				return;
+			estimating = null;
+			estimate = estimator;
+			if (currentLinenum > 0)
+				showRemaining();
+			else
+				etaView.setText(getString(R.string.eta_total,
+						formatTime(estimate.totalSeconds())));
+		}
+	}
+
+	private void showRemaining() {
+		etaView.setText(getString(R.string.eta_remaining,
+				formatTime(estimate.remainingSeconds(currentLinenum))));
+	}
+
+	private static String formatTime(double seconds) {
+		long s = Math.round(seconds);
+		return String.format("%d:%02d:%02d", s / 3600, s / 60 % 60, s % 60);
+	}
+
+	// Runs the file check off the UI thread and shows what it found
+	private class PreflightTask extends
+			AsyncTask<GcodeFile, Void, PreflightAnalyzer.Report> {
+		private final double travel[];
+
+		PreflightTask(double travel[]) {
+			this.travel = travel;
+		}
+
+		@Override
+		protected PreflightAnalyzer.Report doInBackground(GcodeFile... files) {
+			try {
+				return new PreflightAnalyzer(files[0], travel).run();
+			} catch (Exception e) {
+				Log.e(TAG, "preflight failed: " + e.getMessage());
+				return null;
+			}
+		}
+
+		@Override
+		protected void onPostExecute(PreflightAnalyzer.Report report) {
+			Activity a = getActivity();
+			if (a == null)
+				return;
+			new AlertDialog.Builder(a)
+					.setTitle(R.string.preflight)
+					.setMessage(report == null ? "Couldn't check the file"
+							: report.toString()).show();
 		}
 	}
 
@@ -150,56 +350,47 @@ public class FileFragment extends SherlockFragment {
 		}
 	}
 	
+	// Only the rows on screen exist, so moving the highlight touches at
+	// most two of them no matter how long the file is.
 	public void nextLine(int statusLine) {
-		int start;
-		int end;
-		Spannable span;
-		
-		if (statusLine == currentLinenum)
+		int old = currentLinenum;
+
+		if (statusLine == old || gcodeFile == null)
 			return;
-		
-		span = (Spannable)fileContent.getText();
-		span.removeSpan(activeSpan);
-		start = fileContent.getLayout().getLineStart(statusLine-1);
-		end = fileContent.getLayout().getLineEnd(statusLine-1);
-		span.setSpan(activeSpan, start, end, Spannable.SPAN_PARAGRAPH);
 		currentLinenum = statusLine;
-		
+		lines.highlight(old - 1);
+		lines.highlight(statusLine - 1);
+		if (estimate != null)
+			showRemaining();
+
 		if (currentLinenum > 10) {
-			if (parent.queueSize() == 0)
+			if (parent.queueSize() == 0 && !parent.isStreaming())
 				startButton.setChecked(false);
-			fileScroll.post(new Runnable() {
-				public void run() {
-					int y = fileContent.getLayout().getLineTop(currentLinenum-10);
-					fileScroll.scrollTo(0, y);
-				}
-			});
+			if (fileContent.getFirstVisiblePosition() != currentLinenum - 10)
+				fileContent.setSelection(currentLinenum - 10);
 		}
 	}
 	
+	// The line index is cached, and nothing is redone on resume unless the
+	// file changed.
 	private void openFile() {
-		String line, buf;
-		
-		// Count lines
-		try {
-			gcodeFile = new RandomAccessFile(filename, "r");
-			numLines = 0;
-			buf = "";
-			while ((line = gcodeFile.readLine()) != null) {
-				numLines++;
-				buf += line + "\n";
-			}
-			currentLinenum = 0;
-			SpannableStringBuilder stringBuilder = new SpannableStringBuilder(buf);
-			fileContent.setText(stringBuilder, BufferType.SPANNABLE);
-		} catch (FileNotFoundException e) {
-			return;
-		} catch (IOException e) {
-			Toast.makeText((Activity)parent, "Gcode file read error", Toast.LENGTH_SHORT)
-					.show();
+		File f = new File(filename);
+
+		if (gcodeFile != null && gcodeFile.isCurrent(f))
 			return;
+		gcodeFile = null;
+		currentLinenum = 0;
+		if (f.isFile()) {
+			try {
+				gcodeFile = GcodeFile.open(f, getActivity().getCacheDir());
+				Log.d(TAG, "lines = " + gcodeFile.lineCount());
+			} catch (IOException e) {
+				Toast.makeText((Activity)parent, "Gcode file read error", Toast.LENGTH_SHORT)
+						.show();
+			}
 		}
-		Log.d(TAG, "lines = " + numLines);
+		lines.notifyDataSetChanged();
+		startEstimate();
 	}
 
 	public boolean isActive() {
@@ -207,9 +398,6 @@ public class FileFragment extends SherlockFragment {
 	}
 
 	private void queueFile() {
-		String line;
-		int idx = 0;
-
 		if (gcodeFile == null) {
 			Toast.makeText((Activity)parent, "Invalid file", Toast.LENGTH_SHORT).show();
 			startButton.setChecked(false);
@@ -217,20 +405,63 @@ public class FileFragment extends SherlockFragment {
 		}
 		
 		currentLinenum = 0;
-		try {
-			gcodeFile.seek(0);
-			while ((line = gcodeFile.readLine()) != null) {
-				idx++;
-				String newstring = line.replaceFirst("^(/?)[nN](\\d{1,5})",
-						"$1N" + idx);
-				if (newstring.equals(line)) // No line number to start with,
-											// so add one
-					newstring = "N" + idx + " " + line;
-				parent.sendGcode(newstring);
+		// The service reads the file itself, as TinyG has room for it
+		if (!parent.streamFile(filename)) {
+			Toast.makeText((Activity)parent, "Gcode file read error", Toast.LENGTH_SHORT).show();
+			startButton.setChecked(false);
+			return;
+		}
+		// Redone now TinyG's settings are known
+		startEstimate();
+	}
+
+	// Rows for the lines of the file, built only as the ListView asks for
+	// them
+	private class LineAdapter extends BaseAdapter {
+		private ColorStateList normalColors;
+
+		public int getCount() {
+			return gcodeFile == null ? 0 : gcodeFile.lineCount();
+		}
+
+		public Object getItem(int position) {
+			return gcodeFile.getLine(position);
+		}
+
+		public long getItemId(int position) {
+			return position;
+		}
+
+		public View getView(int position, View convertView, ViewGroup parent) {
+			TextView v = (TextView) convertView;
+
+			if (v == null) {
+				v = (TextView) getActivity().getLayoutInflater().inflate(
+						R.layout.gcodeline, parent, false);
+				if (normalColors == null)
+					normalColors = v.getTextColors();
 			}
-		} catch (IOException e) {
-			Log.e(TAG, "error reading file: " + e.getMessage());
+			v.setText(gcodeFile.getLine(position));
+			paint(v, position);
+			return v;
+		}
+
+		// Recolors the row for a line if it's on screen
+		void highlight(int position) {
+			int first = fileContent.getFirstVisiblePosition();
+
+			if (position < first || position > fileContent.getLastVisiblePosition())
+				return;
+			View v = fileContent.getChildAt(position - first);
+			if (v != null)
+				paint((TextView) v, position);
+		}
+
+		private void paint(TextView v, int position) {
+			if (position == currentLinenum - 1)
+				v.setTextColor(Color.RED);
+			else if (normalColors != null)
+				v.setTextColor(normalColors);
 		}
-		
 	}
 }
@@ -2,11 +2,13 @@ package org.csgeeks.TinyG;
 
 // Copyright 2012 Matthew Stock
 
+import java.util.List;
+
 import org.csgeeks.TinyG.Support.Machine;
+import org.csgeeks.TinyG.Support.MachineState;
 
 import com.actionbarsherlock.app.SherlockFragment;
 
-import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.os.Bundle;
 import android.util.Log;
@@ -23,8 +25,6 @@ public class JogFragment extends SherlockFragment {
 	private static final String TAG = "TinyG";
 	private static float jogSlowRate[] = { 400f, 300f, 100f, 10f, 10f, 10f };
 	private static final String CMD_ZERO_AXIS = "g28.3%s0";
-	private static final String CMD_JOG_SLOW = "g91 f%f g1%s%f";
-	private static final String CMD_JOG_FULL = "g91 g0%s%f";
 	private static final String CMD_MOVE_ORIGIN = "g90g0x0y0z0a0";
 	private static int[] allButtons = { R.id.xpos, R.id.xneg, R.id.ypos,
 			R.id.yneg, R.id.zpos, R.id.zneg, R.id.jogRate, R.id.home,
@@ -79,6 +79,30 @@ public class JogFragment extends SherlockFragment {
 	public interface JogFragmentListener {
 		void sendGcode(String cmd);
 
+		// Jogs an axis by step mm, at the rapid rate or at feed mm/min
+		void sendJog(int axis, float step);
+
+		void sendJog(int axis, float step, float feed);
+
+		// Sends a whole file, paced by TinyG
+		boolean streamFile(String path);
+
+		// Sends the preamble, then the file from line (1 based), which starts
+		// offset bytes in
+		boolean resumeFile(String path, int line, long offset,
+				List<String> preamble);
+
+		boolean isStreaming();
+
+		// Travel of an axis in mm, 0 if we haven't heard it from TinyG
+		float getTravel(int axis);
+
+		// Settings of an axis and the system as TinyG reported them, null
+		// if we're not connected
+		Bundle getAxisConfig(int axis);
+
+		Bundle getSystemConfig();
+
 		void sendReset();
 
 		void stopMove();
@@ -92,12 +116,11 @@ public class JogFragment extends SherlockFragment {
 		void goHome();
 	}
 
-	@SuppressLint("DefaultLocale")
-	private String getRateByAxis(int axis, float step) {
+	private void jog(int axis, float step) {
 		if (jogRateButton.isChecked())
-			return String.format(CMD_JOG_FULL, Machine.axisIndexToName[axis], step);
+			parent.sendJog(axis, step);
 		else
-			return String.format(CMD_JOG_SLOW, jogSlowRate[axis], Machine.axisIndexToName[axis], step);
+			parent.sendJog(axis, step, jogSlowRate[axis]);
 	}
 	
 	private View.OnClickListener clickListener = new View.OnClickListener() {
@@ -121,22 +144,22 @@ public class JogFragment extends SherlockFragment {
 				jogStep = 10.0f;
 				break;				
 			case R.id.xpos:
-				parent.sendGcode(getRateByAxis(0, jogStep));
+				jog(0, jogStep);
 				break;
 			case R.id.xneg:
-				parent.sendGcode(getRateByAxis(0, -jogStep));
+				jog(0, -jogStep);
 				break;
 			case R.id.ypos:
-				parent.sendGcode(getRateByAxis(1, jogStep));
+				jog(1, jogStep);
 				break;
 			case R.id.yneg:
-				parent.sendGcode(getRateByAxis(1, -jogStep));
+				jog(1, -jogStep);
 				break;
 			case R.id.zpos:
-				parent.sendGcode(getRateByAxis(2, jogStep));
+				jog(2, jogStep);
 				break;
 			case R.id.zneg:
-				parent.sendGcode(getRateByAxis(2, -jogStep));
+				jog(2, -jogStep);
 				break;
 			case R.id.zzero:
 				parent.sendGcode(String.format(CMD_ZERO_AXIS, "z"));
@@ -180,27 +203,27 @@ public class JogFragment extends SherlockFragment {
 		public boolean onLongClick(View v) {
 			switch (v.getId()) {
 			case R.id.xpos:
-				parent.sendGcode(getRateByAxis(0, 100f));
+				jog(0, 100f);
 				jogActive = true;
 				return true;
 			case R.id.xneg:
-				parent.sendGcode(getRateByAxis(0, -100f));
+				jog(0, -100f);
 				jogActive = true;
 				return true;
 			case R.id.ypos:
-				parent.sendGcode(getRateByAxis(1, 100f));
+				jog(1, 100f);
 				jogActive = true;
 				return true;
 			case R.id.yneg:
-				parent.sendGcode(getRateByAxis(1, -100f));
+				jog(1, -100f);
 				jogActive = true;
 				return true;
 			case R.id.zpos:
-				parent.sendGcode(getRateByAxis(2, 100f));
+				jog(2, 100f);
 				jogActive = true;
 				return true;
 			case R.id.zneg:
-				parent.sendGcode(getRateByAxis(2, -100f));
+				jog(2, -100f);
 				jogActive = true;
 				return true;
 			}
@@ -233,8 +256,12 @@ public class JogFragment extends SherlockFragment {
 	// Used to use this for enable/disable of buttons, but maybe it's ok to
 	// queue things up.
 	public void updateState(Machine m) {
-		for (int i=0; i < 6; i++)
-			jogSlowRate[i] = (m.getAxisBundle(i).getFloat("vm"))/2f;
+		// The service's reader thread changes the axes holding this lock
+		synchronized (m) {
+			for (int i=0; i < 6; i++)
+				jogSlowRate[i] = m.getState().axis[i].getFloat(
+						MachineState.Axis.VM) / 2f;
+		}
 
 	}
 }
@@ -0,0 +1,203 @@
+package org.csgeeks.TinyG.Net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.Set;
+
+import org.csgeeks.TinyG.Support.LineFramer;
+
+// One thread owning a non-blocking connection to tgFX.  It connects,
+// reads and frames the responses into lines for the sink, and writes out
+// whatever the other threads have handed to write().  Writers only copy into the
+// outgoing buffer and wake the loop, so nothing but this thread ever
+// touches the channel.
+//
+// The listener and sink are called on the loop thread.
+class NetworkLoop extends Thread {
+	private static final String TAG = "TinyG-Network";
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	interface Listener {
+		void connected();
+
+		void connectFailed(String why);
+
+		// The connection went away, other than through shutdown()
+		void closed(String why);
+	}
+
+	private final String host;
+	private final int port;
+	private final int timeout;
+	private final Listener listener;
+	private final Selector selector;
+	private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	// Guarded by itself.  Filling between the loop's writes.
+	private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final byte chunk[] = new byte[BUFFER_SIZE];
+	private final LineFramer framer;
+	private volatile boolean closing;
+
+	// timeout is in ms, 0 to wait as long as the system does
+	NetworkLoop(String host, int port, int timeout, Listener listener,
+			LineFramer.Sink sink) throws IOException {
+		super(TAG);
+		this.host = host;
+		this.port = port;
+		this.timeout = timeout;
+		this.listener = listener;
+		framer = new LineFramer(sink);
+		selector = Selector.open();
+	}
+
+	// Stops the loop and closes the connection, connected or not.  The
+	// listener hears nothing more that it has to act on.
+	void shutdown() {
+		closing = true;
+		selector.wakeup();
+		synchronized (out) {
+			out.notifyAll();
+		}
+	}
+
+	// Blocks only while the outgoing buffer is full
+	void write(byte b[], int off, int len) throws IOException {
+		synchronized (out) {
+			while (len > 0) {
+				if (closing)
+					throw new IOException("connection closed");
+				int n = Math.min(len, out.remaining());
+				if (n == 0) {
+					selector.wakeup();
+					try {
+						out.wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+					continue;
+				}
+				out.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+		selector.wakeup();
+	}
+
+	public void run() {
+		SocketChannel channel = null;
+		boolean connected = false;
+
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			SelectionKey key = channel.register(selector, 0);
+			connected = connect(channel, key);
+			if (!connected)
+				return;
+			listener.connected();
+			while (!closing) {
+				selector.select();
+				Set<SelectionKey> ready = selector.selectedKeys();
+				boolean ours = ready.contains(key);
+				ready.clear();
+				if (closing)
+					break;
+				if (ours && key.isReadable() && !read(channel)) {
+					if (!closing)
+						listener.closed("closed by tgFX");
+					break;
+				}
+				key.interestOps(flush(channel) ? SelectionKey.OP_READ
+						| SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+			}
+		} catch (IOException e) {
+			failed(connected, e.getMessage());
+		} catch (UnresolvedAddressException e) {
+			failed(connected, "unknown host " + host);
+		} catch (RuntimeException e) {
+			// Anything else the socket throws mustn't take the app down
+			failed(connected, e.toString());
+		} finally {
+			closing = true;
+			synchronized (out) {
+				out.notifyAll();
+			}
+			try {
+				if (channel != null)
+					channel.close();
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void failed(boolean connected, String why) {
+		if (closing)
+			return;
+		if (connected)
+			listener.closed(why);
+		else
+			listener.connectFailed(why);
+	}
+
+	// False if we were shut down first
+	private boolean connect(SocketChannel channel, SelectionKey key)
+			throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		InetSocketAddress address = new InetSocketAddress(host, port);
+
+		if (address.isUnresolved())
+			throw new IOException("unknown host " + host);
+		if (channel.connect(address))
+			return !closing;
+		key.interestOps(SelectionKey.OP_CONNECT);
+		while (!closing) {
+			long left = deadline - System.currentTimeMillis();
+			if (timeout > 0 && left <= 0)
+				throw new SocketTimeoutException("connect timed out");
+			selector.select(timeout > 0 ? left : 0);
+			selector.selectedKeys().clear();
+			if (channel.finishConnect())
+				return !closing;
+		}
+		return false;
+	}
+
+	// Hands every complete line to the sink.  False only at end of stream.
+	private boolean read(SocketChannel channel) throws IOException {
+		int n;
+
+		while (!closing && (n = channel.read(in)) != 0) {
+			if (n < 0)
+				return false;
+			in.flip();
+			in.get(chunk, 0, n);
+			in.clear();
+			framer.feed(chunk, 0, n);
+		}
+		return true;
+	}
+
+
+	// Writes what it can of the outgoing buffer.  True if some is left.
+	private boolean flush(SocketChannel channel) throws IOException {
+		synchronized (out) {
+			if (out.position() == 0)
+				return false;
+			out.flip();
+			channel.write(out);
+			out.compact();
+			out.notifyAll();
+			return out.position() > 0;
+		}
+	}
+}
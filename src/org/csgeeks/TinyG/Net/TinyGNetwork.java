@@ -3,54 +3,36 @@ package org.csgeeks.TinyG.Net;
 // Copyright 2012 Matthew Stock
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
 
 import org.csgeeks.TinyG.Support.TinyGService;
 
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
+// The connection itself lives on a NetworkLoop thread.  Responses go from
+// it straight to the service's response processor; connecting and
+// failing are posted to the main thread.
 public class TinyGNetwork extends TinyGService {
-	private static final int NETWORK_BUFFER_SIZE = 16 * 1024;
 	private String TAG = "TinyG-Network";
 	private String tgfx_hostname;
 	private int tgfx_port;
-	private Socket socket;
-	protected InputStream is;
-	protected OutputStream os;
-	protected ListenerTask mListener;
+	// ms, 0 for the system's own
+	private int connect_timeout;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private volatile NetworkLoop loop;
 
 	public void disconnect() {
 		super.disconnect();
-		try {
-			if (is != null)
-				is.close();
-			if (os != null)
-				os.close();
-		} catch (IOException e) {
-			Log.e(TAG, "Close: " + e.getMessage());
-		}
-		is = null;
-		os = null;
-
-		if (mListener != null) {
-			mListener.cancel(true);
-		}
-		if (socket != null) {
-			try {
-				socket.close();
-			} catch (IOException e) {
-			}
-		}
-		socket = null;
+		if (loop != null)
+			loop.shutdown();
+		loop = null;
 	}
 
 	public void write(String message) {
@@ -58,12 +40,20 @@ public class TinyGNetwork extends TinyGService {
 	}
 
 	public void write(byte b[]) {
+		write(b, 0, b.length);
+	}
+
+	public void write(byte b[], int off, int len) {
+		NetworkLoop l = loop;
+
+		if (l == null) {
+			Log.e(TAG, "write to network attempted without socket established.");
+			return;
+		}
 		try {
-			os.write(b);
+			l.write(b, off, len);
 		} catch (IOException e) {
 			Log.e(TAG, "network write exception: " + e.getMessage());
-		} catch (NullPointerException e) {
-			Log.e(TAG, "write to network attempted without socket established.");
 		}
 	}
 	
@@ -73,45 +63,20 @@ public class TinyGNetwork extends TinyGService {
 		super.connect();
 		initialize();
 
-		new ConnectTask().execute(0);
-		Toast.makeText(this, "Connecting...", Toast.LENGTH_SHORT).show();
-	}
-
-	// This AsyncTask runs the client-specific connection code.
-	private class ConnectTask extends AsyncTask<Integer, Integer, Boolean> {
-		@Override
-		protected Boolean doInBackground(Integer... params) {
-			Log.d(TAG, "Starting connect in background");
-
-			try {
-				socket = new Socket(tgfx_hostname, tgfx_port);
-				os = socket.getOutputStream();
-				is = socket.getInputStream();
-			} catch (Exception e) {
-				socket = null;
-				Log.e(TAG, "Socket: " + e.getMessage());
-				return false;
-			}
-			return true;
-		}
-
-		protected void onPostExecute(Boolean res) {
-			if (res) {
-				mListener = new ListenerTask();
-				mListener.execute(new InputStream[] { is });
-				// Let everyone know we are connected
-				Bundle b = new Bundle();
-				b.putBoolean("connection", true);
-				Intent i = new Intent(CONNECTION_STATUS);
-				i.putExtras(b);
-				sendBroadcast(i, null);
-				refresh();
-				Log.i(TAG, "Listener started, connection_status intent sent");
-			} else {
-				Toast.makeText(TinyGNetwork.this, "Connection failed",
-						Toast.LENGTH_SHORT).show();
-			}
+		if (loop != null)
+			loop.shutdown();
+		LoopListener l = new LoopListener();
+		try {
+			loop = l.owner = new NetworkLoop(tgfx_hostname, tgfx_port,
+					connect_timeout, l, this);
+		} catch (IOException e) {
+			Log.e(TAG, "Socket: " + e.getMessage());
+			Toast.makeText(this, "Connection failed", Toast.LENGTH_SHORT)
+					.show();
+			return;
 		}
+		loop.start();
+		Toast.makeText(this, "Connecting...", Toast.LENGTH_SHORT).show();
 	}
 
 	protected void initialize() {
@@ -120,47 +85,46 @@ public class TinyGNetwork extends TinyGService {
 				.getDefaultSharedPreferences(mContext);
 		tgfx_hostname = settings.getString("tgfx_hostname", "127.0.0.1");
 		tgfx_port = Integer.parseInt(settings.getString("tgfx_port", "4444"));
+		connect_timeout = 1000 * Integer.parseInt(settings.getString(
+				"connect_timeout", "10"));
 	}
 
-	protected class ListenerTask extends AsyncTask<InputStream, String, Void> {
-		@Override
-		protected Void doInBackground(InputStream... params) {
-			byte[] inbuffer = new byte[NETWORK_BUFFER_SIZE];
-			byte[] linebuffer = new byte[1024];
-			InputStream lis = params[0];
-			int cnt, idx = 0;
-			try {
-				while (!isCancelled()) {
-					if ((cnt = lis.read(inbuffer, 0, NETWORK_BUFFER_SIZE)) < 0) {
-						Log.e(TAG, "network read failure");
-						break;
-					}
-					for (int i = 0; i < cnt; i++)
-						if (inbuffer[i] == '\n') {
-							publishProgress(new String(linebuffer, 0, idx));
-							idx = 0;
-						} else
-							linebuffer[idx++] = inbuffer[i];
+	// Called on the loop thread.  Everything is posted to the main thread,
+	// and dropped there if its loop has since been shut down or replaced.
+	private class LoopListener implements NetworkLoop.Listener {
+		NetworkLoop owner;
+
+		public void connected() {
+			handler.post(new Runnable() {
+				public void run() {
+					if (loop != owner)
+						return;
+					// Let everyone know we are connected
+					Bundle b = new Bundle();
+					b.putBoolean("connection", true);
+					Intent i = new Intent(CONNECTION_STATUS);
+					i.putExtras(b);
+					sendBroadcast(i, null);
+					refresh();
+					Log.i(TAG, "Listener started, connection_status intent sent");
 				}
-			} catch (IOException e) {
-				Log.e(TAG, "listener read exception: " + e.getMessage());
-			}
-			return null;
+			});
 		}
 
-		@Override
-		protected void onProgressUpdate(String... values) {
-			Bundle b;
-			if (values.length <= 0)
-				return;
-			if ((b = machine.processJSON(values[0])) == null)
-				return;
-			updateInfo(values[0], b);
+		public void connectFailed(final String why) {
+			handler.post(new Runnable() {
+				public void run() {
+					Log.e(TAG, "Socket: " + why);
+					if (loop != owner)
+						return;
+					Toast.makeText(TinyGNetwork.this, "Connection failed",
+							Toast.LENGTH_SHORT).show();
+				}
+			});
 		}
 
-		@Override
-		protected void onCancelled() {
-			Log.i(TAG, "ListenerTask cancelled");
+		public void closed(String why) {
+			Log.e(TAG, "network read failure: " + why);
 		}
 	}
 
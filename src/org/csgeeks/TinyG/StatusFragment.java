@@ -1,17 +1,50 @@
 package org.csgeeks.TinyG;
 
+import org.csgeeks.TinyG.Support.LatencyHistogram;
+import org.csgeeks.TinyG.Support.MachineState;
+import org.csgeeks.TinyG.Support.StateBus;
+import org.csgeeks.TinyG.Support.TinyGService;
+
 import com.actionbarsherlock.app.SherlockFragment;
 
+import android.annotation.TargetApi;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
-public class StatusFragment extends SherlockFragment {
+// Snapshots from the state bus are only noted as they come.  The screen is
+// redrawn at most once a frame, from the newest one, and only the fields
+// that differ from what is shown are touched.
+public class StatusFragment extends SherlockFragment implements
+		StateBus.Listener {
 	private static final String TAG = "TinyG";
+	private static final int FIELDS = StateBus.POSITION | StateBus.LINE
+			| StateBus.MOTION_MODE | StateBus.MACHINE_STATE | StateBus.VELOCITY;
+	// A frame, for devices without Choreographer
+	private static final long FRAME_MS = 16;
 	View v;
+	private TextView locView, lineView, momoView, statusView, velocityView;
+	private StateBus.Subscription sub;
+	// The newest snapshot and what changed since the last render
+	private StateBus.Snapshot pending;
+	private int pendingChanged;
+	private boolean scheduled;
+	private NextFrame nextFrame;
+	private long lastRender;
+	// What is on screen, for the fields in shown
+	private int shown;
+	private final float shownPos[] = new float[4];
+	private float shownVelocity;
+	private int shownLine, shownMomo, shownStat;
+	// UI thread time per render, in us
+	private final LatencyHistogram renderTime = new LatencyHistogram(1000000L);
+	private long snapshots, renders;
 
 	@Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -19,25 +52,137 @@ public class StatusFragment extends SherlockFragment {
     	Log.d(TAG, "Inflating StatusFragment");
         // Inflate the layout for this fragment
     	v = inflater.inflate(R.layout.status, container, false);
+		locView = (TextView) v.findViewById(R.id.loc);
+		lineView = (TextView) v.findViewById(R.id.line);
+		momoView = (TextView) v.findViewById(R.id.momo);
+		statusView = (TextView) v.findViewById(R.id.status);
+		velocityView = (TextView) v.findViewById(R.id.velocity);
+		shown = 0;
     	return v;
     }
-    
-	public void updateState(Bundle b) {
-		if (b.containsKey("posx"))
-			((TextView) v.findViewById(R.id.loc)).setText(
-					String.format("( %.3f, %.3f, %.3f, %.3f)",
-							b.getFloat("posx"), b.getFloat("posy"),
-							b.getFloat("posz"), b.getFloat("posa")));
-		if (b.containsKey("line"))
-			((TextView) v.findViewById(R.id.line)).setText(Integer.toString(b
-					.getInt("line")));
-		if (b.containsKey("momo"))
-			((TextView) v.findViewById(R.id.momo)).setText(b.getString("momo"));
-		if (b.containsKey("status"))
-			((TextView) v.findViewById(R.id.status)).setText(b.getString("status"));
-		if (b.containsKey("velocity"))
-			((TextView) v.findViewById(R.id.velocity)).setText(Float.toString(b
-					.getFloat("velocity")));
+
+	@Override
+	public void onResume() {
+		super.onResume();
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+				&& nextFrame == null)
+			nextFrame = new NextFrame(render);
+		sub = TinyGService.getStateBus().subscribe(this, FIELDS);
+	}
+
+	@Override
+	public void onPause() {
+		super.onPause();
+		TinyGService.getStateBus().unsubscribe(sub);
+		sub = null;
+		if (scheduled) {
+			if (nextFrame != null)
+				nextFrame.cancel();
+			else
+				v.removeCallbacks(render);
+			scheduled = false;
+		}
+		Log.d(TAG, "status renders: " + renders + " for " + snapshots
+				+ " snapshots, us: " + renderTime);
 	}
 
+	public void onState(StateBus.Snapshot s, int changed) {
+		snapshots++;
+		pending = s;
+		pendingChanged |= changed;
+		if (scheduled)
+			return;
+		scheduled = true;
+		if (nextFrame != null) {
+			nextFrame.post();
+		} else {
+			long wait = lastRender + FRAME_MS - SystemClock.uptimeMillis();
+			v.postDelayed(render, Math.max(0, wait));
+		}
+	}
+
+	private final Runnable render = new Runnable() {
+		public void run() {
+			scheduled = false;
+			render();
+		}
+	};
+
+	private void render() {
+		long start = System.nanoTime();
+		StateBus.Snapshot s = pending;
+		int changed = pendingChanged;
+
+		pending = null;
+		pendingChanged = 0;
+		if (s == null || v == null)
+			return;
+		lastRender = SystemClock.uptimeMillis();
+		renders++;
+		if ((changed & StateBus.POSITION) != 0
+				&& (!isShown(StateBus.POSITION) || shownPos[0] != s.pos[0]
+						|| shownPos[1] != s.pos[1] || shownPos[2] != s.pos[2]
+						|| shownPos[3] != s.pos[3])) {
+			System.arraycopy(s.pos, 0, shownPos, 0, shownPos.length);
+			locView.setText(String.format("( %.3f, %.3f, %.3f, %.3f)",
+					s.pos[0], s.pos[1], s.pos[2], s.pos[3]));
+			shown |= StateBus.POSITION;
+		}
+		if ((changed & StateBus.LINE) != 0
+				&& (!isShown(StateBus.LINE) || shownLine != s.line)) {
+			shownLine = s.line;
+			lineView.setText(Integer.toString(s.line));
+			shown |= StateBus.LINE;
+		}
+		if ((changed & StateBus.MOTION_MODE) != 0
+				&& (!isShown(StateBus.MOTION_MODE) || shownMomo != s.momo)) {
+			shownMomo = s.momo;
+			momoView.setText(MachineState.motionModeName(s.momo));
+			shown |= StateBus.MOTION_MODE;
+		}
+		if ((changed & StateBus.MACHINE_STATE) != 0
+				&& (!isShown(StateBus.MACHINE_STATE) || shownStat != s.stat)
+				&& MachineState.machineStateName(s.stat) != null) {
+			shownStat = s.stat;
+			statusView.setText(MachineState.machineStateName(s.stat));
+			shown |= StateBus.MACHINE_STATE;
+		}
+		if ((changed & StateBus.VELOCITY) != 0
+				&& (!isShown(StateBus.VELOCITY) || shownVelocity != s.velocity)) {
+			shownVelocity = s.velocity;
+			velocityView.setText(Float.toString(s.velocity));
+			shown |= StateBus.VELOCITY;
+		}
+		renderTime.record((System.nanoTime() - start) / 1000);
+	}
+
+	private boolean isShown(int field) {
+		return (shown & field) != 0;
+	}
+
+	public LatencyHistogram getRenderTime() {
+		return renderTime;
+	}
+
+	// Only loaded where Choreographer exists
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static class NextFrame implements Choreographer.FrameCallback {
+		private final Runnable r;
+
+		NextFrame(Runnable r) {
+			this.r = r;
+		}
+
+		public void doFrame(long frameTimeNanos) {
+			r.run();
+		}
+
+		void post() {
+			Choreographer.getInstance().postFrameCallback(this);
+		}
+
+		void cancel() {
+			Choreographer.getInstance().removeFrameCallback(this);
+		}
+	}
 }
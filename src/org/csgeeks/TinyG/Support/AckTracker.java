@@ -0,0 +1,63 @@
+package org.csgeeks.TinyG.Support;
+
+// Lines written to TinyG that are still waiting for their "r" response.
+// TinyG answers lines in the order it receives them, so the oldest entry
+// is the one each response belongs to.
+class AckTracker {
+	private int seq[];
+	private long sentAt[];
+	private int head, count;
+	private long lastRtt;
+
+	AckTracker(int capacity) {
+		seq = new int[capacity];
+		sentAt = new long[capacity];
+	}
+
+	synchronized void sent(int s, long now) {
+		if (count == seq.length)
+			grow();
+		int i = (head + count) % seq.length;
+		seq[i] = s;
+		sentAt[i] = now;
+		count++;
+	}
+
+	// Returns the sequence number of the line that was answered, or -1 if
+	// nothing was outstanding (TinyG's startup banner, for instance).
+	synchronized int acked(long now) {
+		if (count == 0)
+			return -1;
+		int s = seq[head];
+		lastRtt = now - sentAt[head];
+		head = (head + 1) % seq.length;
+		count--;
+		return s;
+	}
+
+	// Round trip of the line returned by the last acked(), in nanoseconds
+	synchronized long lastRoundTrip() {
+		return lastRtt;
+	}
+
+	synchronized int size() {
+		return count;
+	}
+
+	synchronized void clear() {
+		head = count = 0;
+	}
+
+	private void grow() {
+		int ns[] = new int[seq.length * 2];
+		long nt[] = new long[seq.length * 2];
+
+		for (int i = 0; i < count; i++) {
+			ns[i] = seq[(head + i) % seq.length];
+			nt[i] = sentAt[(head + i) % seq.length];
+		}
+		seq = ns;
+		sentAt = nt;
+		head = 0;
+	}
+}
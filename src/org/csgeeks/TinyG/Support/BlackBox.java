@@ -14,8 +14,12 @@ import android.util.Log;
 public class BlackBox {
 	private final Semaphore writeLock = new Semaphore(1, true);
 	private File logFile;
-	private BufferedOutputStream debugOut;
+	private volatile BufferedOutputStream debugOut;
 	private static final String TAG = "BlackBox";
+	// Direction prefixes already turned into bytes, so logging a line
+	// doesn't encode one every time.  Only touched holding writeLock.
+	private final String prefixes[] = new String[4];
+	private final byte prefixBytes[][] = new byte[4][];
 	
 	public void open() {
 		if (debugOut != null)
@@ -31,37 +35,94 @@ public class BlackBox {
 	}
 	
 	public void close() {
-		if (debugOut == null)
+		if (debugOut == null || !lock())
 			return;
 		
 		try {
-			debugOut.close();
+			if (debugOut != null)
+				debugOut.close();
 			debugOut = null;
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+		} finally {
+			writeLock.release();
 		}
 	}
 
 	public void write(String dir, String cmd) {
-		if (debugOut == null)
+		if (debugOut == null || !lock())
 			return;
 		
 		try {
-			writeLock.acquire();
-//			String tmp = Long.toString(System.currentTimeMillis());
-			debugOut.write(dir.getBytes(), 0, dir.length());
-//			debugOut.write(tmp.getBytes(), 0, tmp.length());
-//			debugOut.write(':');
-			debugOut.write(cmd.getBytes(), 0, cmd.length());
-			writeLock.release();
+			BufferedOutputStream out = debugOut;
+			if (out == null)
+				return;
+			byte p[] = prefix(dir);
+			out.write(p, 0, p.length);
+			byte c[] = cmd.getBytes();
+			out.write(c, 0, c.length);
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
+		} finally {
+			writeLock.release();
+		}
+	}
+
+	// Log a block of newline terminated lines, each with the direction prefix
+	public void write(String dir, byte b[], int off, int len) {
+		if (debugOut == null || !lock())
+			return;
+
+		try {
+			BufferedOutputStream out = debugOut;
+			if (out == null)
+				return;
+			byte p[] = prefix(dir);
+			int start = off;
+			for (int i = off; i < off + len; i++) {
+				if (b[i] == '\n') {
+					out.write(p, 0, p.length);
+					out.write(b, start, i + 1 - start);
+					start = i + 1;
+				}
+			}
+			if (start < off + len) {
+				out.write(p, 0, p.length);
+				out.write(b, start, off + len - start);
+			}
+		} catch (IOException e) {
 			e.printStackTrace();
-		}		
+		} finally {
+			writeLock.release();
+		}
+	}
+
+	// False if we were interrupted waiting, in which case nothing is logged
+	private boolean lock() {
+		try {
+			writeLock.acquire();
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	// The callers only ever use a few constant prefixes
+	private byte[] prefix(String dir) {
+		int i;
+
+		for (i = 0; i < prefixes.length && prefixes[i] != null; i++)
+			if (prefixes[i] == dir || prefixes[i].equals(dir))
+				return prefixBytes[i];
+		byte p[] = dir.getBytes();
+		if (i < prefixes.length) {
+			prefixes[i] = dir;
+			prefixBytes[i] = p;
+		}
+		return p;
 	}
 		
 		
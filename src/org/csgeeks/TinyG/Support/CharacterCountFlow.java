@@ -0,0 +1,49 @@
+package org.csgeeks.TinyG.Support;
+
+import java.util.concurrent.Semaphore;
+
+// Byte-exact character counting: never have more bytes outstanding than
+// TinyG's serial buffer can hold.  Credits come back from the footer.
+public class CharacterCountFlow implements FlowControl {
+	private final int size;
+	private final Semaphore bufferAvail;
+
+	public CharacterCountFlow(int size) {
+		this.size = size;
+		bufferAvail = new Semaphore(size, true);
+	}
+
+	public void reset() {
+		int inuse = size - bufferAvail.availablePermits();
+		if (inuse > 0)
+			bufferAvail.release(inuse);
+	}
+
+	public void acquire(int length) throws InterruptedException {
+		bufferAvail.acquire(Math.min(length, size));
+	}
+
+	public boolean tryAcquire(int length) {
+		return bufferAvail.tryAcquire(Math.min(length, size));
+	}
+
+	public synchronized void release(int length) {
+		int inuse = size - bufferAvail.availablePermits();
+
+		length = Math.min(Math.min(length, size), inuse);
+		if (length > 0)
+			bufferAvail.release(length);
+	}
+
+	public void onResponse(int freed) {
+		if (freed > 0)
+			bufferAvail.release(freed);
+	}
+
+	public void onQueueReport(int qr) {
+	}
+
+	public String toString() {
+		return "chars: " + bufferAvail.availablePermits() + "/" + size;
+	}
+}
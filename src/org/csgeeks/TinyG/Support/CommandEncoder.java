@@ -0,0 +1,159 @@
+package org.csgeeks.TinyG.Support;
+
+// Builds commands as bytes in a reusable buffer, so sending a jog or a
+// setting doesn't go through String.format and a pile of temporary
+// Strings.  Numbers come out the way the old code wrote them:
+// appendFixed() like "%f" with an English locale, and appendFloat() like
+// Float.toString().  The decimal point is always a '.', whatever the
+// locale, as that's all TinyG reads.
+//
+// Not thread safe; each user keeps its own.
+public class CommandEncoder {
+	private static final double POW10[] = { 1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6,
+			1e7, 1e8, 1e9, 1e10 };
+	// Fixed point numbers are worked on scaled by 10^decimals, and have to
+	// stay below 2^52 so twice them plus one is still exact
+	private static final double SCALED_MAX = 4e15;
+	private byte buf[];
+	private int len;
+
+	public CommandEncoder() {
+		this(64);
+	}
+
+	public CommandEncoder(int capacity) {
+		buf = new byte[capacity];
+	}
+
+	public CommandEncoder reset() {
+		len = 0;
+		return this;
+	}
+
+	public int length() {
+		return len;
+	}
+
+	// The encoded bytes are buf[0..length())
+	public byte[] buffer() {
+		return buf;
+	}
+
+	public CommandEncoder append(char c) {
+		room(1);
+		buf[len++] = (byte) (c < 0x80 ? c : '?');
+		return this;
+	}
+
+	// Commands are plain ASCII
+	public CommandEncoder append(String s) {
+		int n = s.length();
+
+		room(n);
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			buf[len++] = (byte) (c < 0x80 ? c : '?');
+		}
+		return this;
+	}
+
+	public CommandEncoder appendInt(long v) {
+		if (v < 0) {
+			if (v == Long.MIN_VALUE)
+				return append(Long.toString(v));
+			append('-');
+			v = -v;
+		}
+		return appendDigits(v, 1);
+	}
+
+	// As String.format("%.<decimals>f", v).  That rounds half up the
+	// shortest decimal that reads back as v, so a value is rounded up when
+	// it is at least the double nearest the halfway decimal.
+	public CommandEncoder appendFixed(double v, int decimals) {
+		if (decimals < 0 || decimals >= POW10.length || Double.isNaN(v)
+				|| !(Math.abs(v) * POW10[decimals] < SCALED_MAX))
+			return append(String.format("%." + decimals + "f", v).replace(',',
+					'.'));
+		// "%f" keeps the sign of -0.0 and of negatives that round to 0
+		if (v < 0 || (v == 0 && 1 / v < 0))
+			append('-');
+		double a = Math.abs(v), p = POW10[decimals];
+		long n = (long) Math.floor(a * p);
+		if (a >= (2 * n + 1) / (2 * p))
+			n++;
+		return appendScaled(n, decimals);
+	}
+
+	// As Float.toString(v).  Between 10^-3 and 10^7, where that doesn't
+	// use an exponent, this finds the fewest decimals that read back as
+	// the same float, picking the even one when two are as close.
+	// Anything else is rare enough to go through Float.toString itself.
+	public CommandEncoder appendFloat(float v) {
+		float a = Math.abs(v);
+
+		if (a != 0 && (a < 1e-3f || a >= 1e7f) || Float.isNaN(v))
+			return append(Float.toString(v));
+		if (v < 0 || (v == 0 && 1 / v < 0))
+			append('-');
+		for (int d = 1; d < 10; d++) {
+			long n = (long) Math.rint(a * POW10[d]);
+			if ((float) (n / POW10[d]) == a)
+				return appendScaled(n, d);
+		}
+		return append(Float.toString(a));
+	}
+
+	// The encoded command as a String, for logging and the old APIs
+	public String toString() {
+		return new String(buf, 0, len);
+	}
+
+	// A jog of one axis relative to where it is, at the fastest rate
+	public CommandEncoder jog(char axis, double step) {
+		return append("g91 g0").append(axis).appendFixed(step, 6);
+	}
+
+	// The same at feed mm/min
+	public CommandEncoder jog(char axis, double step, double feed) {
+		return append("g91 f").appendFixed(feed, 6).append(" g1").append(axis)
+				.appendFixed(step, 6);
+	}
+
+	// n / 10^decimals, with all the decimals
+	private CommandEncoder appendScaled(long n, int decimals) {
+		long p = (long) POW10[decimals];
+
+		appendDigits(n / p, 1);
+		if (decimals > 0) {
+			append('.');
+			appendDigits(n % p, decimals);
+		}
+		return this;
+	}
+
+	// At least width digits, with leading zeros
+	private CommandEncoder appendDigits(long v, int width) {
+		int n = 1;
+
+		for (long t = v; t >= 10; t /= 10)
+			n++;
+		if (n < width)
+			n = width;
+		room(n);
+		for (int i = len + n - 1; i >= len; i--) {
+			buf[i] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		len += n;
+		return this;
+	}
+
+	private void room(int n) {
+		if (len + n <= buf.length)
+			return;
+		byte tmp[] = new byte[Math.max(2 * buf.length, len + n)];
+		System.arraycopy(buf, 0, tmp, 0, len);
+		buf = tmp;
+	}
+}
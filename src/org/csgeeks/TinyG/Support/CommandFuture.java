@@ -0,0 +1,92 @@
+package org.csgeeks.TinyG.Support;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Handle for a command queued with TinyGService.submit_message().  It
+// moves to SENT when the command is written to TinyG and completes when
+// TinyG's "r" response to it arrives, carrying the footer status code and
+// the round trip time.  It is cancelled instead if the command is flushed
+// before it went out, or if TinyG is reset before answering.  Commands
+// queued with send_* or offer_* have no handle; only submit_* makes one.
+public class CommandFuture {
+	public static final int PENDING = 0;
+	public static final int SENT = 1;
+	public static final int CANCELLED = 2;
+	// The queue had no room; the command was never queued
+	public static final int REJECTED = 3;
+	public static final int ACKED = 4;
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile int state = PENDING;
+	private int seq = -1;
+	private volatile int status;
+	private volatile long roundTrip;
+
+	CommandFuture() {
+	}
+
+	void setSeq(int seq) {
+		this.seq = seq;
+	}
+
+	// Sequence number of the command in the queue, -1 if it was rejected
+	public int getSeq() {
+		return seq;
+	}
+
+	public int getState() {
+		return state;
+	}
+
+	public boolean isDone() {
+		return state != PENDING && state != SENT;
+	}
+
+	public boolean isSent() {
+		return state == SENT || state == ACKED;
+	}
+
+	// Status code from the response footer, valid once ACKED
+	public int getStatus() {
+		return status;
+	}
+
+	// Microseconds from the write until the response, valid once ACKED
+	public long getRoundTrip() {
+		return roundTrip / 1000;
+	}
+
+	// Waits for the response, or for the command to be dropped
+	public int await() throws InterruptedException {
+		done.await();
+		return state;
+	}
+
+	// Returns the state, which is PENDING or SENT if the wait timed out
+	public int await(long timeout, TimeUnit unit) throws InterruptedException {
+		done.await(timeout, unit);
+		return state;
+	}
+
+	synchronized void sent() {
+		if (state == PENDING)
+			state = SENT;
+	}
+
+	synchronized void acked(int status, long rtt) {
+		if (isDone())
+			return;
+		this.status = status;
+		roundTrip = rtt;
+		state = ACKED;
+		done.countDown();
+	}
+
+	synchronized void complete(int s) {
+		if (isDone())
+			return;
+		state = s;
+		done.countDown();
+	}
+}
@@ -0,0 +1,288 @@
+package org.csgeeks.TinyG.Support;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Preallocated ring of outgoing command lines, stored as the bytes that go
+// on the wire.  Each line has a header with its length and sequence number.
+// Producers are serialized by a lock; the single consumer (the queue
+// processor) never takes it, so neither side allocates per line.
+//
+// Blocking producers are throttled by watermarks: once a line would take
+// the queue past the high watermark they wait until it has drained to the
+// low one.  The room between the high watermark and the capacity is kept
+// for non-blocking producers, so an interactive command still gets in
+// while a job is saturating the queue.
+public class CommandRing {
+	private static final int HEADER = 6;
+	private final byte data[];
+	private final int mask;
+	private final ReentrantLock putLock = new ReentrantLock();
+	private final Object signal = new Object();
+	// Positions only ever grow; the buffer index is pos & mask.  head is
+	// swapped under the consumer by clear(), which is why it's atomic.
+	private final AtomicLong head = new AtomicLong();
+	private volatile long tail;
+	private long wpos;
+	private int nextSeq, lastSeq;
+	private volatile int lowWater, highWater;
+	private volatile boolean consumerWaiting;
+	private volatile int producersWaiting;
+	private volatile long linesIn, linesOut;
+
+	// capacity must be a power of two
+	public CommandRing(int capacity) {
+		if (Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("capacity must be a power of two");
+		data = new byte[capacity];
+		mask = capacity - 1;
+		setWatermarks(capacity / 4, capacity * 3 / 4);
+	}
+
+	// In bytes, including the per-line headers
+	public void setWatermarks(int low, int high) {
+		if (low < 0 || low >= high || high > data.length)
+			throw new IllegalArgumentException("bad watermarks " + low + "/" + high);
+		lowWater = low;
+		highWater = high;
+		synchronized (signal) {
+			signal.notifyAll();
+		}
+	}
+
+	public int lowWatermark() {
+		return lowWater;
+	}
+
+	public int highWatermark() {
+		return highWater;
+	}
+
+	public int capacity() {
+		return data.length;
+	}
+
+	// Longest line that will ever fit
+	public int maxLine() {
+		return Math.min(data.length - HEADER, 0xffff);
+	}
+
+	// Blocking put, returns the sequence number of the line
+	public int put(CharSequence s) throws InterruptedException {
+		int seq = beginLine(s.length());
+		try {
+			append(s);
+		} catch (RuntimeException e) {
+			abortLine();
+			throw e;
+		}
+		endLine();
+		return seq;
+	}
+
+	// Non-blocking put, returns the sequence number or -1 if there's no room
+	public int offer(CharSequence s) {
+		int seq = tryBeginLine(s.length());
+		if (seq < 0)
+			return -1;
+		try {
+			append(s);
+		} catch (RuntimeException e) {
+			abortLine();
+			throw e;
+		}
+		endLine();
+		return seq;
+	}
+
+	// Reserve room for a line of at most max bytes, waiting on the
+	// watermarks.  The line is built with append() and published by
+	// endLine(), or dropped by abortLine(); one of the two must follow, as
+	// the producer lock is held until then.  Returns the sequence number
+	// the line will carry.
+	public int beginLine(int max) throws InterruptedException {
+		if (max > maxLine())
+			throw new IllegalArgumentException("line too long: " + max);
+		int need = max + HEADER;
+		while (true) {
+			awaitRoom(need);
+			putLock.lockInterruptibly();
+			if (fits(need, highWater))
+				break;
+			putLock.unlock();
+		}
+		return start();
+	}
+
+	// Like beginLine(), but may use the headroom above the high watermark
+	// and never waits.  Returns -1 if the line doesn't fit right now.
+	public int tryBeginLine(int max) {
+		if (max > maxLine())
+			throw new IllegalArgumentException("line too long: " + max);
+		putLock.lock();
+		if (!fits(max + HEADER, data.length)) {
+			putLock.unlock();
+			return -1;
+		}
+		return start();
+	}
+
+	// An empty ring always takes a line, whatever the watermarks say
+	private boolean fits(int need, int limit) {
+		int used = used();
+		return used + need <= limit || (used == 0 && need <= data.length);
+	}
+
+	private int start() {
+		wpos = tail + HEADER;
+		return nextSeq;
+	}
+
+	public void append(byte b) {
+		data[(int) wpos++ & mask] = b;
+	}
+
+	public void append(byte b[], int off, int len) {
+		for (int i = 0; i < len; i++)
+			data[(int) wpos++ & mask] = b[off + i];
+	}
+
+	// Commands are plain ASCII
+	public void append(CharSequence s) {
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			data[(int) wpos++ & mask] = (byte) (c < 0x80 ? c : '?');
+		}
+	}
+
+	public void endLine() {
+		long t = tail;
+		int len = (int) (wpos - t - HEADER);
+		int seq = nextSeq;
+		nextSeq = (nextSeq + 1) & Integer.MAX_VALUE;
+		data[(int) t & mask] = (byte) (len >> 8);
+		data[(int) (t + 1) & mask] = (byte) len;
+		data[(int) (t + 2) & mask] = (byte) (seq >> 24);
+		data[(int) (t + 3) & mask] = (byte) (seq >> 16);
+		data[(int) (t + 4) & mask] = (byte) (seq >> 8);
+		data[(int) (t + 5) & mask] = (byte) seq;
+		linesIn++;
+		tail = wpos;
+		putLock.unlock();
+		if (consumerWaiting) {
+			synchronized (signal) {
+				signal.notifyAll();
+			}
+		}
+	}
+
+	// Drops the line begun by beginLine() or tryBeginLine(), for a producer
+	// that failed partway through building it.  Nothing of it is queued and
+	// its sequence number goes to the next line.
+	public void abortLine() {
+		wpos = tail;
+		putLock.unlock();
+	}
+
+	// Wait (without the producer lock) until the line fits under the high
+	// watermark, or if it doesn't, until the queue has drained to the low one
+	private void awaitRoom(int need) throws InterruptedException {
+		if (fits(need, highWater))
+			return;
+		synchronized (signal) {
+			producersWaiting++;
+			try {
+				while (used() > lowWater || !fits(need, highWater))
+					signal.wait();
+			} finally {
+				producersWaiting--;
+			}
+		}
+	}
+
+	// Consumer side
+
+	// Block until there is at least one line
+	public void awaitData() throws InterruptedException {
+		if (tail != head.get())
+			return;
+		synchronized (signal) {
+			consumerWaiting = true;
+			while (tail == head.get())
+				signal.wait();
+			consumerWaiting = false;
+		}
+	}
+
+	// Length of the oldest line, or -1 if there is none
+	public int peekLength() {
+		long h = head.get();
+		if (h == tail)
+			return -1;
+		return lengthAt(h);
+	}
+
+	// Copy the oldest line into dst and drop it from the ring.  Returns its
+	// length, or -1 if the ring was empty or got cleared while copying.
+	public int poll(byte dst[], int off) {
+		long h = head.get();
+		if (h == tail)
+			return -1;
+		int len = lengthAt(h);
+		int seq = ((data[(int) (h + 2) & mask] & 0xff) << 24)
+				| ((data[(int) (h + 3) & mask] & 0xff) << 16)
+				| ((data[(int) (h + 4) & mask] & 0xff) << 8)
+				| (data[(int) (h + 5) & mask] & 0xff);
+		int start = (int) (h + HEADER) & mask;
+		int first = Math.min(len, data.length - start);
+		System.arraycopy(data, start, dst, off, first);
+		System.arraycopy(data, 0, dst, off + first, len - first);
+		if (!head.compareAndSet(h, h + HEADER + len))
+			return -1;
+		lastSeq = seq;
+		linesOut++;
+		if (producersWaiting > 0 && used() <= lowWater) {
+			synchronized (signal) {
+				signal.notifyAll();
+			}
+		}
+		return len;
+	}
+
+	// Sequence number of the line last returned by poll()
+	public int lastSeq() {
+		return lastSeq;
+	}
+
+	private int lengthAt(long pos) {
+		return ((data[(int) pos & mask] & 0xff) << 8)
+				| (data[(int) (pos + 1) & mask] & 0xff);
+	}
+
+	// Drop everything queued.  Safe from any thread; it doesn't need the
+	// producer lock, so it can't get stuck behind a producer waiting for room.
+	public void clear() {
+		head.set(tail);
+		linesOut = linesIn;
+		synchronized (signal) {
+			signal.notifyAll();
+		}
+	}
+
+	public boolean isEmpty() {
+		return head.get() == tail;
+	}
+
+	// Number of queued lines (approximate while both sides are busy)
+	public int size() {
+		if (isEmpty())
+			return 0;
+		return (int) Math.max(1, linesIn - linesOut);
+	}
+
+	// Bytes queued, including the line headers
+	public int used() {
+		return (int) (tail - head.get());
+	}
+}
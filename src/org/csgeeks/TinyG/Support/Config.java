@@ -1,71 +1,93 @@
 package org.csgeeks.TinyG.Support;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
 
-public class Config {
-	private static final Set<TinyGType> axisVals = new HashSet<TinyGType>();
-	private static final Set<TinyGType> motorVals = new HashSet<TinyGType>();
-	private static final Set<TinyGType> sysVals = new HashSet<TinyGType>();
-	
-	// Eventually pull this from resources?  Multiple column implementation in android is a bit hackish.
-	public Config() {
-		motorVals.add(new TinyGType("tr", "float"));
-		motorVals.add(new TinyGType("sa", "float"));
-		motorVals.add(new TinyGType("mi", "int"));
-		motorVals.add(new TinyGType("po", "boolean"));
-		motorVals.add(new TinyGType("pm", "boolean"));
-		motorVals.add(new TinyGType("ma", "int"));
-		axisVals.add(new TinyGType("tm", "float"));
-		axisVals.add(new TinyGType("vm", "float"));
-		axisVals.add(new TinyGType("jm", "float"));
-		axisVals.add(new TinyGType("jd", "float"));
-		axisVals.add(new TinyGType("ra", "float"));
-		axisVals.add(new TinyGType("fr", "float"));
-		axisVals.add(new TinyGType("am", "int"));
-		axisVals.add(new TinyGType("sv", "float"));
-		axisVals.add(new TinyGType("lv", "float"));
-		axisVals.add(new TinyGType("sn", "int"));
-		axisVals.add(new TinyGType("sx", "int"));
-		axisVals.add(new TinyGType("zb", "float"));
-		sysVals.add(new TinyGType("fb", "float"));
-		sysVals.add(new TinyGType("fv", "float"));
-		sysVals.add(new TinyGType("hv", "int"));
-		sysVals.add(new TinyGType("id", "string"));
-		sysVals.add(new TinyGType("ja", "float"));
-		sysVals.add(new TinyGType("ct", "float"));
-		sysVals.add(new TinyGType("st", "int"));
-		sysVals.add(new TinyGType("ej", "boolean"));
-		sysVals.add(new TinyGType("jv", "int"));
-		sysVals.add(new TinyGType("tv", "int"));
-		sysVals.add(new TinyGType("qv", "int"));
-		sysVals.add(new TinyGType("sv", "int"));
-		sysVals.add(new TinyGType("si", "int"));
-		sysVals.add(new TinyGType("ic", "boolean"));
-		sysVals.add(new TinyGType("ec", "boolean"));
-		sysVals.add(new TinyGType("ee", "boolean"));
-		sysVals.add(new TinyGType("ex", "boolean"));
-	}
-	
-	public Set<TinyGType> getMotor() {
-		return motorVals;
-	}
-	
-	public Set<TinyGType> getAxis() {
-		return axisVals;
+// The settings TinyG has for each axis, each motor and the system, with
+// their types.  Built once when the class loads and never changed after.
+// Every setting has a two letter name, so a Schema finds a name's slot
+// with one lookup in a table indexed by the two letters.
+public final class Config {
+	public enum Type {
+		FLOAT, INT, BOOLEAN, STRING
 	}
-	
-	public Set<TinyGType> getSys() {
-		return sysVals;
+
+	// Eventually pull this from resources?  Multiple column implementation in android is a bit hackish.
+	public static final Schema MOTOR = new Schema(new String[] { "tr", "sa",
+			"mi", "po", "pm", "ma" }, new Type[] { Type.FLOAT, Type.FLOAT,
+			Type.INT, Type.BOOLEAN, Type.BOOLEAN, Type.INT });
+	public static final Schema AXIS = new Schema(new String[] { "tm", "vm",
+			"jm", "jd", "ra", "fr", "am", "sv", "lv", "sn", "sx", "zb" },
+			new Type[] { Type.FLOAT, Type.FLOAT, Type.FLOAT, Type.FLOAT,
+					Type.FLOAT, Type.FLOAT, Type.INT, Type.FLOAT, Type.FLOAT,
+					Type.INT, Type.INT, Type.FLOAT });
+	public static final Schema SYS = new Schema(new String[] { "fb", "fv",
+			"hv", "id", "ja", "ct", "st", "ej", "jv", "tv", "qv", "sv", "si",
+			"ic", "ec", "ee", "ex" }, new Type[] { Type.FLOAT, Type.FLOAT,
+			Type.INT, Type.STRING, Type.FLOAT, Type.FLOAT, Type.INT,
+			Type.BOOLEAN, Type.INT, Type.INT, Type.INT, Type.INT, Type.INT,
+			Type.BOOLEAN, Type.BOOLEAN, Type.BOOLEAN, Type.BOOLEAN });
+
+	private Config() {
 	}
-	
-	public class TinyGType {
-		public String name;
-		public String type;
-		
-		private TinyGType(String name, String type) {
-			this.name = name;
-			this.type = type;
+
+	// Names and types of a group of settings, by slot
+	public static final class Schema {
+		private final String names[];
+		private final Type types[];
+		// Slot for each pair of lower case letters, or -1
+		private final byte slots[] = new byte[26 * 26];
+
+		private Schema(String names[], Type types[]) {
+			if (names.length != types.length || names.length > 32)
+				throw new IllegalArgumentException("bad schema");
+			this.names = names;
+			this.types = types;
+			Arrays.fill(slots, (byte) -1);
+			for (int i = 0; i < names.length; i++) {
+				int k = -1;
+				if (names[i].length() == 2)
+					k = key(names[i].charAt(0), names[i].charAt(1));
+				if (k < 0 || slots[k] >= 0)
+					throw new IllegalArgumentException("bad name " + names[i]);
+				slots[k] = (byte) i;
+			}
+		}
+
+		public int size() {
+			return names.length;
+		}
+
+		public String name(int slot) {
+			return names[slot];
+		}
+
+		public Type type(int slot) {
+			return types[slot];
+		}
+
+		// Slot for a name, or -1
+		public int slot(String name) {
+			if (name.length() != 2)
+				return -1;
+			return slot(name.charAt(0), name.charAt(1));
+		}
+
+		// Slot for the key the tokenizer is on, or -1
+		int slot(JsonTokenizer json) {
+			if (json.length() != 2)
+				return -1;
+			return slot(json.charAt(0), json.charAt(1));
+		}
+
+		private int slot(int a, int b) {
+			int k = key(a, b);
+			return k < 0 ? -1 : slots[k];
+		}
+
+		private static int key(int a, int b) {
+			if (a < 'a' || a > 'z' || b < 'a' || b > 'z')
+				return -1;
+			return (a - 'a') * 26 + (b - 'a');
 		}
 	}
 }
@@ -0,0 +1,26 @@
+package org.csgeeks.TinyG.Support;
+
+// Decides when the queue processor may hand the next line to TinyG.  The
+// service feeds it the response footers and queue reports as they arrive.
+public interface FlowControl {
+	// Forget everything in flight (connect, queue flush, reset)
+	void reset();
+
+	// Block until a line of the given length may be written
+	void acquire(int length) throws InterruptedException;
+
+	// Take the credit for a line only if it is available right now
+	boolean tryAcquire(int length);
+
+	// Give back the credit for a line that won't be written after all.
+	// Credit taken before the last reset() is already back, so this never
+	// frees more than is in use.
+	void release(int length);
+
+	// A line was acknowledged with an "r" response.  freed is the
+	// footer's buffer field, or 0 if the response had no footer.
+	void onResponse(int freed);
+
+	// Planner queue report ("qr"), the number of free planner buffers
+	void onQueueReport(int qr);
+}
@@ -0,0 +1,56 @@
+package org.csgeeks.TinyG.Support;
+
+// The checksum in a response footer is String.hashCode() of the line up
+// to its last comma, modulo 9999.  For the ASCII TinyG sends that's the
+// same sum over the bytes, so it can be kept up as each byte is framed:
+// the sum is remembered at every comma, and at the end of the line the
+// one from the last comma is the answer.
+public class FooterChecksum {
+	// value() for a line with no comma, which can't have a footer
+	public static final int NONE = -1;
+	private int hash, atComma;
+	private boolean comma;
+
+	public void reset() {
+		hash = 0;
+		comma = false;
+	}
+
+	public void update(byte b) {
+		if (b == ',') {
+			atComma = hash;
+			comma = true;
+		}
+		hash = 31 * hash + (b & 0xff);
+	}
+
+	// The same over a run of bytes, with the state kept in locals
+	public void update(byte b[], int off, int len) {
+		int h = hash, c = atComma;
+		boolean seen = comma;
+
+		for (int i = off, end = off + len; i < end; i++) {
+			byte x = b[i];
+			if (x == ',') {
+				c = h;
+				seen = true;
+			}
+			h = 31 * h + (x & 0xff);
+		}
+		hash = h;
+		atComma = c;
+		comma = seen;
+	}
+
+	public int value() {
+		if (!comma)
+			return NONE;
+		return (int) ((atComma & 0x00000000ffffffffL) % 9999);
+	}
+
+	public static int of(byte line[], int off, int len) {
+		FooterChecksum c = new FooterChecksum();
+		c.update(line, off, len);
+		return c.value();
+	}
+}
@@ -0,0 +1,362 @@
+package org.csgeeks.TinyG.Support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.util.Log;
+
+// Keeps the lines of a G-code file exactly as the streamer sends them,
+// after renumbering, minimizing and compaction, so running the same file
+// again is just copying bytes.  Entries are named after a SHA-1 of the
+// file's bytes and the options used.  A small note per source path
+// remembers which entry its current version (by size and mtime) maps to,
+// so nothing has to be hashed before a repeat run can start.  A file
+// without a note, such as a copy or one that was only touched, is hashed
+// to find its entry, but only if there are entries with its options.
+//
+// An entry is
+//   magic, options, then per line [int file line][short length][bytes],
+//   an int -1, the count and then the file line and offset of every line
+//   record, and finally the offset of that index as a long.  The index
+//   lets a resumed job start at its line.
+public class GcodeCache {
+	private static final String TAG = "TinyG";
+	private static final int MAGIC = 0x47544b32; // "GTK2"
+	private static final long MAX_BYTES = 64L * 1024 * 1024;
+
+	private final File dir;
+
+	public GcodeCache(File dir) {
+		this.dir = dir;
+	}
+
+	// The entry for this version of the file with these options, or null
+	public Reader open(File src, String options) {
+		String hash = lookup(src);
+		if (hash == null && hasEntries(options)) {
+			if ((hash = contentHash(src)) == null
+					|| !entry(hash, options).isFile())
+				return null;
+			try {
+				remember(src, src.length(), src.lastModified(), hash);
+			} catch (IOException e) {
+			}
+		}
+		if (hash == null)
+			return null;
+		File f = entry(hash, options);
+		if (!f.isFile())
+			return null;
+		try {
+			Reader r = new Reader(f, options);
+			f.setLastModified(System.currentTimeMillis()); // for eviction
+			return r;
+		} catch (IOException e) {
+			Log.d(TAG, "ignoring cache entry: " + e.getMessage());
+			f.delete();
+			return null;
+		}
+	}
+
+	// Null if the cache can't be written
+	public Writer create(File src, String options) {
+		try {
+			return new Writer(src, options);
+		} catch (IOException e) {
+			Log.d(TAG, "can't cache " + src + ": " + e.getMessage());
+		} catch (NoSuchAlgorithmException e) {
+			Log.d(TAG, "can't cache " + src + ": " + e.getMessage());
+		}
+		return null;
+	}
+
+	private File note(File src) {
+		return new File(dir, "src-"
+				+ Integer.toHexString(src.getAbsolutePath().hashCode()));
+	}
+
+	private File entry(String hash, String options) {
+		return new File(dir, hash + "-"
+				+ Integer.toHexString(options.hashCode()) + ".gtk");
+	}
+
+	private boolean hasEntries(String options) {
+		String suffix = "-" + Integer.toHexString(options.hashCode()) + ".gtk";
+		String names[] = dir.list();
+
+		if (names == null)
+			return false;
+		for (int i = 0; i < names.length; i++)
+			if (names[i].endsWith(suffix))
+				return true;
+		return false;
+	}
+
+	private static String contentHash(File src) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			FileInputStream in = new FileInputStream(src);
+			byte buf[] = new byte[64 * 1024];
+			int n;
+			try {
+				while ((n = in.read(buf)) > 0)
+					digest.update(buf, 0, n);
+			} finally {
+				in.close();
+			}
+			return hex(digest.digest());
+		} catch (IOException e) {
+		} catch (NoSuchAlgorithmException e) {
+		}
+		return null;
+	}
+
+	private static String hex(byte d[]) {
+		StringBuilder hash = new StringBuilder(2 * d.length);
+
+		for (int i = 0; i < d.length; i++)
+			hash.append(Character.forDigit((d[i] >> 4) & 0xf, 16)).append(
+					Character.forDigit(d[i] & 0xf, 16));
+		return hash.toString();
+	}
+
+	private String lookup(File src) {
+		File n = note(src);
+		if (!n.isFile())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(n));
+			try {
+				if (in.readUTF().equals(src.getAbsolutePath())
+						&& in.readLong() == src.length()
+						&& in.readLong() == src.lastModified())
+					return in.readUTF();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+		}
+		return null;
+	}
+
+	private void remember(File src, long size, long mtime, String hash)
+			throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(
+				note(src)));
+		try {
+			out.writeUTF(src.getAbsolutePath());
+			out.writeLong(size);
+			out.writeLong(mtime);
+			out.writeUTF(hash);
+		} finally {
+			out.close();
+		}
+	}
+
+	// Drops the least recently used entries beyond MAX_BYTES
+	private void trim() {
+		File files[] = dir.listFiles();
+		long total = 0;
+
+		if (files == null)
+			return;
+		for (int i = 0; i < files.length; i++)
+			if (files[i].getName().endsWith(".gtk"))
+				total += files[i].length();
+		while (total > MAX_BYTES) {
+			File oldest = null;
+			for (int i = 0; i < files.length; i++)
+				if (files[i] != null && files[i].getName().endsWith(".gtk")
+						&& (oldest == null || files[i].lastModified() < oldest
+								.lastModified()))
+					oldest = files[i];
+			if (oldest == null)
+				break;
+			total -= oldest.length();
+			oldest.delete();
+			for (int i = 0; i < files.length; i++)
+				if (files[i] == oldest)
+					files[i] = null;
+		}
+	}
+
+	public class Writer {
+		private final File src, tmp;
+		private final long size, mtime;
+		private final String options;
+		private final MessageDigest digest;
+		private final DataOutputStream out;
+		private int lines[] = new int[1024];
+		private int offsets[] = new int[1024];
+		private int count;
+		private int pos;
+
+		private Writer(File src, String options) throws IOException,
+				NoSuchAlgorithmException {
+			this.src = src;
+			this.options = options;
+			size = src.length();
+			mtime = src.lastModified();
+			digest = MessageDigest.getInstance("SHA-1");
+			tmp = File.createTempFile("gtk", ".tmp", dir);
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp), 8192));
+			out.writeInt(MAGIC);
+			out.writeUTF(options);
+			pos = out.size();
+		}
+
+		// The source has to be read through this, to the end, so the entry
+		// is named after its contents
+		public InputStream source(InputStream in) {
+			return new DigestInputStream(in, digest);
+		}
+
+		public void line(int lineNum, byte b[], int len) throws IOException {
+			if (count == offsets.length) {
+				int tmp[] = new int[2 * count];
+				System.arraycopy(offsets, 0, tmp, 0, count);
+				offsets = tmp;
+				tmp = new int[2 * count];
+				System.arraycopy(lines, 0, tmp, 0, count);
+				lines = tmp;
+			}
+			lines[count] = lineNum;
+			offsets[count++] = pos;
+			out.writeInt(lineNum);
+			out.writeShort(len);
+			out.write(b, 0, len);
+			pos += 6 + len;
+		}
+
+		// Call once the whole file went through
+		public void commit() {
+			try {
+				out.writeInt(-1);
+				out.writeInt(count);
+				for (int i = 0; i < count; i++) {
+					out.writeInt(lines[i]);
+					out.writeInt(offsets[i]);
+				}
+				out.writeLong(pos + 4);
+				out.close();
+				if (src.length() != size || src.lastModified() != mtime)
+					throw new IOException("changed while it was read");
+
+				String hash = hex(digest.digest());
+				File f = entry(hash, options);
+				f.delete();
+				if (!tmp.renameTo(f))
+					throw new IOException("rename failed");
+				remember(src, size, mtime, hash);
+				Log.d(TAG, "cached " + count + " lines as " + f.getName());
+				trim();
+			} catch (IOException e) {
+				Log.d(TAG, "can't cache " + src + ": " + e.getMessage());
+				tmp.delete();
+			}
+		}
+
+		public void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+			}
+			tmp.delete();
+		}
+	}
+
+	public static class Reader {
+		private final File file;
+		private DataInputStream in;
+		private byte line[] = new byte[256];
+		private int lineNum;
+
+		private Reader(File f, String options) throws IOException {
+			file = f;
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(f), 8192));
+			if (in.readInt() != MAGIC || !in.readUTF().equals(options)) {
+				in.close();
+				throw new IOException("not a cache entry");
+			}
+		}
+
+		// Reads the next line, returning its length or -1 at the end
+		public int next() throws IOException {
+			int n = in.readInt();
+			if (n < 0)
+				return -1;
+			lineNum = n;
+			int len = in.readUnsignedShort();
+			if (len > line.length)
+				line = new byte[len];
+			in.readFully(line, 0, len);
+			return len;
+		}
+
+		// The line last read by next()
+		public byte[] line() {
+			return line;
+		}
+
+		// File line number of the line last returned by next()
+		public int lineNumber() {
+			return lineNum;
+		}
+
+		// Moves to the first line at or after line in the file, looking
+		// it up in the index.  False if there is none.
+		public boolean seek(int line) throws IOException {
+			RandomAccessFile f = new RandomAccessFile(file, "r");
+			long at;
+
+			try {
+				f.seek(f.length() - 8);
+				f.seek(f.readLong());
+				int count = f.readInt();
+				IntBuffer index = f.getChannel().map(
+						FileChannel.MapMode.READ_ONLY, f.getFilePointer(),
+						8L * count).asIntBuffer();
+				int lo = 0, hi = count;
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if (index.get(2 * mid) < line)
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+				if (lo == count)
+					return false;
+				at = index.get(2 * lo + 1);
+			} finally {
+				f.close();
+			}
+			FileInputStream s = new FileInputStream(file);
+			s.getChannel().position(at);
+			in.close();
+			in = new DataInputStream(new BufferedInputStream(s, 8192));
+			return true;
+		}
+
+		public void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
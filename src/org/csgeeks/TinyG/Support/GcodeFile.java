@@ -0,0 +1,221 @@
+package org.csgeeks.TinyG.Support;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+// A G-code file mapped into memory with the offset of every line, so any
+// line can be fetched in constant time without reading the file into the
+// heap.  The index is saved next to the app's cache and reused as long as
+// the file's path, size and modification time are unchanged.
+public class GcodeFile {
+	private static final String TAG = "TinyG";
+	private static final int INDEX_MAGIC = 0x47434931; // "GCI1"
+	private static final int SCAN_CHUNK = 64 * 1024;
+
+	private final String path;
+	private final long size, mtime;
+	private final MappedByteBuffer data;
+	// lineStart[i] is the offset of line i, lineStart[count] the end of file
+	private int lineStart[];
+	private int count;
+	private char scratch[] = new char[256];
+
+	private GcodeFile(File f, MappedByteBuffer data) {
+		this.path = f.getAbsolutePath();
+		this.size = f.length();
+		this.mtime = f.lastModified();
+		this.data = data;
+	}
+
+	// cacheDir may be null to skip the saved index
+	public static GcodeFile open(File f, File cacheDir) throws IOException {
+		if (f.length() > Integer.MAX_VALUE)
+			throw new IOException("file too large");
+		FileInputStream in = new FileInputStream(f);
+		GcodeFile g;
+		try {
+			FileChannel ch = in.getChannel();
+			g = new GcodeFile(f, ch.map(FileChannel.MapMode.READ_ONLY, 0,
+					ch.size()));
+		} finally {
+			in.close(); // the mapping stays valid
+		}
+
+		File idx = cacheDir == null ? null : g.indexFile(cacheDir);
+		if (idx == null || !g.loadIndex(idx)) {
+			g.buildIndex();
+			if (idx != null)
+				g.saveIndex(idx);
+		}
+		return g;
+	}
+
+	// True if this is still the contents of f
+	public boolean isCurrent(File f) {
+		return path.equals(f.getAbsolutePath()) && size == f.length()
+				&& mtime == f.lastModified();
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public int lineCount() {
+		return count;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	// A view of the whole file with its own position, for a reader thread
+	public ByteBuffer data() {
+		return data.duplicate();
+	}
+
+	// Offset of line n (0 based), without its terminator
+	public int lineStart(int n) {
+		return lineStart[n];
+	}
+
+	public int lineLength(int n) {
+		int start = lineStart[n], end = lineStart[n + 1];
+
+		while (end > start && isEol(data.get(end - 1)))
+			end--;
+		return end - start;
+	}
+
+	// Copies line n into dst, returning its length
+	public int getLine(int n, byte dst[], int off) {
+		int len = Math.min(lineLength(n), dst.length - off);
+
+		for (int i = 0; i < len; i++)
+			dst[off + i] = data.get(lineStart[n] + i);
+		return len;
+	}
+
+	// Line n as a String, read as Latin-1
+	public synchronized String getLine(int n) {
+		int len = lineLength(n), start = lineStart[n];
+
+		if (scratch.length < len)
+			scratch = new char[len];
+		for (int i = 0; i < len; i++)
+			scratch[i] = (char) (data.get(start + i) & 0xff);
+		return new String(scratch, 0, len);
+	}
+
+	private static boolean isEol(byte b) {
+		return b == '\n' || b == '\r';
+	}
+
+	// Lines end with \n, \r\n or a lone \r, like RandomAccessFile.readLine
+	private void buildIndex() {
+		long start = System.currentTimeMillis();
+		byte chunk[] = new byte[SCAN_CHUNK];
+		int lines[] = new int[1024];
+		int n = 0, end = data.limit();
+		boolean cr = false;
+
+		lines[n++] = 0;
+		data.position(0);
+		for (int base = 0; base < end; base += chunk.length) {
+			int len = Math.min(chunk.length, end - base);
+			data.get(chunk, 0, len);
+			for (int i = 0; i < len; i++) {
+				byte b = chunk[i];
+				if (cr && b != '\n')
+					lines = add(lines, n++, base + i);
+				cr = b == '\r';
+				if (b == '\n')
+					lines = add(lines, n++, base + i + 1);
+			}
+		}
+		if (cr)
+			lines = add(lines, n++, end);
+		data.position(0);
+		// A last line without a terminator still counts
+		if (lines[n - 1] != end)
+			lines = add(lines, n++, end);
+		lineStart = lines;
+		count = n - 1;
+		Log.d(TAG, "indexed " + count + " lines in "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	private static int[] add(int a[], int n, int v) {
+		if (n == a.length) {
+			int tmp[] = new int[2 * a.length];
+			System.arraycopy(a, 0, tmp, 0, n);
+			a = tmp;
+		}
+		a[n] = v;
+		return a;
+	}
+
+	private File indexFile(File cacheDir) {
+		return new File(cacheDir, "gcode-" + Integer.toHexString(path.hashCode())
+				+ ".idx");
+	}
+
+	// [magic, path, size, mtime, count, offsets...]
+	private boolean loadIndex(File idx) {
+		if (!idx.exists())
+			return false;
+		try {
+			RandomAccessFile f = new RandomAccessFile(idx, "r");
+			try {
+				if (f.readInt() != INDEX_MAGIC || !path.equals(f.readUTF())
+						|| f.readLong() != size || f.readLong() != mtime)
+					return false;
+				int n = f.readInt();
+				long pos = f.getFilePointer();
+				if (n < 0 || pos + 4L * (n + 1) != f.length())
+					return false;
+				IntBuffer ib = f.getChannel()
+						.map(FileChannel.MapMode.READ_ONLY, pos, 4L * (n + 1))
+						.asIntBuffer();
+				lineStart = new int[n + 1];
+				ib.get(lineStart);
+				count = n;
+			} finally {
+				f.close();
+			}
+		} catch (IOException e) {
+			Log.d(TAG, "ignoring line index: " + e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	private void saveIndex(File idx) {
+		try {
+			RandomAccessFile f = new RandomAccessFile(idx, "rw");
+			try {
+				f.setLength(0);
+				f.writeInt(INDEX_MAGIC);
+				f.writeUTF(path);
+				f.writeLong(size);
+				f.writeLong(mtime);
+				f.writeInt(count);
+				ByteBuffer bb = ByteBuffer.allocate(4 * (count + 1));
+				bb.asIntBuffer().put(lineStart, 0, count + 1);
+				f.getChannel().write(bb);
+			} finally {
+				f.close();
+			}
+		} catch (IOException e) {
+			Log.d(TAG, "can't save line index: " + e.getMessage());
+			idx.delete();
+		}
+	}
+}
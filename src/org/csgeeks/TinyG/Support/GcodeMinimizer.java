@@ -0,0 +1,137 @@
+package org.csgeeks.TinyG.Support;
+
+// Shrinks a line of G-code to the fewest bytes TinyG will read the same
+// way: comments and whitespace are dropped, and the number after each
+// word letter loses its plus sign, leading and trailing zeros ("X+01.500"
+// becomes "X1.5", "Y-0.250" becomes "Y-.25").  (MSG ...) comments are kept
+// since TinyG displays them.  A number with more significant digits than
+// we have room for is copied as written, less its whitespace.  Works on
+// bytes in caller supplied buffers and allocates nothing.
+public class GcodeMinimizer {
+	private final byte digits[] = new byte[32];
+	private long bytesIn, bytesOut;
+	private int out; // write position in dst
+
+	// Minimizes src[0..len) into dst, which must be at least len long.
+	// Returns the new length, 0 if nothing but comments was left.
+	public int minimize(byte src[], int len, byte dst[]) {
+		int i = 0;
+
+		out = 0;
+		while (i < len) {
+			byte c = src[i];
+			if (c == ';' || c == '%')
+				break; // rest of the line is a comment
+			if (c == '(') {
+				int end = i + 1;
+				while (end < len && src[end] != ')')
+					end++;
+				if (isMessage(src, i + 1, end)) {
+					for (int j = i; j < end && j < len; j++)
+						dst[out++] = src[j];
+					if (end < len)
+						dst[out++] = ')';
+				}
+				i = end + 1;
+				continue;
+			}
+			if (c == ' ' || c == '\t') {
+				i++;
+				continue;
+			}
+			dst[out++] = c;
+			i++;
+			if (isLetter(c))
+				i = number(src, i, len, dst);
+		}
+		bytesIn += len;
+		bytesOut += out;
+		return out;
+	}
+
+	public long bytesIn() {
+		return bytesIn;
+	}
+
+	public long bytesOut() {
+		return bytesOut;
+	}
+
+	public void resetCounts() {
+		bytesIn = bytesOut = 0;
+	}
+
+	private static boolean isLetter(byte c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+	}
+
+	private static boolean isDigit(byte c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isMessage(byte src[], int from, int end) {
+		while (from < end && (src[from] == ' ' || src[from] == '\t'))
+			from++;
+		return end - from >= 3 && (src[from] | 0x20) == 'm'
+				&& (src[from + 1] | 0x20) == 's'
+				&& (src[from + 2] | 0x20) == 'g';
+	}
+
+	// Writes the shortest form of the number starting at src[i] to dst and
+	// returns the index past it, or i if there's no number there.
+	private int number(byte src[], int i, int len, byte dst[]) {
+		int j = i, ndig = 0, point = -1, zeros = 0;
+		boolean neg = false, any = false, overflow = false;
+
+		while (j < len && (src[j] == ' ' || src[j] == '\t'))
+			j++;
+		if (j < len && (src[j] == '-' || src[j] == '+')) {
+			neg = src[j] == '-';
+			j++;
+		}
+		for (; j < len; j++) {
+			byte c = src[j];
+			if (isDigit(c)) {
+				any = true;
+				if (ndig == 0 && c == '0' && point < 0)
+					continue; // leading zero
+				if (c == '0' && point >= 0) {
+					zeros++; // trailing, unless a digit follows
+					continue;
+				}
+				if (ndig + zeros >= digits.length) {
+					overflow = true;
+					continue;
+				}
+				for (; zeros > 0; zeros--)
+					digits[ndig++] = '0';
+				digits[ndig++] = c;
+			} else if (c == '.' && point < 0)
+				point = ndig;
+			else if (c != ' ' && c != '\t')
+				break;
+		}
+		if (!any)
+			return i;
+		if (overflow) {
+			for (int k = i; k < j; k++)
+				if (src[k] != ' ' && src[k] != '\t')
+					dst[out++] = src[k];
+			return j;
+		}
+		if (point < 0)
+			point = ndig;
+		if (ndig == 0) {
+			dst[out++] = '0';
+		} else {
+			if (neg)
+				dst[out++] = '-';
+			for (int k = 0; k < ndig; k++) {
+				if (k == point)
+					dst[out++] = '.';
+				dst[out++] = digits[k];
+			}
+		}
+		return j;
+	}
+}
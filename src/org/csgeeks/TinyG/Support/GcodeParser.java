@@ -0,0 +1,126 @@
+package org.csgeeks.TinyG.Support;
+
+// Walks the words of one line of G-code held in a byte array.  Each call
+// to next() moves to the following letter/number pair, skipping spaces
+// and comments.  Numbers are parsed by hand, so scanning a line allocates
+// nothing.
+public class GcodeParser {
+	private byte line[];
+	private int pos, end;
+	private char letter;
+	private double value;
+	private boolean comment, blockDelete, bad;
+
+	public void reset(byte line[], int off, int len) {
+		this.line = line;
+		pos = off;
+		end = off + len;
+		comment = bad = false;
+		while (pos < end && isSpace(line[pos]))
+			pos++;
+		blockDelete = pos < end && line[pos] == '/';
+		if (blockDelete)
+			pos++;
+	}
+
+	// Moves to the next word, false at the end of the line
+	public boolean next() {
+		while (pos < end) {
+			byte c = line[pos];
+			if (isSpace(c)) {
+				pos++;
+			} else if (c == '(') {
+				comment = true;
+				while (pos < end && line[pos] != ')')
+					pos++;
+				pos++;
+			} else if (c == ';' || c == '%') {
+				comment = true;
+				pos = end;
+			} else if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')) {
+				letter = (char) (c & ~0x20);
+				pos++;
+				if (!number())
+					bad = true;
+				return true;
+			} else {
+				bad = true; // something we don't understand
+				pos++;
+			}
+		}
+		return false;
+	}
+
+	// Upper case letter of the current word
+	public char letter() {
+		return letter;
+	}
+
+	// NaN if the letter wasn't followed by a number
+	public double value() {
+		return value;
+	}
+
+	// The value of a G or M word times ten, so G28.3 is 283
+	public int code() {
+		return (int) Math.round(value * 10);
+	}
+
+	public boolean hasComment() {
+		return comment;
+	}
+
+	public boolean isBlockDelete() {
+		return blockDelete;
+	}
+
+	// True if anything on the line so far wasn't a plain word
+	public boolean isBad() {
+		return bad;
+	}
+
+	private static boolean isSpace(byte c) {
+		return c == ' ' || c == '\t';
+	}
+
+	private boolean number() {
+		long mant = 0;
+		int scale = 0, digits = 0;
+		boolean neg = false, point = false;
+
+		while (pos < end && isSpace(line[pos]))
+			pos++;
+		if (pos < end && (line[pos] == '-' || line[pos] == '+'))
+			neg = line[pos++] == '-';
+		for (; pos < end; pos++) {
+			byte c = line[pos];
+			if (c >= '0' && c <= '9') {
+				if (mant < 100000000000000000L) {
+					mant = mant * 10 + (c - '0');
+					if (point)
+						scale++;
+				} else if (!point)
+					scale--;
+				digits++;
+			} else if (c == '.' && !point)
+				point = true;
+			else
+				break;
+		}
+		if (digits == 0) {
+			value = Double.NaN;
+			return false;
+		}
+		value = scale >= 0 ? mant / pow10(scale) : mant * pow10(-scale);
+		if (neg)
+			value = -value;
+		return true;
+	}
+
+	private static double pow10(int n) {
+		double p = 1;
+		while (n-- > 0)
+			p *= 10;
+		return p;
+	}
+}
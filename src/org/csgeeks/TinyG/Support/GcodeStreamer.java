@@ -0,0 +1,433 @@
+package org.csgeeks.TinyG.Support;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.Log;
+
+// Feeds a G-code file to the command queue one line at a time, only when
+// the queue processor asks for more.  Nothing is read ahead beyond the
+// next line, so starting a job is instant and memory use is constant
+// whatever the size of the file.
+//
+// Each line is renumbered with its line number in the file, the way the
+// old FileFragment did it with replaceFirst("^(/?)[nN](\\d{1,5})"), so the
+// line in status reports matches the line in the file.  Blank lines are
+// skipped but still counted.  With minimizing on, lines also go through a
+// GcodeMinimizer first, and lines that were only comments are skipped too.
+// A ToolpathCompactor can then merge runs of short moves; a merged line
+// carries the number of the last line in it.
+//
+// The finished lines of a job that runs to the end are kept in a
+// GcodeCache, and a later run of the same file with the same options is
+// sent straight from there.  A job resumed partway through is sent from
+// the cache too, starting at its line, if a run without compaction left
+// an entry; otherwise it skips straight to its first line in the file.
+//
+// Opening a job can mean hashing the whole file for the cache or searching
+// its index, so open() is meant for a worker thread.  prepare() claims the
+// streamer for the job beforehand and start() hands the opened file over,
+// unless the job was cancelled in between.
+class GcodeStreamer {
+	private static final String TAG = "TinyG";
+	private final byte prefix[], suffix[];
+	// Grown if the file has longer lines
+	private byte raw[] = new byte[256];
+	private byte min[] = new byte[256];
+	private byte line[] = new byte[256 + 16];
+	private byte comp[] = new byte[256];
+	private final GcodeMinimizer minimizer = new GcodeMinimizer();
+	private boolean minimize;
+	private ToolpathCompactor compactor;
+	private boolean eof;
+	private InputStream in;
+	private GcodeCache.Reader cached;
+	private GcodeCache.Writer caching;
+	private int lineNum, outNum;
+	private int pending = -1; // byte read past the end of the last line
+	private boolean paused;
+	private int written; // length of a line read but not yet queued
+	// Bumped by every cancel, so a job being opened knows it was dropped
+	private int job;
+	private boolean starting;
+
+	// What a job reads from, as open() found it
+	static final class Source {
+		private final boolean minimize;
+		private final ToolpathCompactor compactor;
+		private final int line;
+		private InputStream in;
+		private GcodeCache.Reader cached;
+		private GcodeCache.Writer caching;
+
+		private Source(boolean minimize, ToolpathCompactor compactor, int line) {
+			this.minimize = minimize;
+			this.compactor = compactor;
+			this.line = line;
+		}
+
+		void close() {
+			if (caching != null)
+				caching.abort();
+			if (cached != null)
+				cached.close();
+			if (in == null)
+				return;
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	GcodeStreamer(String prefix, String suffix) {
+		this.prefix = prefix.getBytes();
+		this.suffix = suffix.getBytes();
+	}
+
+	// With minimize, lines go through a GcodeMinimizer.  A tolerance in mm
+	// above 0 merges short moves with a ToolpathCompactor.  The job starts
+	// at line (1 based), which begins offset bytes into the file; the
+	// compactor is left out then, as it would start without knowing the
+	// modes the lines before set.  cache may be null.
+	//
+	// Touches nothing of the streamer's, so it can run on any thread.
+	static Source open(File src, boolean minimize, double tolerance,
+			GcodeCache cache, int line, long offset) throws IOException {
+		Source s = new Source(minimize, tolerance > 0 && line <= 1
+				? new ToolpathCompactor(tolerance) : null, line);
+		// What the lines will go through, which is what the cache is keyed by
+		String options = "m" + minimize + " t"
+				+ (s.compactor != null ? tolerance : 0.0);
+		if (line > 1 && cache != null
+				&& (s.cached = openAt(cache, src, options, line)) != null) {
+			Log.d(TAG, "resuming " + src + " from cache");
+		} else if (line > 1) {
+			FileInputStream f = new FileInputStream(src);
+			long left = offset;
+			while (left > 0) {
+				long n = f.skip(left);
+				if (n <= 0) {
+					f.close();
+					throw new IOException("can't seek to line " + line);
+				}
+				left -= n;
+			}
+			s.in = new BufferedInputStream(f, 8192);
+		} else if (cache != null
+				&& (s.cached = cache.open(src, options)) != null) {
+			Log.d(TAG, "sending " + src + " from cache");
+		} else {
+			InputStream f = new FileInputStream(src);
+			if (cache != null
+					&& (s.caching = cache.create(src, options)) != null)
+				f = s.caching.source(f);
+			s.in = new BufferedInputStream(f, 8192);
+		}
+		return s;
+	}
+
+	// Cancels the current job and claims the streamer for the next one.
+	// Returns the ticket to start it with.  isActive() is true from here
+	// on, until the job ends or is cancelled.
+	synchronized int prepare() {
+		cancel();
+		starting = true;
+		return job;
+	}
+
+	// Starts streaming from s if nothing cancelled the job since prepare()
+	// gave out ticket.  Otherwise s is closed and it returns false.
+	synchronized boolean start(Source s, int ticket) {
+		if (ticket != job) {
+			s.close();
+			return false;
+		}
+		starting = false;
+		minimize = s.minimize;
+		compactor = s.compactor;
+		in = s.in;
+		cached = s.cached;
+		caching = s.caching;
+		lineNum = Math.max(0, s.line - 1);
+		pending = -1;
+		written = 0;
+		paused = false;
+		eof = false;
+		minimizer.resetCounts();
+		return true;
+	}
+
+	// Nothing cancelled the job with ticket yet
+	synchronized boolean isCurrent(int ticket) {
+		return ticket == job;
+	}
+
+	// The job with ticket couldn't be opened
+	synchronized void abandon(int ticket) {
+		if (ticket == job)
+			starting = false;
+	}
+
+	// The cache entry positioned at line, or null
+	private static GcodeCache.Reader openAt(GcodeCache cache, File src,
+			String options, int line) {
+		GcodeCache.Reader r = cache.open(src, options);
+
+		if (r == null)
+			return null;
+		try {
+			if (r.seek(line))
+				return r;
+		} catch (IOException e) {
+			Log.d(TAG, "can't resume from cache: " + e.getMessage());
+		}
+		r.close();
+		return null;
+	}
+
+	// Lines of the current or last job that had something on them, and
+	// how many were sent after compaction
+	synchronized long linesRead() {
+		return compactor == null ? 0 : compactor.linesIn();
+	}
+
+	synchronized long linesSent() {
+		return compactor == null ? 0 : compactor.linesOut();
+	}
+
+	// Bytes of G-code read from the file, and what was left of them after
+	// minimizing, for the current or last job
+	synchronized long bytesRead() {
+		return minimizer.bytesIn();
+	}
+
+	synchronized long bytesMinimized() {
+		return minimizer.bytesOut();
+	}
+
+	synchronized void cancel() {
+		job++;
+		starting = false;
+		written = 0;
+		if (caching != null) {
+			caching.abort();
+			caching = null;
+		}
+		if (cached != null) {
+			cached.close();
+			cached = null;
+		}
+		if (in == null)
+			return;
+		try {
+			in.close();
+		} catch (IOException e) {
+		}
+		in = null;
+	}
+
+	synchronized void pause() {
+		paused = true;
+	}
+
+	synchronized void resume() {
+		paused = false;
+	}
+
+	synchronized boolean isActive() {
+		return starting || in != null || cached != null;
+	}
+
+	synchronized boolean isPaused() {
+		return paused;
+	}
+
+	// Line number in the file of the last line queued
+	synchronized int lineNumber() {
+		return lineNum;
+	}
+
+	// Moves the next line of the file into the queue.  Returns false if
+	// there's nothing to stream, we're paused, or the queue has no room.
+	synchronized boolean feed(CommandRing queue) {
+		if ((in == null && cached == null) || paused)
+			return false;
+		try {
+			if (written == 0 && (written = nextLine()) < 0) {
+				Log.d(TAG, "streamed " + lineNum + " lines");
+				if (caching != null) {
+					caching.commit();
+					caching = null;
+				}
+				if (minimize)
+					Log.d(TAG, "minimized " + minimizer.bytesIn() + " bytes to "
+							+ minimizer.bytesOut() + ", saved "
+							+ (minimizer.bytesIn() - minimizer.bytesOut()));
+				if (compactor != null)
+					Log.d(TAG, "compacted " + compactor.linesIn() + " lines to "
+							+ compactor.linesOut());
+				cancel();
+				return false;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "error reading file: " + e.getMessage());
+			cancel();
+			return false;
+		}
+		int length = prefix.length + written + suffix.length;
+		// Most likely a file that isn't G-code.  Sending it would only get
+		// an error back, so the job stops here.
+		if (length > queue.maxLine()) {
+			Log.e(TAG, "line " + lineNum + " is " + length
+					+ " bytes, too long to send; stopping the job");
+			cancel();
+			return false;
+		}
+		if (queue.tryBeginLine(length) < 0)
+			return false;
+		for (int i = 0; i < prefix.length; i++)
+			queue.append(prefix[i]);
+		for (int i = 0; i < written; i++)
+			queue.append(line[i]);
+		for (int i = 0; i < suffix.length; i++)
+			queue.append(suffix[i]);
+		queue.endLine();
+		written = 0;
+		return true;
+	}
+
+	// The next line to send into line[], returning its length or -1 at the
+	// end of the file
+	private int nextLine() throws IOException {
+		if (cached != null) {
+			int len = cached.next();
+			if (len < 0)
+				return -1;
+			if (line.length < len)
+				line = new byte[len];
+			System.arraycopy(cached.line(), 0, line, 0, len);
+			lineNum = cached.lineNumber();
+			return len;
+		}
+
+		int len = process();
+		if (len >= 0 && caching != null) {
+			try {
+				caching.line(outNum, line, len);
+			} catch (IOException e) {
+				Log.d(TAG, "not caching: " + e.getMessage());
+				caching.abort();
+				caching = null;
+			}
+		}
+		return len;
+	}
+
+	// Reads and renumbers the next non-blank line into line[], returning
+	// its length or -1 at the end of the file.
+	private int process() throws IOException {
+		int n, p = 0, len, num;
+		byte src[];
+
+		while (true) {
+			if (compactor != null && compactor.hasOutput()) {
+				if (comp.length < compactor.nextLength())
+					comp = new byte[compactor.nextLength()];
+				n = compactor.take(comp);
+				num = compactor.lineNumber();
+				src = comp;
+				break;
+			}
+			if ((n = readRaw()) < 0) {
+				if (compactor == null || eof)
+					return -1;
+				eof = true;
+				compactor.finish();
+				continue;
+			}
+			lineNum++;
+			src = raw;
+			if (minimize && n > 0) {
+				if (min.length < n)
+					min = new byte[raw.length];
+				n = minimizer.minimize(raw, n, min);
+				src = min;
+			}
+			if (n == 0)
+				continue;
+			if (compactor == null) {
+				num = lineNum;
+				break;
+			}
+			compactor.push(src, n, lineNum);
+		}
+		outNum = num;
+		if (line.length < n + 16)
+			line = new byte[n + 16];
+
+		// "/" is block delete and stays in front of the line number
+		if (src[0] == '/')
+			p = 1;
+		if (p + 1 < n && (src[p] == 'N' || src[p] == 'n') && isDigit(src[p + 1])) {
+			int e = p + 1;
+			while (e < n && e < p + 6 && isDigit(src[e]))
+				e++;
+			System.arraycopy(src, 0, line, 0, p);
+			len = putNumber(p, num);
+			System.arraycopy(src, e, line, len, n - e);
+			return len + n - e;
+		}
+		// No line number to start with, so add one
+		len = putNumber(0, num);
+		if (!minimize)
+			line[len++] = ' ';
+		System.arraycopy(src, 0, line, len, n);
+		return len + n;
+	}
+
+	// One line without its terminator into raw[], -1 at the end of file
+	private int readRaw() throws IOException {
+		int c = pending >= 0 ? pending : in.read(), n = 0;
+
+		pending = -1;
+		if (c < 0)
+			return -1;
+		while (c >= 0 && c != '\n' && c != '\r') {
+			if (n == raw.length) {
+				byte tmp[] = new byte[2 * raw.length];
+				System.arraycopy(raw, 0, tmp, 0, n);
+				raw = tmp;
+			}
+			raw[n++] = (byte) (c < 0x80 ? c : '?');
+			c = in.read();
+		}
+		if (c == '\r' && (c = in.read()) != '\n')
+			pending = c;
+		return n;
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	private int putNumber(int off, int n) {
+		int start;
+
+		line[off++] = 'N';
+		start = off;
+		do {
+			line[off++] = (byte) ('0' + n % 10);
+			n /= 10;
+		} while (n > 0);
+		for (int i = start, j = off - 1; i < j; i++, j--) {
+			byte t = line[i];
+			line[i] = line[j];
+			line[j] = t;
+		}
+		return off;
+	}
+}
@@ -0,0 +1,369 @@
+package org.csgeeks.TinyG.Support;
+
+import java.nio.ByteBuffer;
+
+import android.os.Bundle;
+import android.util.Log;
+
+// Estimates how long a G-code file takes to run by simulating TinyG's
+// planner: every move gets constant-jerk S-curve accelerations limited by
+// the axis "jm" values, cruises at the feed rate capped by "fr" (or "vm"
+// for rapids), and corners at the speed junction deviation "jd" allows.
+// Like TinyG, the planner only looks PLANNER_BUFFERS moves ahead and
+// assumes the last of those ends at a stop.
+//
+// The time from the start of the file is recorded every CHECKPOINT lines,
+// so the time left from any "line" in a status report is a lookup.
+public class JobEstimator {
+	private static final String TAG = "TinyG";
+	public static final int PLANNER_BUFFERS = 28;
+	private static final int CHECKPOINT = 16;
+	private static final int X = 0, Y = 1, Z = 2;
+	private static final double EPSILON = 1e-9;
+
+	// Per axis, in mm and minutes
+	private final double vm[] = { 16000, 16000, 1000 };
+	private final double fr[] = { 16000, 16000, 1000 };
+	private final double jm[] = { 5e9, 5e9, 5e9 };
+	private final double jd[] = { 0.05, 0.05, 0.05 };
+	private double junctionAcceleration = 100000; // mm/min^2
+
+	// Planned moves not yet timed, oldest first
+	private final double len[] = new double[PLANNER_BUFFERS];
+	private final double cruise[] = new double[PLANNER_BUFFERS];
+	private final double jerk[] = new double[PLANNER_BUFFERS];
+	// Speed change possible over the whole move, starting from rest
+	private final double reach[] = new double[PLANNER_BUFFERS];
+	private final double junction[] = new double[PLANNER_BUFFERS]; // entry limit
+	private final int moveLine[] = new int[PLANNER_BUFFERS];
+	private int head, count;
+	private double entry; // entry velocity of the oldest move
+	private double lastX, lastY, lastZ; // direction at the end of the last move
+	private boolean haveLast;
+
+	// cumulative[c] is the time in seconds of every move up to line
+	// c * CHECKPOINT
+	private float cumulative[] = new float[1];
+	private int filled, lineCount;
+	private double elapsed; // minutes
+	private long moves;
+
+	// Reads vm, fr, jm and jd from the X, Y and Z axis bundles if they are
+	// there.  TinyG reports jm in millions.
+	public void setAxis(int axis, Bundle b) {
+		if (axis < 0 || axis > 2 || b == null)
+			return;
+		if (b.containsKey("vm"))
+			vm[axis] = b.getFloat("vm");
+		if (b.containsKey("fr"))
+			fr[axis] = b.getFloat("fr");
+		if (b.containsKey("jm")) {
+			double j = b.getFloat("jm");
+			jm[axis] = j < 1e6 ? j * 1e6 : j;
+		}
+		if (b.containsKey("jd"))
+			jd[axis] = b.getFloat("jd");
+	}
+
+	// Reads "ja" from the system settings
+	public void setSystem(Bundle b) {
+		if (b != null && b.containsKey("ja") && b.getFloat("ja") > 0)
+			junctionAcceleration = b.getFloat("ja");
+	}
+
+	// Runs through the whole file.  Returns the total time in seconds.
+	public double estimate(GcodeFile file) {
+		long t0 = System.currentTimeMillis();
+		GcodeParser p = new GcodeParser();
+		Simulator sim = new Simulator();
+		ByteBuffer data = file.data();
+		int lines = file.lineCount();
+		byte buf[] = new byte[64 * 1024];
+		int base = 0, have = 0;
+
+		cumulative = new float[lines / CHECKPOINT + 2];
+		lineCount = lines;
+		filled = 0;
+		elapsed = 0;
+		head = count = 0;
+		entry = 0;
+		haveLast = false;
+		moves = 0;
+		for (int l = 0; l < lines; l++) {
+			int start = file.lineStart(l), n = file.lineLength(l);
+			if (start + n > base + have) {
+				// Refill with as many whole lines as fit
+				base = start;
+				have = Math.min(Math.max(buf.length, n), data.limit() - base);
+				if (buf.length < have)
+					buf = new byte[have];
+				data.position(base);
+				data.get(buf, 0, have);
+			}
+			if (n > 0)
+				sim.line(p, buf, start - base, n, l + 1);
+		}
+		drain();
+		while (filled + 1 < cumulative.length)
+			cumulative[++filled] = (float) (elapsed * 60);
+		long ms = System.currentTimeMillis() - t0;
+		Log.d(TAG, "estimated " + moves + " moves in " + ms + "ms: "
+				+ (long) (elapsed * 60) + "s");
+		return elapsed * 60;
+	}
+
+	public double totalSeconds() {
+		return cumulative[cumulative.length - 1];
+	}
+
+	// Seconds left once TinyG reports it's on this line of the file.  To
+	// within CHECKPOINT lines, apart from after the last, which is 0.
+	public double remainingSeconds(int line) {
+		if (line > lineCount)
+			return 0;
+		int c = Math.max(0, Math.min((line - 1) / CHECKPOINT,
+				cumulative.length - 1));
+		return Math.max(0, totalSeconds() - cumulative[c]);
+	}
+
+	// Turns one line into a move
+	private class Simulator {
+		private final double pos[] = new double[3];
+		private final double target[] = new double[3];
+		private boolean absolute = true, inches;
+		private int motion = -1, plane = 17;
+		private double feed; // mm/min
+
+		void line(GcodeParser p, byte buf[], int off, int n, int lineNum) {
+			boolean any = false, lose = false;
+			double i = 0, j = 0, dwell = -1;
+
+			p.reset(buf, off, n);
+			target[X] = pos[X];
+			target[Y] = pos[Y];
+			target[Z] = pos[Z];
+			// Modes first; they apply to the whole line
+			while (p.next()) {
+				if (p.letter() != 'G')
+					continue;
+				int code = p.code(), g = code / 10;
+				if (code == 0 || code == 10 || code == 20 || code == 30)
+					motion = g;
+				else if (code == 170 || code == 180 || code == 190)
+					plane = g;
+				else if (code == 200 || code == 210)
+					inches = code == 200;
+				else if (code == 900 || code == 910)
+					absolute = code == 900;
+				else if (code == 40)
+					dwell = 0;
+				else if (code == 100)
+					return; // offsets, not a move
+				else if (g == 28 || g == 30 || g == 38 || g == 53 || g == 92)
+					lose = true;
+			}
+			double scale = inches ? 25.4 : 1;
+			p.reset(buf, off, n);
+			while (p.next()) {
+				double v = p.value();
+				if (Double.isNaN(v))
+					continue;
+				switch (p.letter()) {
+				case 'X':
+					target[X] = absolute ? v * scale : pos[X] + v * scale;
+					any = true;
+					break;
+				case 'Y':
+					target[Y] = absolute ? v * scale : pos[Y] + v * scale;
+					any = true;
+					break;
+				case 'Z':
+					target[Z] = absolute ? v * scale : pos[Z] + v * scale;
+					any = true;
+					break;
+				case 'I':
+					i = v * scale;
+					break;
+				case 'J':
+					j = v * scale;
+					break;
+				case 'P':
+					if (dwell == 0)
+						dwell = v;
+					break;
+				case 'F':
+					feed = v * scale;
+					break;
+				}
+			}
+			if (dwell >= 0) {
+				// TinyG comes to a stop for a dwell
+				drain();
+				elapsed += dwell / 60;
+				return;
+			}
+			if (!any)
+				return;
+			if (!lose && motion >= 0) {
+				if ((motion == 2 || motion == 3) && plane == 17)
+					arc(i, j, motion == 2, lineNum);
+				else
+					straight(lineNum);
+			}
+			// Homing and friends go somewhere we can't follow; take the
+			// words as where we end up, which is right for G92
+			pos[X] = target[X];
+			pos[Y] = target[Y];
+			pos[Z] = target[Z];
+		}
+
+		private void straight(int lineNum) {
+			double dx = target[X] - pos[X], dy = target[Y] - pos[Y], dz = target[Z]
+					- pos[Z];
+			double l = Math.sqrt(dx * dx + dy * dy + dz * dz);
+			if (l < EPSILON)
+				return;
+			add(l, dx / l, dy / l, dz / l, dx / l, dy / l, dz / l, motion == 0,
+					lineNum);
+		}
+
+		// Arcs are timed as one move of their length, with the tangents at
+		// each end used for the corners
+		private void arc(double i, double j, boolean cw, int lineNum) {
+			double cx = pos[X] + i, cy = pos[Y] + j;
+			double r = Math.hypot(i, j);
+			double a0 = Math.atan2(pos[Y] - cy, pos[X] - cx);
+			double a1 = Math.atan2(target[Y] - cy, target[X] - cx);
+			double sweep = cw ? a0 - a1 : a1 - a0;
+			while (sweep <= EPSILON)
+				sweep += 2 * Math.PI;
+			double planar = r * sweep, dz = target[Z] - pos[Z];
+			double l = Math.sqrt(planar * planar + dz * dz);
+			if (l < EPSILON)
+				return;
+			double s = cw ? -1 : 1, kz = dz / l, kp = planar / l;
+			add(l, -Math.sin(a0) * s * kp, Math.cos(a0) * s * kp, kz,
+					-Math.sin(a1) * s * kp, Math.cos(a1) * s * kp, kz, false,
+					lineNum);
+		}
+
+		private void add(double l, double sx, double sy, double sz, double ex,
+				double ey, double ez, boolean rapid, int lineNum) {
+			double v = Double.MAX_VALUE, jk = Double.MAX_VALUE;
+			double u[] = { Math.abs(sx), Math.abs(sy), Math.abs(sz) };
+
+			for (int a = 0; a < 3; a++) {
+				if (u[a] < EPSILON)
+					continue;
+				v = Math.min(v, (rapid ? vm[a] : fr[a]) / u[a]);
+				jk = Math.min(jk, jm[a] / u[a]);
+			}
+			if (!rapid && feed > 0)
+				v = Math.min(v, feed);
+			plan(l, v, jk, sx, sy, sz, ex, ey, ez, lineNum);
+		}
+	}
+
+	private void plan(double l, double v, double jk, double sx, double sy,
+			double sz, double ex, double ey, double ez, int lineNum) {
+		double vj = 0;
+
+		if (haveLast) {
+			// Junction deviation, as in TinyG's planner
+			double cos = -(lastX * sx + lastY * sy + lastZ * sz);
+			if (cos < -0.99999)
+				vj = Double.MAX_VALUE; // straight on
+			else if (cos < 0.99999) {
+				double a = Math.sqrt(lastX * lastX * jd[X] + lastY * lastY * jd[Y]
+						+ lastZ * lastZ * jd[Z]);
+				double b = Math.sqrt(sx * sx * jd[X] + sy * sy * jd[Y] + sz * sz
+						* jd[Z]);
+				double delta = (a + b) / 2;
+				double sin = Math.sqrt(0.5 * (1 - cos));
+				double radius = delta * sin / (1 - sin);
+				vj = Math.sqrt(radius * junctionAcceleration);
+			}
+		}
+		lastX = ex;
+		lastY = ey;
+		lastZ = ez;
+		haveLast = true;
+
+		if (count == PLANNER_BUFFERS)
+			retire();
+		int k = (head + count) % PLANNER_BUFFERS;
+		len[k] = l;
+		cruise[k] = v;
+		jerk[k] = jk;
+		reach[k] = Math.pow(l, 2.0 / 3) * Math.cbrt(jk);
+		junction[k] = vj;
+		moveLine[k] = lineNum;
+		count++;
+		moves++;
+	}
+
+	// Times the oldest move.  Its exit speed is the most it can be while
+	// every move after it in the window can still stop by the window's end.
+	// Speed gained over a move is reach[], the same shortcut TinyG's
+	// mp_get_target_velocity() takes, so the pass is only adds and compares.
+	private void retire() {
+		double exit = 0; // the newest move ends at a stop
+
+		for (int n = count - 1; n >= 1; n--) {
+			int k = (head + n) % PLANNER_BUFFERS;
+			int prev = (head + n - 1) % PLANNER_BUFFERS;
+			double entryMax = Math.min(junction[k], Math.min(cruise[k],
+					cruise[prev]));
+			exit = Math.min(entryMax, exit + reach[k]);
+		}
+		int k = head;
+		double v0 = Math.min(entry, cruise[k]);
+		double v1 = count > 1 ? Math.min(exit, v0 + reach[k]) : 0;
+		// Checkpoints before this move's line are done
+		while (filled + 1 < cumulative.length
+				&& (filled + 1) * CHECKPOINT < moveLine[k])
+			cumulative[++filled] = (float) (elapsed * 60);
+		elapsed += moveTime(v0, cruise[k], v1, len[k], jerk[k]);
+		entry = v1;
+		head = (head + 1) % PLANNER_BUFFERS;
+		count--;
+	}
+
+	private void drain() {
+		while (count > 0)
+			retire();
+		entry = 0;
+		haveLast = false;
+	}
+
+	private static double rampLength(double v0, double v1, double j) {
+		double d = Math.abs(v1 - v0);
+		return (v0 + v1) * Math.sqrt(d / j);
+	}
+
+	private static double rampTime(double v0, double v1, double j) {
+		return 2 * Math.sqrt(Math.abs(v1 - v0) / j);
+	}
+
+	// Minutes for a move: ramp up, cruise, ramp down, with the peak speed
+	// lowered when the move is too short to reach its cruise speed
+	private static double moveTime(double v0, double vc, double v1, double l,
+			double j) {
+		vc = Math.max(vc, Math.max(v0, v1));
+		double head = rampLength(v0, vc, j), tail = rampLength(vc, v1, j);
+		if (head + tail <= l)
+			return rampTime(v0, vc, j) + rampTime(vc, v1, j) + (l - head - tail)
+					/ vc;
+		double lo = Math.max(v0, v1), hi = vc;
+		for (int it = 0; it < 16; it++) {
+			double mid = (lo + hi) / 2;
+			if (rampLength(v0, mid, j) + rampLength(mid, v1, j) > l)
+				hi = mid;
+			else
+				lo = mid;
+		}
+		double used = rampLength(v0, lo, j) + rampLength(lo, v1, j);
+		return rampTime(v0, lo, j) + rampTime(lo, v1, j)
+				+ (lo > 0 ? Math.max(0, l - used) / lo : 0);
+	}
+}
@@ -0,0 +1,389 @@
+package org.csgeeks.TinyG.Support;
+
+// A pull tokenizer for the JSON TinyG sends, reading straight from the
+// bytes of a line.  Nothing is allocated while tokenizing: keys are
+// compared in place with keyIs(), and numbers are parsed in place.  Only
+// stringValue() makes an object, for the rare string settings.
+//
+// Commas and colons are checked and consumed along the way, so a caller
+// sees keys and values in order and skips what it doesn't want with
+// skipValue().  Anything that isn't well formed JSON (a missing or extra
+// comma, a value where a key belongs, a bad number or escape, an object
+// left open) comes back as ERROR, and so does every token after it.
+class JsonTokenizer {
+	static final int END = 0, ERROR = 1, BEGIN_OBJECT = 2, END_OBJECT = 3,
+			BEGIN_ARRAY = 4, END_ARRAY = 5, KEY = 6, STRING = 7, NUMBER = 8,
+			TRUE = 9, FALSE = 10, NULL = 11;
+	private static final double POW10[] = { 1, 1e1, 1e2, 1e3, 1e4, 1e5,
+			1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17,
+			1e18 };
+	// Objects and arrays nest at most this deep
+	private static final int MAX_DEPTH = 64;
+
+	private byte buf[];
+	private int pos, end;
+	// The last token: where it began, and its bytes, without quotes for
+	// keys and strings
+	private int at, start, stop;
+	// A key or string with escapes in it, decoded into text
+	private boolean escaped;
+	private char text[] = new char[64];
+	private int textLength;
+	// Bit i is set if nesting level i is an object rather than an array
+	private long objects;
+	private int depth;
+	// What the last token was, which decides what may come next
+	private boolean afterValue, afterKey, afterComma, failed;
+
+	void reset(byte b[], int off, int len) {
+		buf = b;
+		pos = off;
+		end = off + len;
+		forget();
+	}
+
+	private void forget() {
+		objects = 0;
+		depth = 0;
+		afterValue = afterKey = afterComma = failed = false;
+	}
+
+	int position() {
+		return at;
+	}
+
+	// Goes back to a position from position(), to read a value again.  The
+	// value is read as if it stood on its own.
+	void seek(int p) {
+		pos = p;
+		forget();
+	}
+
+	int next() {
+		if (failed)
+			return ERROR;
+		while (pos < end) {
+			byte c = buf[pos];
+			if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+				pos++;
+				continue;
+			}
+			at = start = pos;
+			escaped = false;
+			if (c == ',') {
+				if (!afterValue || depth == 0)
+					return fail();
+				pos++;
+				afterValue = false;
+				afterComma = true;
+				continue;
+			}
+			if (c == '}' || c == ']') {
+				if (depth == 0 || afterKey || afterComma
+						|| inObject() != (c == '}'))
+					return fail();
+				depth--;
+				pos++;
+				return value(c == '}' ? END_OBJECT : END_ARRAY);
+			}
+			// Two values with no comma between
+			if (afterValue)
+				return fail();
+			boolean wantKey = inObject() && !afterKey;
+			if (c == '"')
+				return string(wantKey);
+			if (wantKey)
+				return fail();
+			switch (c) {
+			case '{':
+			case '[':
+				if (depth == MAX_DEPTH)
+					return fail();
+				if (c == '{')
+					objects |= 1L << depth;
+				else
+					objects &= ~(1L << depth);
+				depth++;
+				pos++;
+				afterKey = afterComma = false;
+				return c == '{' ? BEGIN_OBJECT : BEGIN_ARRAY;
+			case 't':
+				return word("true", TRUE);
+			case 'f':
+				return word("false", FALSE);
+			case 'n':
+				return word("null", NULL);
+			default:
+				if (c == '-' || (c >= '0' && c <= '9'))
+					return number();
+				return fail();
+			}
+		}
+		return depth == 0 ? END : fail();
+	}
+
+	private boolean inObject() {
+		return depth > 0 && (objects & (1L << (depth - 1))) != 0;
+	}
+
+	private int fail() {
+		failed = true;
+		return ERROR;
+	}
+
+	// A whole value has been read
+	private int value(int token) {
+		afterValue = true;
+		afterKey = afterComma = false;
+		return token;
+	}
+
+	// A key is a string followed by a colon, and comes wherever an object
+	// wants its next member
+	private int string(boolean wantKey) {
+		int p = pos + 1;
+
+		while (p < end && buf[p] != '"') {
+			if (buf[p] == '\\') {
+				escaped = true;
+				p += 2;
+			} else if ((buf[p] & 0xff) < 0x20) {
+				return fail();
+			} else {
+				p++;
+			}
+		}
+		if (p >= end)
+			return fail();
+		start = pos + 1;
+		stop = p;
+		pos = p + 1;
+		if (escaped && !unescape())
+			return fail();
+		while (p + 1 < end && (buf[p + 1] == ' ' || buf[p + 1] == '\t'))
+			p++;
+		boolean colon = p + 1 < end && buf[p + 1] == ':';
+		if (colon != wantKey)
+			return fail();
+		if (!wantKey)
+			return value(STRING);
+		pos = p + 2;
+		afterKey = true;
+		afterComma = false;
+		return KEY;
+	}
+
+	private boolean unescape() {
+		int n = 0;
+
+		if (text.length < stop - start)
+			text = new char[stop - start];
+		for (int p = start; p < stop; p++) {
+			char c = (char) (buf[p] & 0xff);
+			if (c == '\\') {
+				switch (c = (char) buf[++p]) {
+				case '"':
+				case '\\':
+				case '/':
+					break;
+				case 'b':
+					c = '\b';
+					break;
+				case 'f':
+					c = '\f';
+					break;
+				case 'n':
+					c = '\n';
+					break;
+				case 'r':
+					c = '\r';
+					break;
+				case 't':
+					c = '\t';
+					break;
+				case 'u':
+					if (p + 4 >= stop)
+						return false;
+					int v = 0;
+					for (int i = 0; i < 4; i++) {
+						int d = Character.digit((char) buf[++p], 16);
+						if (d < 0)
+							return false;
+						v = v * 16 + d;
+					}
+					c = (char) v;
+					break;
+				default:
+					return false;
+				}
+			}
+			text[n++] = c;
+		}
+		textLength = n;
+		return true;
+	}
+
+	private int word(String w, int token) {
+		int n = w.length();
+
+		if (pos + n > end)
+			return fail();
+		for (int i = 0; i < n; i++)
+			if (buf[pos + i] != w.charAt(i))
+				return fail();
+		pos += n;
+		stop = pos;
+		return value(token);
+	}
+
+	// -?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?
+	private int number() {
+		int p = pos, q;
+
+		if (buf[p] == '-')
+			p++;
+		if (p < end && buf[p] == '0')
+			p++;
+		else if (p < end && buf[p] >= '1' && buf[p] <= '9')
+			p = digits(p);
+		else
+			return fail();
+		if (p < end && buf[p] == '.') {
+			if ((q = digits(p + 1)) == p + 1)
+				return fail();
+			p = q;
+		}
+		if (p < end && (buf[p] == 'e' || buf[p] == 'E')) {
+			p++;
+			if (p < end && (buf[p] == '-' || buf[p] == '+'))
+				p++;
+			if ((q = digits(p)) == p)
+				return fail();
+			p = q;
+		}
+		stop = p;
+		pos = p;
+		return value(NUMBER);
+	}
+
+	private int digits(int p) {
+		while (p < end && buf[p] >= '0' && buf[p] <= '9')
+			p++;
+		return p;
+	}
+
+	// Skips the value whose first token was just read, with anything
+	// nested in it
+	void skipValue(int token) {
+		int depth = 0;
+
+		while (true) {
+			if (token == BEGIN_OBJECT || token == BEGIN_ARRAY)
+				depth++;
+			else if (token == END_OBJECT || token == END_ARRAY)
+				depth--;
+			else if (token == END || token == ERROR)
+				return;
+			if (depth <= 0 && token != KEY)
+				return;
+			token = next();
+		}
+	}
+
+	boolean keyIs(String key) {
+		int n = key.length();
+
+		if (length() != n)
+			return false;
+		for (int i = 0; i < n; i++)
+			if (charAt(i) != key.charAt(i))
+				return false;
+		return true;
+	}
+
+	// First byte of a key or string, for switching on
+	int firstChar() {
+		return charAt(0);
+	}
+
+	int length() {
+		return escaped ? textLength : stop - start;
+	}
+
+	// A character of a key or string, with escapes decoded, or -1 past its
+	// end
+	int charAt(int i) {
+		if (i >= length())
+			return -1;
+		return escaped ? text[i] : buf[start + i] & 0xff;
+	}
+
+	// The value of a NUMBER, or of a STRING holding one
+	double doubleValue() {
+		int p = start, digits = 0, scale = 0, exp = 0;
+		boolean neg = false, expNeg = false;
+		long m = 0;
+
+		if (p < stop && buf[p] == '-') {
+			neg = true;
+			p++;
+		}
+		for (; p < stop && buf[p] >= '0' && buf[p] <= '9'; p++)
+			if (digits < 18) {
+				m = m * 10 + buf[p] - '0';
+				if (m != 0)
+					digits++;
+			} else
+				scale--;
+		if (p < stop && buf[p] == '.')
+			for (p++; p < stop && buf[p] >= '0' && buf[p] <= '9'; p++)
+				if (digits < 18) {
+					m = m * 10 + buf[p] - '0';
+					if (m != 0)
+						digits++;
+					scale++;
+				}
+		if (p < stop && (buf[p] == 'e' || buf[p] == 'E')) {
+			p++;
+			if (p < stop && (buf[p] == '-' || buf[p] == '+'))
+				expNeg = buf[p++] == '-';
+			for (; p < stop && buf[p] >= '0' && buf[p] <= '9'; p++)
+				exp = exp * 10 + buf[p] - '0';
+		}
+		scale -= expNeg ? -exp : exp;
+		double v = m;
+		if (scale > 0)
+			v = scale < POW10.length ? v / POW10[scale] : v / Math.pow(10, scale);
+		else if (scale < 0)
+			v = -scale < POW10.length ? v * POW10[-scale] : v * Math.pow(10, -scale);
+		return neg ? -v : v;
+	}
+
+	// Exact for a plain integer.  Anything else is rounded to the nearest,
+	// as a whole number TinyG printed from a float can come out as 4.9999.
+	int intValue() {
+		int p = start;
+		boolean neg = false;
+		long v = 0;
+
+		if (p < stop && buf[p] == '-') {
+			neg = true;
+			p++;
+		}
+		int first = p;
+		for (; p < stop && buf[p] >= '0' && buf[p] <= '9' && v <= Integer.MAX_VALUE; p++)
+			v = v * 10 + buf[p] - '0';
+		if (p == stop && p > first && v <= Integer.MAX_VALUE)
+			return (int) (neg ? -v : v);
+		return (int) Math.floor(doubleValue() + 0.5);
+	}
+
+	String stringValue() {
+		if (escaped)
+			return new String(text, 0, textLength);
+		StringBuilder s = new StringBuilder(stop - start);
+		for (int p = start; p < stop; p++)
+			s.append((char) (buf[p] & 0xff));
+		return s.toString();
+	}
+}
@@ -0,0 +1,104 @@
+package org.csgeeks.TinyG.Support;
+
+// Log-linear histogram of latencies in the style of HdrHistogram.  Values
+// below 128 get a bucket each; above that every power of two is split
+// into 64 buckets, so any recorded value is off by less than 1.6% while
+// the whole range up to the maximum fits in a few KB.  Recording is
+// constant time and allocation free.
+public class LatencyHistogram {
+	private static final int SUB_BITS = 7;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF_COUNT = SUB_COUNT / 2;
+
+	private final long highest;
+	private final long counts[];
+	private long total;
+	private long sum;
+	private long min = Long.MAX_VALUE;
+	private long max;
+
+	// Values above highest are recorded as highest
+	public LatencyHistogram(long highest) {
+		this.highest = Math.max(highest, SUB_COUNT);
+		counts = new long[index(this.highest) + 1];
+	}
+
+	private static int index(long v) {
+		if (v < SUB_COUNT)
+			return (int) v;
+		int shift = 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1);
+		return SUB_COUNT + (shift - 1) * HALF_COUNT
+				+ (int) (v >>> shift) - HALF_COUNT;
+	}
+
+	// Largest value that lands in the bucket
+	private static long highestEquivalent(int i) {
+		if (i < SUB_COUNT)
+			return i;
+		int shift = (i - SUB_COUNT) / HALF_COUNT + 1;
+		long m = (i - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+		return ((m + 1) << shift) - 1;
+	}
+
+	public synchronized void record(long v) {
+		if (v < 0)
+			v = 0;
+		else if (v > highest)
+			v = highest;
+		counts[index(v)]++;
+		total++;
+		sum += v;
+		if (v < min)
+			min = v;
+		if (v > max)
+			max = v;
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = 0;
+		total = sum = max = 0;
+		min = Long.MAX_VALUE;
+	}
+
+	public synchronized long getCount() {
+		return total;
+	}
+
+	public synchronized long getMin() {
+		return total == 0 ? 0 : min;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	public synchronized double getMean() {
+		return total == 0 ? 0 : (double) sum / total;
+	}
+
+	// percentile is 0 to 100
+	public synchronized long getValueAtPercentile(double percentile) {
+		if (total == 0)
+			return 0;
+		long target = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0
+				* total);
+		long seen = 0;
+
+		if (target < 1)
+			target = 1;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= target)
+				return Math.min(highestEquivalent(i), max);
+		}
+		return max;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "n=" + total + " min=" + getMin() + " p50="
+				+ getValueAtPercentile(50) + " p90=" + getValueAtPercentile(90)
+				+ " p99=" + getValueAtPercentile(99) + " max=" + max;
+	}
+}
@@ -0,0 +1,76 @@
+package org.csgeeks.TinyG.Support;
+
+// Splits the bytes a transport reads into lines at each '\n', for all of
+// the transports.  A line that arrives whole in one read is handed over
+// where it lies in the caller's buffer, not copied; only the start of a
+// line split across reads is kept, in a buffer that grows to fit.  The
+// footer checksum is kept up over each stretch of bytes as it's scanned.
+public class LineFramer {
+	public interface Sink {
+		// A line without its '\n', in b[off..off+len).  The bytes are only
+		// good until the call returns.  A '\r' before the '\n' is left in;
+		// JSON reads it as white space, and the checksum ends at the last
+		// comma anyway.
+		void line(byte b[], int off, int len, int checksum);
+	}
+
+	private final Sink sink;
+	private final FooterChecksum checksum = new FooterChecksum();
+	// The part of a line we have so far
+	private byte partial[];
+	private int partialLen;
+
+	public LineFramer(Sink sink) {
+		this(sink, 1024);
+	}
+
+	public LineFramer(Sink sink, int capacity) {
+		this.sink = sink;
+		partial = new byte[capacity];
+	}
+
+	// Every line the bytes complete goes to the sink before this returns
+	public void feed(byte b[], int off, int len) {
+		int start = off, end = off + len;
+
+		for (int i = off; i < end; i++) {
+			if (b[i] != '\n')
+				continue;
+			checksum.update(b, start, i - start);
+			if (partialLen == 0) {
+				sink.line(b, start, i - start, checksum.value());
+			} else {
+				keep(b, start, i - start);
+				sink.line(partial, 0, partialLen, checksum.value());
+				partialLen = 0;
+			}
+			checksum.reset();
+			start = i + 1;
+		}
+		if (start < end) {
+			checksum.update(b, start, end - start);
+			keep(b, start, end - start);
+		}
+	}
+
+	// Drops any part of a line, as when a connection starts over
+	public void reset() {
+		partialLen = 0;
+		checksum.reset();
+	}
+
+	// Bytes of a line waiting for the rest of it
+	public int pending() {
+		return partialLen;
+	}
+
+	private void keep(byte b[], int off, int len) {
+		if (partialLen + len > partial.length) {
+			byte tmp[] = new byte[Math.max(2 * partial.length, partialLen + len)];
+			System.arraycopy(partial, 0, tmp, 0, partialLen);
+			partial = tmp;
+		}
+		System.arraycopy(b, off, partial, partialLen, len);
+		partialLen += len;
+	}
+}
@@ -0,0 +1,85 @@
+package org.csgeeks.TinyG.Support;
+
+// Line mode: keep a handful of lines in flight and only send while the
+// planner reports free buffers.  The queue reports keep the planner full
+// on long jobs without ever overrunning it, and the byte count of the
+// lines in flight is still held under the serial buffer size.
+public class LineModeFlow implements FlowControl {
+	// Planner buffers on TinyG v8
+	public static final int PLANNER_BUFFERS = 28;
+	// Leave a few planner buffers for the controller itself
+	private static final int PLANNER_RESERVE = 4;
+	private static final int MAX_LINES_IN_FLIGHT = 4;
+
+	private final int size;
+	// Lengths of the unacknowledged lines, oldest first
+	private final int inFlightLen[] = new int[MAX_LINES_IN_FLIGHT];
+	private int head, inFlight, inFlightBytes;
+	private int plannerFree = PLANNER_BUFFERS;
+
+	public LineModeFlow(int size) {
+		this.size = size;
+	}
+
+	public synchronized void reset() {
+		head = 0;
+		inFlight = 0;
+		inFlightBytes = 0;
+		plannerFree = PLANNER_BUFFERS;
+		notifyAll();
+	}
+
+	public synchronized void acquire(int length) throws InterruptedException {
+		length = Math.min(length, size);
+		while (!canSend(length))
+			wait();
+		take(length);
+	}
+
+	public synchronized boolean tryAcquire(int length) {
+		length = Math.min(length, size);
+		if (!canSend(length))
+			return false;
+		take(length);
+		return true;
+	}
+
+	private boolean canSend(int length) {
+		return inFlight < MAX_LINES_IN_FLIGHT
+				&& inFlightBytes + length <= size
+				&& plannerFree - inFlight > PLANNER_RESERVE;
+	}
+
+	private void take(int length) {
+		inFlightLen[(head + inFlight) % MAX_LINES_IN_FLIGHT] = length;
+		inFlight++;
+		inFlightBytes += length;
+	}
+
+	// The line taken last is the one given back
+	public synchronized void release(int length) {
+		if (inFlight == 0)
+			return;
+		inFlight--;
+		inFlightBytes -= inFlightLen[(head + inFlight) % MAX_LINES_IN_FLIGHT];
+		notifyAll();
+	}
+
+	public synchronized void onResponse(int freed) {
+		if (inFlight == 0)
+			return;
+		inFlightBytes -= inFlightLen[head];
+		head = (head + 1) % MAX_LINES_IN_FLIGHT;
+		inFlight--;
+		notifyAll();
+	}
+
+	public synchronized void onQueueReport(int qr) {
+		plannerFree = qr;
+		notifyAll();
+	}
+
+	public synchronized String toString() {
+		return "lines: " + inFlight + " in flight, qr " + plannerFree;
+	}
+}
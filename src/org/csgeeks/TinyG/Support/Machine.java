@@ -2,143 +2,156 @@ package org.csgeeks.TinyG.Support;
 
 // Copyright 2012 Matthew Stock
 
-import java.util.ArrayList;
-import java.util.List;
-
-import org.csgeeks.TinyG.Support.Config.TinyGType;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import android.os.Bundle;
 import android.util.Log;
 
 public class Machine {
 	private static final String TAG = "TinyG";
-	private static final String UPDATE_BLOCK_FORMAT = "{\"%s\": {%s}}";
-	private static final String UPDATE_SINGLE_FORMAT = "{\"%s\":%s}";
-	private static final String UPDATE_VALUE_FORMAT = "\"%s\": %s";
 	public static final String axisIndexToName[] = { "x", "y", "z", "a", "b",
 			"c" };
+	private static final String motorNames[] = { "1", "2", "3", "4" };
 	// Machine state variables
-	private Bundle state;
-	private Bundle axis[] = new Bundle[6];
-	private Bundle motor[] = new Bundle[4];
-	private static Config machineVars;
-
-	public Machine() {
-		for (int i = 0; i < 4; i++) {
-			motor[i] = new Bundle();
+	private final MachineState state = new MachineState();
+	private final Response response = new Response();
+	private final JsonTokenizer json = new JsonTokenizer();
+	// Sections of a response body, in the order they're applied, and where
+	// each is in the line being parsed
+	private static final String sections[] = { "sr", "qr", "sys", "1", "2",
+			"3", "4", "a", "b", "c", "x", "y", "z" };
+	private final int sectionAt[] = new int[sections.length];
+	// Footer checksums are verified on one response in checksumEvery, or
+	// never if it's 0
+	private int checksumEvery = 1;
+	private long footers, checksumsChecked, checksumMismatches;
+	// Checksum the listener framed the current line with, or UNKNOWN
+	private static final int UNKNOWN = -2;
+	private int framedChecksum = UNKNOWN;
+
+	// What a response held, for the service to act on.  One instance is
+	// reused for every line, so it has to be read before the next.
+	public static class Response {
+		public static final int NONE = 0, STATUS = 1, QUEUE = 2, SYS = 3,
+				MOTOR = 4, AXIS = 5, ERROR = 6;
+		// The last part of the machine state the response updated
+		public int report;
+		// The axis index or motor number, for AXIS and MOTOR
+		public int which;
+		public boolean ack, footer, queueReport;
+		// From the footer
+		public int protocol, status, buffer, checksum;
+		public String error;
+
+		void clear() {
+			report = NONE;
+			which = 0;
+			ack = footer = queueReport = false;
+			protocol = status = buffer = checksum = 0;
+			error = null;
 		}
-		for (int i = 0; i < 6; i++) {
-			axis[i] = new Bundle();
-		}
-		state = new Bundle();
-		machineVars = new Config();
 	}
 
-	public Bundle getStatusBundle() {
+	// Updated in place as responses are parsed, on the thread parsing them
+	public MachineState getState() {
 		return state;
 	}
 
+	// The Bundles are copies, made for the UI
+	public Bundle getStatusBundle() {
+		return MachineBundles.status(state);
+	}
+
 	public Bundle getAxisBundle(int idx) {
-		if (idx < 0 || idx > 5)
-			return axis[0];
-		else
-			return axis[idx];
+		return MachineBundles.axis(axisState(idx));
 	}
 
 	public Bundle getAxisBundle(String string) {
-		return axis[axisNameToIndex(string)];
+		return getAxisBundle(axisNameToIndex(string));
 	}
 
 	public Bundle getMotorBundle(int m) {
-		if (m < 1 || m > 4)
-			return motor[0];
+		return MachineBundles.motor(motorState(m));
+	}
+
+	private MachineState.Axis axisState(int idx) {
+		if (idx < 0 || idx >= MachineState.AXES)
+			return state.axis[0];
 		else
-			return motor[m - 1];
-	}
-
-	public String updateAxisBundle(int anum, Bundle b) {
-		String scratch;
-		String cmds = null;
-		Bundle a = axis[anum];
-
-		a.putAll(b);
-
-		for (Config.TinyGType v : machineVars.getAxis()) {
-			if (b.containsKey(v.name)) {
-				scratch = "";
-				if (v.type.equals("float"))
-					scratch = Float.toString(b.getFloat(v.name));
-				if (v.type.equals("boolean"))
-					scratch = b.getBoolean(v.name) ? "1" : "0";
-				if (v.type.equals("string"))
-					scratch = b.getString(v.name);
-				if (v.type.equals("int"))
-					scratch = Integer.toString(b.getInt(v.name));
-				scratch = String.format(UPDATE_VALUE_FORMAT, v.name, scratch);
-				if (cmds == null)
-					cmds = scratch;
-				else
-					cmds = cmds + ", " + scratch;
-			}
-		}
+			return state.axis[idx];
+	}
 
-		return String.format(UPDATE_BLOCK_FORMAT, axisIndexToName[anum], cmds);
-	}
-
-	public String updateMotorBundle(int mnum, Bundle b) {
-		String scratch;
-		String cmds = null;
-		Bundle m = motor[mnum];
-
-		m.putAll(b);
-
-		for (Config.TinyGType v : machineVars.getMotor()) {
-			if (b.containsKey(v.name)) {
-				scratch = "";
-				if (v.type.equals("float"))
-					scratch = Float.toString(b.getFloat(v.name));
-				if (v.type.equals("boolean"))
-					scratch = b.getBoolean(v.name) ? "1" : "0";
-				if (v.type.equals("string"))
-					scratch = b.getString(v.name);
-				if (v.type.equals("int"))
-					scratch = Integer.toString(b.getInt(v.name));
-				scratch = String.format(UPDATE_VALUE_FORMAT, v.name, scratch);
-				if (cmds == null)
-					cmds = scratch;
-				else
-					cmds = cmds + ", " + scratch;
-			}
-		}
+	private MachineState.Motor motorState(int m) {
+		if (m < 1 || m > MachineState.MOTORS)
+			return state.motor[0];
+		else
+			return state.motor[m - 1];
+	}
 
-		return String.format(UPDATE_BLOCK_FORMAT, Integer.toString(mnum), cmds);
+	// Each update takes the settings in the Bundle, as the settings screens
+	// hand them over, and writes the line that sends them to TinyG, with
+	// its newline, into e.
+	public void encodeAxisUpdate(int anum, Bundle b, CommandEncoder e) {
+		MachineBundles.apply(axisState(anum), b);
+		encodeBlock(axisIndexToName[anum], Config.AXIS, b, e);
 	}
 
-	public List<String> updateSystemBundle(Bundle b) {
-		String scratch;
-		ArrayList<String> cmds = new ArrayList<String>();
+	public void encodeMotorUpdate(int mnum, Bundle b, CommandEncoder e) {
+		MachineBundles.apply(motorState(mnum), b);
+		encodeBlock(mnum >= 1 && mnum <= MachineState.MOTORS ? motorNames[mnum - 1]
+				: Integer.toString(mnum), Config.MOTOR, b, e);
+	}
 
-		state.putAll(b);
+	// System settings go one to a line
+	public void encodeSystemUpdate(Bundle b, CommandEncoder e) {
+		MachineBundles.apply(state.sys, b);
+		for (int i = 0; i < Config.SYS.size(); i++) {
+			String name = Config.SYS.name(i);
+			if (!b.containsKey(name))
+				continue;
+			e.append("{\"").append(name).append("\":");
+			encodeValue(Config.SYS.type(i), name, b, e);
+			e.append("}\n");
+		}
+	}
 
-		for (Config.TinyGType v : machineVars.getSys()) {
-			if (b.containsKey(v.name)) {
-				scratch = "";
-				if (v.type.equals("float"))
-					scratch = Float.toString(b.getFloat(v.name));
-				if (v.type.equals("boolean"))
-					scratch = b.getBoolean(v.name) ? "1" : "0";
-				if (v.type.equals("string"))
-					scratch = b.getString(v.name);
-				if (v.type.equals("int"))
-					scratch = Integer.toString(b.getInt(v.name));
-				cmds.add(String.format(UPDATE_SINGLE_FORMAT, v.name, scratch));
-			}
+	// {"<group>": {"<name>": <value>, ...}}
+	private static void encodeBlock(String group, Config.Schema schema,
+			Bundle b, CommandEncoder e) {
+		e.append("{\"").append(group).append("\": {");
+		encodeValues(schema, b, e);
+		e.append("}}\n");
+	}
+
+	private static void encodeValues(Config.Schema schema, Bundle b,
+			CommandEncoder e) {
+		boolean first = true;
+
+		for (int i = 0; i < schema.size(); i++) {
+			String name = schema.name(i);
+			if (!b.containsKey(name))
+				continue;
+			if (!first)
+				e.append(", ");
+			first = false;
+			e.append('"').append(name).append("\": ");
+			encodeValue(schema.type(i), name, b, e);
 		}
+	}
 
-		return cmds;
+	private static void encodeValue(Config.Type type, String name, Bundle b,
+			CommandEncoder e) {
+		switch (type) {
+		case FLOAT:
+			e.appendFloat(b.getFloat(name));
+			break;
+		case INT:
+			e.appendInt(b.getInt(name));
+			break;
+		case BOOLEAN:
+			e.append(b.getBoolean(name) ? '1' : '0');
+			break;
+		default:
+			e.append(String.valueOf(b.getString(name)));
+		}
 	}
 
 	public static int axisNameToIndex(String string) {
@@ -165,305 +178,362 @@ public class Machine {
 
 	private void setQueue(int qr) {
 		Log.d(TAG, "qr = " + qr);
-		state.putInt("qr", qr);
-	}
-
-	private void setStatus(JSONObject sr) throws JSONException {
-		if (sr.has("posx"))
-			state.putFloat("posx", (float) sr.getDouble("posx"));
-		if (sr.has("posy"))
-			state.putFloat("posy", (float) sr.getDouble("posy"));
-		if (sr.has("posz"))
-			state.putFloat("posz", (float) sr.getDouble("posz"));
-		if (sr.has("posa"))
-			state.putFloat("posa", (float) sr.getDouble("posa"));
-		if (sr.has("vel"))
-			state.putFloat("velocity", (float) sr.getDouble("vel"));
-		if (sr.has("line"))
-			state.putInt("line", sr.getInt("line"));
-		if (sr.has("momo"))
-			switch (sr.getInt("momo")) {
-			case 0:
-				state.putString("momo", "seek");
-				break;
-			case 1:
-				state.putString("momo", "feed");
-				break;
-			case 2:
-				state.putString("momo", "cw_arc");
-				break;
-			case 3:
-				state.putString("momo", "ccw_arc");
-				break;
-			case 4:
-				state.putString("momo", "cancel");
-				break;
-			case 5:
-				state.putString("momo", "probe");
-				break;
-			default:
-				state.putString("momo", Integer.toString(sr.getInt("momo")));
-				break;
-			}
-
-		if (sr.has("stat"))
-			switch (sr.getInt("stat")) {
-			case 0:
-				state.putString("status", "init");
-				break;
-			case 1:
-				state.putString("status", "ready");
-				break;
-			case 2:
-				state.putString("status", "shutdown");
-				break;
-			case 3:
-				state.putString("status", "stop");
-				break;
-			case 4:
-				state.putString("status", "end");
-				break;
-			case 5:
-				state.putString("status", "run");
-				break;
-			case 6:
-				state.putString("status", "hold");
-				break;
-			case 7:
-				state.putString("status", "probe");
-				break;
-			case 8:
-				state.putString("status", "cycle");
-				break;
-			case 9:
-				state.putString("status", "homing");
-				break;
-			case 10:
-				state.putString("status", "jog");
-				break;
-			}
+		state.setQueue(qr);
+	}
 
-		if (sr.has("unit")) {
-			switch (sr.getInt("unit")) {
-			case 0:
-				state.putString("units", "inches");
-				break;
-			case 1:
-				state.putString("units", "mm");
-				break;
-			case 2:
-				state.putString("units", "degrees");
-				break;
-			}
+	// Reads the fields of an "sr" object; the tokenizer is just past its {
+	private void setStatus() {
+		int t;
+
+		while ((t = json.next()) == JsonTokenizer.KEY) {
+			if (json.keyIs("posx"))
+				state.setPosition(0, floatValue());
+			else if (json.keyIs("posy"))
+				state.setPosition(1, floatValue());
+			else if (json.keyIs("posz"))
+				state.setPosition(2, floatValue());
+			else if (json.keyIs("posa"))
+				state.setPosition(3, floatValue());
+			else if (json.keyIs("vel"))
+				state.setVelocity(floatValue());
+			else if (json.keyIs("line"))
+				state.setLine(intValue());
+			else if (json.keyIs("momo"))
+				state.setMotionMode(intValue());
+			else if (json.keyIs("stat"))
+				state.setMachineState(intValue());
+			else if (json.keyIs("unit"))
+				state.setUnits(intValue());
+			else
+				json.skipValue(json.next());
 		}
+		if (t != JsonTokenizer.END_OBJECT)
+			throw new IllegalArgumentException("bad status report");
 	}
 
-	private void putSys(JSONObject sysjson) throws JSONException {
-		for (Config.TinyGType v : machineVars.getSys()) {
-			if (sysjson.has(v.name)) {
-				if (v.type.equals("float"))
-					state.putFloat(v.name, (float) sysjson.getDouble(v.name));
-				if (v.type.equals("boolean"))
-					state.putBoolean(v.name, sysjson.getInt(v.name) == 1);
-				if (v.type.equals("int"))
-					state.putInt(v.name, sysjson.getInt(v.name));
-				if (v.type.equals("string"))
-					state.putString(v.name, sysjson.getString(v.name));
+	// Reads the settings in an object into their typed fields.  The
+	// tokenizer is just past the object's {
+	private void putValues(MachineState.Group g) {
+		int t;
+
+		while ((t = json.next()) == JsonTokenizer.KEY) {
+			int slot = g.schema.slot(json);
+			t = json.next();
+			if (slot < 0) {
+				json.skipValue(t);
+				continue;
 			}
+			if (g.schema.type(slot) == Config.Type.STRING) {
+				if (t == JsonTokenizer.STRING || t == JsonTokenizer.NUMBER)
+					g.setString(slot, json.stringValue());
+				else
+					json.skipValue(t);
+				continue;
+			}
+			if (t != JsonTokenizer.NUMBER && t != JsonTokenizer.STRING) {
+				json.skipValue(t);
+				continue;
+			}
+			g.set(slot, json.doubleValue());
 		}
+		if (t != JsonTokenizer.END_OBJECT)
+			throw new IllegalArgumentException("bad settings object");
+	}
+
+	private float floatValue() {
+		number();
+		return (float) json.doubleValue();
 	}
 
-	private void putAxis(JSONObject axisjson, String name) throws JSONException {
-		Bundle a = axis[axisNameToIndex(name)];
+	private int intValue() {
+		number();
+		return json.intValue();
+	}
 
-		a.putInt("axis", axisNameToIndex(name));
+	// Onto the next value, which has to be a number (or a string of one)
+	private void number() {
+		int t = json.next();
 
-		for (Config.TinyGType v : machineVars.getAxis()) {
-			if (axisjson.has(v.name)) {
-				if (v.type.equals("float"))
-					a.putFloat(v.name, (float) axisjson.getDouble(v.name));
-				if (v.type.equals("boolean"))
-					a.putBoolean(v.name, axisjson.getInt(v.name) == 1);
-				if (v.type.equals("int"))
-					a.putInt(v.name, axisjson.getInt(v.name));
-				if (v.type.equals("string"))
-					a.putString(v.name, axisjson.getString(v.name));
-			}
-		}
+		if (t != JsonTokenizer.NUMBER && t != JsonTokenizer.STRING)
+			throw new IllegalArgumentException("expected a number at "
+					+ json.position());
 	}
 
-	private void putMotor(JSONObject motorjson, int name) throws JSONException {
-		Bundle m;
+	public Response processJSON(String string) {
+		byte b[] = string.getBytes();
+		return processJSON(b, 0, b.length);
+	}
 
-		if (name < 1 || name > 4)
-			m = motor[0];
-		else
-			m = motor[name - 1];
-		m.putInt("motor", name);
-
-		for (TinyGType v : machineVars.getMotor()) {
-			if (motorjson.has(v.name)) {
-				if (v.type.equals("float"))
-					m.putFloat(v.name, (float) motorjson.getDouble(v.name));
-				if (v.type.equals("boolean"))
-					m.putBoolean(v.name, motorjson.getInt(v.name) == 1);
-				if (v.type.equals("int"))
-					m.putInt(v.name, motorjson.getInt(v.name));
-				if (v.type.equals("string"))
-					m.putString(v.name, motorjson.getString(v.name));
-			}
+	// checksum is the one the LineFramer worked out for the line
+	public Response processJSON(byte line[], int off, int len, int checksum) {
+		framedChecksum = checksum;
+		try {
+			return processJSON(line, off, len);
+		} finally {
+			framedChecksum = UNKNOWN;
 		}
 	}
 
-	public Bundle processJSON(String string) {
-		Bundle bResult = null;
+	// Verify one footer in every, or none for 0.  Counts start again.
+	public void setChecksumSampling(int every) {
+		checksumEvery = Math.max(0, every);
+		footers = checksumsChecked = checksumMismatches = 0;
+	}
+
+	public long getChecksumsChecked() {
+		return checksumsChecked;
+	}
+
+	public long getChecksumMismatches() {
+		return checksumMismatches;
+	}
+
+	// Parses a line straight from its bytes into the machine state, and
+	// returns what it held, or null if it wasn't anything we know.  The
+	// parts of a response are located first and read afterwards, as the
+	// footer decides whether the body is used.
+	public Response processJSON(byte line[], int off, int len) {
+		int t, r = -1, f = -1, sr = -1, qr = -1;
+
+		response.clear();
 		try {
-			JSONObject json = new JSONObject(string);
-
-			if (json.has("r")) {
-				if (json.has("f")) { // new style, post 380.05
-					bResult = processFooter(json.getJSONArray("f"));
-					int check = bResult.getInt("checksum");
-					if (checksumTest(string, check) == false)
-						return null;
-					switch (bResult.getInt("status")) {
+			json.reset(line, off, len);
+			if (json.next() != JsonTokenizer.BEGIN_OBJECT)
+				throw new IllegalArgumentException("not a JSON object");
+			while ((t = json.next()) == JsonTokenizer.KEY) {
+				boolean isR = json.keyIs("r"), isF = json.keyIs("f");
+				boolean isSr = json.keyIs("sr"), isQr = json.keyIs("qr");
+				t = json.next();
+				if (isR)
+					r = json.position();
+				else if (isF)
+					f = json.position();
+				else if (isSr)
+					sr = json.position();
+				else if (isQr)
+					qr = json.position();
+				json.skipValue(t);
+			}
+			if (t != JsonTokenizer.END_OBJECT)
+				throw new IllegalArgumentException("bad JSON at "
+						+ (json.position() - off));
+
+			if (r >= 0) {
+				// A bad response still acknowledges a line, so hand back
+				// the footer for flow control but skip the body.
+				response.ack = true;
+				if (f >= 0) { // new style, post 380.05
+					processFooter(f);
+					if (checksumTest(line, off, len, response.checksum) == false)
+						return response;
+					switch (response.status) {
 						case 0: // OK
 						case 3: // NOOP
 						case 60: // NULL move
 						break;
 					default:
-						Log.e(TAG, "Status code error: " + string);
-						return null;
+						Log.e(TAG, "Status code error: " + new String(line, off, len));
+						return response;
 					}
-				} else {
-					bResult = new Bundle();
 				}
-
-				bResult.putAll(processBody(string, json.getJSONObject("r")));
-				return bResult;
+				processBody(line, off, len, r);
+				return response;
 			}
-			if (json.has("sr")) {
-				bResult = processStatusReport(json.getJSONObject("sr"));
-				return bResult;
+			if (sr >= 0) {
+				processStatusReport(sr);
+				return response;
 			}
-			if (json.has("qr")) {
-				bResult = processQueueReport(json.getInt("qr"));
-				return bResult;
+			if (qr >= 0) {
+				json.seek(qr);
+				processQueueReport(intValue());
+				return response;
 			}
 		} catch (Exception e) {
-			bResult = new Bundle();
-			bResult.putString("json", "error");
-			bResult.putString("error", e.getMessage());
+			error(e.getMessage(), r, f);
+			return response;
+		}
+		return null;
+	}
+
+	// A response TinyG sent still answers a line, however badly it parsed,
+	// so the ack and as much of the footer as we can get are kept.  Without
+	// the footer's buffer count flow control would never get that line's
+	// room back.
+	private void error(String message, int r, int f) {
+		boolean footer = response.footer;
+		int protocol = response.protocol, status = response.status;
+		int buffer = response.buffer, checksum = response.checksum;
+
+		response.clear();
+		if (r >= 0) {
+			response.ack = true;
+			if (footer) {
+				response.footer = true;
+				response.protocol = protocol;
+				response.status = status;
+				response.buffer = buffer;
+				response.checksum = checksum;
+			} else if (f >= 0) {
+				try {
+					processFooter(f);
+				} catch (Exception e) {
+					response.footer = false;
+					response.protocol = response.status = 0;
+					response.buffer = response.checksum = 0;
+				}
+			}
 		}
-		return bResult;
+		response.report = Response.ERROR;
+		response.error = message;
 	}
 
 	// [<protocol_version>, <status_code>, <input_available>, <checksum>]
-	private Bundle processFooter(JSONArray json) throws JSONException,
-			NumberFormatException {
-		Bundle b = new Bundle();
-		b.putInt("protocol", json.getInt(0));
-		b.putInt("status", json.getInt(1));
-		b.putInt("buffer", json.getInt(2));
-		b.putInt("checksum", Integer.parseInt(json.getString(3)));
-		return b;
-	}
-
-	private Bundle processBody(String string, JSONObject json) throws JSONException {
-		Bundle b;
-		if (json.has("f")) { // old style, pre 380.05
-			b = processFooter(json.getJSONArray("f"));
-			int check = b.getInt("checksum");
-			if (checksumTest(string, check) == false)
-				return null;
-			switch (b.getInt("status")) {
+	private void processFooter(int at) {
+		json.seek(at);
+		if (json.next() != JsonTokenizer.BEGIN_ARRAY)
+			throw new IllegalArgumentException("bad footer");
+		response.footer = true;
+		response.protocol = intValue();
+		response.status = intValue();
+		response.buffer = intValue();
+		response.checksum = intValue();
+	}
+
+	private void processBody(byte line[], int off, int len, int at) {
+		int t, f = -1;
+
+		json.seek(at);
+		if (json.next() != JsonTokenizer.BEGIN_OBJECT)
+			throw new IllegalArgumentException("bad response body");
+		for (int i = 0; i < sections.length; i++)
+			sectionAt[i] = -1;
+		while ((t = json.next()) == JsonTokenizer.KEY) {
+			int s = json.keyIs("f") ? sections.length : section();
+			t = json.next();
+			if (s == sections.length)
+				f = json.position();
+			else if (s >= 0)
+				sectionAt[s] = json.position();
+			json.skipValue(t);
+		}
+
+		if (f >= 0) { // old style, pre 380.05
+			processFooter(f);
+			if (checksumTest(line, off, len, response.checksum) == false)
+				return;
+			switch (response.status) {
 				case 0: // OK
 				case 3: // NOOP
 				case 60: // NULL move
 				break;
 			default:
-				Log.e(TAG, "Status code error: " + string);
-				return null;
+				Log.e(TAG, "Status code error: " + new String(line, off, len));
+				return;
 			}
-		} else {
-			b = new Bundle();
 		}
-		
-		b.putAll(getStatusBundle());
-		if (json.has("sr"))
-			b.putAll(processStatusReport(json.getJSONObject("sr")));
-		if (json.has("qr"))
-			b.putAll(processQueueReport(json.getInt("qr")));
-		if (json.has("sys"))
-			b.putAll(processSys(json.getJSONObject("sys")));
-		if (json.has("1"))
-			b.putAll(processMotor(1, json.getJSONObject("1")));
-		if (json.has("2"))
-			b.putAll(processMotor(2, json.getJSONObject("2")));
-		if (json.has("3"))
-			b.putAll(processMotor(3, json.getJSONObject("3")));
-		if (json.has("4"))
-			b.putAll(processMotor(4, json.getJSONObject("4")));
-		if (json.has("a"))
-			b.putAll(processAxis("a", json.getJSONObject("a")));
-		if (json.has("b"))
-			b.putAll(processAxis("b", json.getJSONObject("b")));
-		if (json.has("c"))
-			b.putAll(processAxis("c", json.getJSONObject("c")));
-		if (json.has("x"))
-			b.putAll(processAxis("x", json.getJSONObject("x")));
-		if (json.has("y"))
-			b.putAll(processAxis("y", json.getJSONObject("y")));
-		if (json.has("z"))
-			b.putAll(processAxis("z", json.getJSONObject("z")));
-		return b;
-	}
-
-	private Bundle processStatusReport(JSONObject sr) throws JSONException {
-		setStatus(sr);
-		Bundle b = getStatusBundle();
-		b.putString("json", "sr");
-		return b;
-	}
-
-	private Bundle processQueueReport(int qr) {
+
+		for (int i = 0; i < sections.length; i++) {
+			if (sectionAt[i] < 0)
+				continue;
+			switch (i) {
+			case 0:
+				processStatusReport(sectionAt[i]);
+				break;
+			case 1:
+				json.seek(sectionAt[i]);
+				processQueueReport(intValue());
+				break;
+			case 2:
+				processSys(sectionAt[i]);
+				break;
+			case 3:
+			case 4:
+			case 5:
+			case 6:
+				processMotor(i - 2, sectionAt[i]);
+				break;
+			default:
+				processAxis(axisNameToIndex(sections[i]), sectionAt[i]);
+			}
+		}
+	}
+
+	// Index in sections of the key the tokenizer is on, or -1
+	private int section() {
+		int c = json.charAt(0);
+
+		switch (json.length()) {
+		case 1:
+			if (c >= '1' && c <= '4')
+				return 3 + c - '1';
+			if (c >= 'a' && c <= 'c')
+				return 7 + c - 'a';
+			if (c >= 'x' && c <= 'z')
+				return 10 + c - 'x';
+			return -1;
+		case 2:
+			if (json.charAt(1) != 'r')
+				return -1;
+			return c == 's' ? 0 : c == 'q' ? 1 : -1;
+		case 3:
+			return json.keyIs("sys") ? 2 : -1;
+		default:
+			return -1;
+		}
+	}
+
+	private void openObject(int at) {
+		json.seek(at);
+		if (json.next() != JsonTokenizer.BEGIN_OBJECT)
+			throw new IllegalArgumentException("expected an object");
+	}
+
+	private void processStatusReport(int at) {
+		openObject(at);
+		setStatus();
+		response.report = Response.STATUS;
+	}
+
+	private void processQueueReport(int qr) {
 		setQueue(qr);
-		Bundle b = getStatusBundle();
-		b.putString("json", "qr");
-		return b;
+		response.report = Response.QUEUE;
+		response.queueReport = true;
 	}
 
-	private Bundle processSys(JSONObject sys) throws JSONException {
-		putSys(sys);
-		Bundle b = getStatusBundle();
-		b.putString("json", "sys");
-		return b;
+	private void processSys(int at) {
+		openObject(at);
+		putValues(state.sys);
+		response.report = Response.SYS;
 	}
 
-	private Bundle processMotor(int num, JSONObject motor) throws JSONException {
-		putMotor(motor, num);
-		Bundle b = getMotorBundle(num);
-		b.putString("json", Integer.toString(num));
-		return b;
+	private void processMotor(int num, int at) {
+		openObject(at);
+		putValues(motorState(num));
+		response.report = Response.MOTOR;
+		response.which = num;
 	}
 
-	private Bundle processAxis(String axisName, JSONObject axis)
-			throws JSONException {
-		putAxis(axis, axisName);
-		Bundle b = getAxisBundle(axisName);
-		b.putString("json", axisName);
-		return b;
+	private void processAxis(int idx, int at) {
+		openObject(at);
+		putValues(axisState(idx));
+		response.report = Response.AXIS;
+		response.which = idx;
 	}
 
-	private boolean checksumTest(String s, int val) {
-		// Check checksum
-		int pos = s.lastIndexOf(",");
-		if (pos == -1) // Shouldn't be possible!
+	// Footers that aren't sampled pass.  The checksum framed with the line
+	// is used if there is one.
+	private boolean checksumTest(byte line[], int off, int len, int val) {
+		if (checksumEvery == 0 || footers++ % checksumEvery != 0)
+			return true;
+		checksumsChecked++;
+		int y = framedChecksum != UNKNOWN ? framedChecksum : FooterChecksum.of(
+				line, off, len);
+		if (y == FooterChecksum.NONE) // Shouldn't be possible!
 			return false;
-		String subval = s.substring(0, pos);
-		long y = (subval.hashCode() & 0x00000000ffffffffL) % 9999;
 		if (y != val) {
-			Log.e(TAG, "Checksum error for: " + s + " (" + y + "," + val + ")");
+			checksumMismatches++;
+			Log.e(TAG, "Checksum error for: " + new String(line, off, len)
+					+ " (" + y + "," + val + ")");
 			return false;
 		}
 		return true;
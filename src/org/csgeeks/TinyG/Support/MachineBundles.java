@@ -0,0 +1,106 @@
+package org.csgeeks.TinyG.Support;
+
+import android.os.Bundle;
+
+// The Android side of MachineState: Bundles of it for the UI, under the
+// keys the UI has always used, and settings back from the settings
+// screens.  Kept apart so MachineState itself has no Android in it.
+public final class MachineBundles {
+	private MachineBundles() {
+	}
+
+	// The status fields and system settings we've heard
+	public static Bundle status(MachineState s) {
+		Bundle b = new Bundle();
+		int known = s.knownStatus();
+
+		if (s.hasPosition(0))
+			b.putFloat("posx", s.pos[0]);
+		if (s.hasPosition(1))
+			b.putFloat("posy", s.pos[1]);
+		if (s.hasPosition(2))
+			b.putFloat("posz", s.pos[2]);
+		if (s.hasPosition(3))
+			b.putFloat("posa", s.pos[3]);
+		if ((known & StateBus.VELOCITY) != 0)
+			b.putFloat("velocity", s.velocity);
+		if ((known & StateBus.LINE) != 0)
+			b.putInt("line", s.line);
+		if ((known & StateBus.MOTION_MODE) != 0)
+			b.putString("momo", MachineState.motionModeName(s.momo));
+		if ((known & StateBus.MACHINE_STATE) != 0
+				&& MachineState.machineStateName(s.stat) != null)
+			b.putString("status", MachineState.machineStateName(s.stat));
+		if ((known & StateBus.UNITS) != 0
+				&& MachineState.unitsName(s.unit) != null)
+			b.putString("units", MachineState.unitsName(s.unit));
+		if ((known & StateBus.QUEUE) != 0)
+			b.putInt("qr", s.qr);
+		putInto(s.sys, b);
+		return b;
+	}
+
+	public static Bundle axis(MachineState.Axis a) {
+		Bundle b = new Bundle();
+		b.putInt("axis", a.index);
+		putInto(a, b);
+		return b;
+	}
+
+	public static Bundle motor(MachineState.Motor m) {
+		Bundle b = new Bundle();
+		b.putInt("motor", m.number);
+		putInto(m, b);
+		return b;
+	}
+
+	public static void putInto(MachineState.Group g, Bundle b) {
+		Config.Schema schema = g.schema;
+
+		for (int i = 0; i < schema.size(); i++) {
+			if (!g.has(i))
+				continue;
+			String name = schema.name(i);
+			switch (schema.type(i)) {
+			case FLOAT:
+				b.putFloat(name, g.getFloat(i));
+				break;
+			case INT:
+				b.putInt(name, g.getInt(i));
+				break;
+			case BOOLEAN:
+				b.putBoolean(name, g.getBoolean(i));
+				break;
+			case STRING:
+				b.putString(name, g.getString(i));
+				break;
+			}
+		}
+	}
+
+	// Takes any of the group's settings that are in the bundle, as the
+	// settings screens hand them over
+	public static void apply(MachineState.Group g, Bundle b) {
+		Config.Schema schema = g.schema;
+
+		for (int i = 0; i < schema.size(); i++) {
+			String name = schema.name(i);
+			if (!b.containsKey(name))
+				continue;
+			switch (schema.type(i)) {
+			case FLOAT:
+				g.set(i, b.getFloat(name));
+				break;
+			case INT:
+				g.set(i, b.getInt(name));
+				break;
+			case BOOLEAN:
+				g.set(i, b.getBoolean(name) ? 1 : 0);
+				break;
+			case STRING:
+				g.setString(i, b.getString(name));
+				break;
+			}
+		}
+	}
+}
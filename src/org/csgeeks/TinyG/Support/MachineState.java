@@ -0,0 +1,241 @@
+package org.csgeeks.TinyG.Support;
+
+// Everything we've heard about the machine, in typed fields.  Machine
+// parses responses straight into it, and Bundles are only made from it at
+// the edge, by MachineBundles, for the UI.  Nothing here needs Android.
+public class MachineState {
+	public static final int AXES = 6, MOTORS = 4;
+
+	// From status reports.  pos is X, Y, Z and A.
+	public final float pos[] = new float[4];
+	public float velocity;
+	public int line;
+	// TinyG's codes for motion mode, machine state and units
+	public int momo, stat, unit;
+	// From queue reports
+	public int qr;
+	private int statusKnown;
+	private static final int POSX = 1, POSY = 2, POSZ = 4, POSA = 8,
+			VELOCITY = 16, LINE = 32, MOMO = 64, STAT = 128, UNIT = 256,
+			QR = 512;
+
+	public final Axis axis[] = new Axis[AXES];
+	public final Motor motor[] = new Motor[MOTORS];
+	public final Sys sys = new Sys();
+
+	public MachineState() {
+		for (int i = 0; i < AXES; i++)
+			axis[i] = new Axis(i);
+		for (int i = 0; i < MOTORS; i++)
+			motor[i] = new Motor(i + 1);
+	}
+
+	public void setPosition(int a, float v) {
+		pos[a] = v;
+		statusKnown |= POSX << a;
+	}
+
+	public void setVelocity(float v) {
+		velocity = v;
+		statusKnown |= VELOCITY;
+	}
+
+	public void setLine(int l) {
+		line = l;
+		statusKnown |= LINE;
+	}
+
+	public void setMotionMode(int m) {
+		momo = m;
+		statusKnown |= MOMO;
+	}
+
+	public void setMachineState(int s) {
+		stat = s;
+		statusKnown |= STAT;
+	}
+
+	public void setUnits(int u) {
+		unit = u;
+		statusKnown |= UNIT;
+	}
+
+	public void setQueue(int q) {
+		qr = q;
+		statusKnown |= QR;
+	}
+
+	// The status fields we've heard, as StateBus fields
+	public int knownStatus() {
+		int k = 0;
+
+		if ((statusKnown & (POSX | POSY | POSZ | POSA)) != 0)
+			k |= StateBus.POSITION;
+		if ((statusKnown & VELOCITY) != 0)
+			k |= StateBus.VELOCITY;
+		if ((statusKnown & LINE) != 0)
+			k |= StateBus.LINE;
+		if ((statusKnown & MOMO) != 0)
+			k |= StateBus.MOTION_MODE;
+		if ((statusKnown & STAT) != 0)
+			k |= StateBus.MACHINE_STATE;
+		if ((statusKnown & UNIT) != 0)
+			k |= StateBus.UNITS;
+		if ((statusKnown & QR) != 0)
+			k |= StateBus.QUEUE;
+		return k;
+	}
+
+	// Whether a status report has given us the position of axis a
+	public boolean hasPosition(int a) {
+		return (statusKnown & (POSX << a)) != 0;
+	}
+
+	public static String motionModeName(int momo) {
+		switch (momo) {
+		case 0:
+			return "seek";
+		case 1:
+			return "feed";
+		case 2:
+			return "cw_arc";
+		case 3:
+			return "ccw_arc";
+		case 4:
+			return "cancel";
+		case 5:
+			return "probe";
+		default:
+			return Integer.toString(momo);
+		}
+	}
+
+	public static String machineStateName(int stat) {
+		switch (stat) {
+		case 0:
+			return "init";
+		case 1:
+			return "ready";
+		case 2:
+			return "shutdown";
+		case 3:
+			return "stop";
+		case 4:
+			return "end";
+		case 5:
+			return "run";
+		case 6:
+			return "hold";
+		case 7:
+			return "probe";
+		case 8:
+			return "cycle";
+		case 9:
+			return "homing";
+		case 10:
+			return "jog";
+		default:
+			return null;
+		}
+	}
+
+	public static String unitsName(int unit) {
+		switch (unit) {
+		case 0:
+			return "inches";
+		case 1:
+			return "mm";
+		case 2:
+			return "degrees";
+		default:
+			return null;
+		}
+	}
+
+	// A set of settings, kept by their slot in the group's Config.Schema,
+	// so the schema alone says what each one is called and what type it
+	// has.  Numbers, ints and booleans (as 0 or 1) are all held as doubles.
+	public static abstract class Group {
+		public final Config.Schema schema;
+		private final double values[];
+		private final String strings[];
+		private int known;
+
+		Group(Config.Schema schema) {
+			this.schema = schema;
+			values = new double[schema.size()];
+			strings = new String[schema.size()];
+		}
+
+		public boolean has(int slot) {
+			return (known & (1 << slot)) != 0;
+		}
+
+		public float getFloat(int slot) {
+			return (float) values[slot];
+		}
+
+		public int getInt(int slot) {
+			return (int) values[slot];
+		}
+
+		public boolean getBoolean(int slot) {
+			return values[slot] == 1;
+		}
+
+		public String getString(int slot) {
+			return strings[slot];
+		}
+
+		// Stored as its type would hold it
+		public void set(int slot, double v) {
+			switch (schema.type(slot)) {
+			case FLOAT:
+				v = (float) v;
+				break;
+			case INT:
+				v = (int) v;
+				break;
+			case BOOLEAN:
+				v = v == 1 ? 1 : 0;
+				break;
+			case STRING:
+				break;
+			}
+			values[slot] = v;
+			known |= 1 << slot;
+		}
+
+		public void setString(int slot, String v) {
+			strings[slot] = v;
+			known |= 1 << slot;
+		}
+	}
+
+	public static class Axis extends Group {
+		// Slots of the settings read by name
+		public static final int VM = Config.AXIS.slot("vm");
+		public final int index;
+
+		Axis(int index) {
+			super(Config.AXIS);
+			this.index = index;
+		}
+	}
+
+	public static class Motor extends Group {
+		// 1 to 4, as TinyG numbers them
+		public final int number;
+
+		Motor(int number) {
+			super(Config.MOTOR);
+			this.number = number;
+		}
+	}
+
+	public static class Sys extends Group {
+		Sys() {
+			super(Config.SYS);
+		}
+	}
+}
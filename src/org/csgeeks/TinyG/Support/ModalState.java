@@ -0,0 +1,201 @@
+package org.csgeeks.TinyG.Support;
+
+// What a G-code interpreter remembers between lines, as far as we need to
+// follow a toolpath or restart one partway: motion mode, distance mode,
+// units, plane, feed rate and mode, coordinate system, spindle, coolant
+// and the position of X, Y and Z.  Anything that moves the axes in a way
+// we can't follow (homing, G92 offsets, machine coordinates) leaves the
+// position unknown until a line sets it again.
+public class ModalState {
+	public static final int X = 0, Y = 1, Z = 2;
+
+	// Motion mode as the G number: 0, 1, 2 or 3, or -1 for anything else
+	public int motion = -1;
+	public boolean absolute = true;
+	// G90.1: arc centers are absolute instead of offsets from the start
+	public boolean arcAbsolute = false;
+	public boolean inches = false;
+	// 17, 18 or 19
+	public int plane = 17;
+	public double feed;
+	public boolean inverseTime = false;
+	// 54 to 59
+	public int wcs = 54;
+	// M3, M4 or M5
+	public int spindle = 5;
+	public double speed;
+	public boolean mist, flood;
+	public final double pos[] = new double[3];
+	public final boolean known[] = new boolean[3];
+
+	public void reset() {
+		motion = -1;
+		absolute = true;
+		arcAbsolute = false;
+		inches = false;
+		plane = 17;
+		feed = 0;
+		inverseTime = false;
+		wcs = 54;
+		spindle = 5;
+		speed = 0;
+		mist = flood = false;
+		for (int i = 0; i < 3; i++) {
+			pos[i] = 0;
+			known[i] = false;
+		}
+	}
+
+	public void set(ModalState s) {
+		motion = s.motion;
+		absolute = s.absolute;
+		arcAbsolute = s.arcAbsolute;
+		inches = s.inches;
+		plane = s.plane;
+		feed = s.feed;
+		inverseTime = s.inverseTime;
+		wcs = s.wcs;
+		spindle = s.spindle;
+		speed = s.speed;
+		mist = s.mist;
+		flood = s.flood;
+		for (int i = 0; i < 3; i++) {
+			pos[i] = s.pos[i];
+			known[i] = s.known[i];
+		}
+	}
+
+	public boolean positionKnown() {
+		return known[X] && known[Y] && known[Z];
+	}
+
+	public static int axis(char letter) {
+		switch (letter) {
+		case 'X':
+			return X;
+		case 'Y':
+			return Y;
+		case 'Z':
+			return Z;
+		default:
+			return -1;
+		}
+	}
+
+	// Follows one line.  The parser is rewound to the start of the line.
+	public void apply(GcodeParser p, byte line[], int off, int len) {
+		boolean lose = false, machine = false;
+
+		p.reset(line, off, len);
+		while (p.next()) {
+			if (p.letter() == 'G') {
+				switch (p.code()) {
+				case 0:
+				case 10:
+				case 20:
+				case 30:
+					motion = p.code() / 10;
+					break;
+				case 170:
+				case 180:
+				case 190:
+					plane = p.code() / 10;
+					break;
+				case 200:
+					inches = true;
+					break;
+				case 210:
+					inches = false;
+					break;
+				case 530:
+					machine = true;
+					break;
+				case 900:
+					absolute = true;
+					break;
+				case 910:
+					absolute = false;
+					break;
+				case 901:
+					arcAbsolute = true;
+					break;
+				case 911:
+					arcAbsolute = false;
+					break;
+				case 930:
+					inverseTime = true;
+					break;
+				case 940:
+					inverseTime = false;
+					break;
+				case 100: // G10 sets offsets
+				case 280:
+				case 281:
+				case 282:
+				case 283:
+				case 300:
+				case 920:
+				case 921:
+				case 922:
+				case 923:
+					lose = true;
+					break;
+				case 380:
+				case 382:
+					lose = true; // probing stops wherever it touches
+					break;
+				default:
+					if (p.code() >= 540 && p.code() <= 590
+							&& p.code() % 10 == 0) {
+						wcs = p.code() / 10;
+						lose = true; // new coordinate system
+					}
+				}
+			} else if (p.letter() == 'M') {
+				switch (p.code()) {
+				case 30:
+				case 40:
+				case 50:
+					spindle = p.code() / 10;
+					break;
+				case 70:
+					mist = true;
+					break;
+				case 80:
+					flood = true;
+					break;
+				case 90:
+					mist = flood = false;
+					break;
+				case 20: // program end
+				case 300:
+					spindle = 5;
+					mist = flood = false;
+					break;
+				}
+			} else if (p.letter() == 'F') {
+				feed = p.value();
+			} else if (p.letter() == 'S' && !Double.isNaN(p.value())) {
+				speed = p.value();
+			}
+		}
+
+		p.reset(line, off, len);
+		while (p.next()) {
+			int a = axis(p.letter());
+			if (a < 0 || Double.isNaN(p.value()))
+				continue;
+			if (machine || lose) {
+				known[a] = false;
+			} else if (absolute) {
+				pos[a] = p.value();
+				known[a] = true;
+			} else {
+				pos[a] += p.value();
+			}
+		}
+		if (lose)
+			for (int i = 0; i < 3; i++)
+				known[i] = false;
+	}
+}
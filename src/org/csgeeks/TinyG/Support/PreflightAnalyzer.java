@@ -0,0 +1,453 @@
+package org.csgeeks.TinyG.Support;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.util.Log;
+
+// Checks a whole G-code file before it's run: the envelope each axis moves
+// in, moves that can't be within an axis's travel, the range of feed rates
+// and how many lines of each kind of motion there are.
+//
+// The file is split into chunks of lines that are scanned on all cores.
+// A chunk can't be simulated until the modal state it starts in is known,
+// so there are three parallel passes, each followed by a quick merge in
+// file order: the first finds the modes each chunk leaves set (distance,
+// units, motion), the second how each chunk moves the axes relative to
+// where it started, and the third does the real work from the now known
+// starting state of every chunk.
+public class PreflightAnalyzer {
+	private static final String TAG = "TinyG";
+	private static final int LINES_PER_CHUNK = 20000;
+	private static final int X = 0, Y = 1, Z = 2;
+
+	private final GcodeFile file;
+	private final double travel[] = new double[3];
+
+	// travel holds each axis's "tm" in mm, 0 where it isn't known
+	public PreflightAnalyzer(GcodeFile file, double travel[]) {
+		this.file = file;
+		System.arraycopy(travel, 0, this.travel, 0, Math.min(3, travel.length));
+	}
+
+	public static class Report {
+		public long lines, rapid, linear, arc, other;
+		// Per axis, in mm; seen is false if the axis never moved to a known
+		// place
+		public final double min[] = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+		public final double max[] = { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+		public final boolean seen[] = new boolean[3];
+		public final double travel[] = new double[3];
+		// Moves to a coordinate farther from zero than the axis's travel,
+		// which no work offset can make reachable
+		public long outOfTravel;
+		public int firstOutOfTravel; // file line, 1 based
+		// Of the F words, in mm/min
+		public double minFeed = Double.MAX_VALUE, maxFeed;
+		public long millis;
+		public int threads;
+
+		// The axis envelope is wider than its travel
+		public boolean exceeds(int axis) {
+			return seen[axis] && travel[axis] > 0
+					&& max[axis] - min[axis] > travel[axis];
+		}
+
+		private void include(int axis, double v) {
+			seen[axis] = true;
+			if (v < min[axis])
+				min[axis] = v;
+			if (v > max[axis])
+				max[axis] = v;
+		}
+
+		private void add(Report r) {
+			lines += r.lines;
+			rapid += r.rapid;
+			linear += r.linear;
+			arc += r.arc;
+			other += r.other;
+			for (int i = 0; i < 3; i++)
+				if (r.seen[i]) {
+					include(i, r.min[i]);
+					include(i, r.max[i]);
+				}
+			if (r.outOfTravel > 0 && outOfTravel == 0)
+				firstOutOfTravel = r.firstOutOfTravel;
+			outOfTravel += r.outOfTravel;
+			minFeed = Math.min(minFeed, r.minFeed);
+			maxFeed = Math.max(maxFeed, r.maxFeed);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder s = new StringBuilder();
+			String names = "XYZ";
+
+			s.append(lines).append(" lines: ").append(rapid).append(" rapid, ")
+					.append(linear).append(" linear, ").append(arc)
+					.append(" arc, ").append(other).append(" other\n");
+			for (int i = 0; i < 3; i++) {
+				s.append(names.charAt(i)).append(": ");
+				if (!seen[i]) {
+					s.append("no moves\n");
+					continue;
+				}
+				s.append(fmt(min[i])).append(" to ").append(fmt(max[i]));
+				if (travel[i] > 0)
+					s.append(" (travel ").append(fmt(travel[i])).append(")");
+				if (exceeds(i))
+					s.append(" TOO WIDE");
+				s.append('\n');
+			}
+			if (outOfTravel > 0)
+				s.append(outOfTravel).append(" moves out of travel, first on line ")
+						.append(firstOutOfTravel).append('\n');
+			if (maxFeed > 0)
+				s.append("Feed ").append(fmt(minFeed)).append(" to ")
+						.append(fmt(maxFeed)).append(" mm/min\n");
+			s.append("Checked in ").append(millis).append(" ms on ")
+					.append(threads).append(" threads");
+			return s.toString();
+		}
+
+		private static String fmt(double v) {
+			return Double.toString(Math.round(v * 1000) / 1000.0);
+		}
+	}
+
+	public Report run() throws InterruptedException, ExecutionException {
+		long t0 = System.currentTimeMillis();
+		int lines = file.lineCount();
+		int threads = Runtime.getRuntime().availableProcessors();
+		int n = Math.max(1, (lines + LINES_PER_CHUNK - 1) / LINES_PER_CHUNK);
+		Chunk chunks[] = new Chunk[n];
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Report total = new Report();
+
+		for (int i = 0; i < n; i++)
+			chunks[i] = new Chunk((int) ((long) lines * i / n),
+					(int) ((long) lines * (i + 1) / n));
+		try {
+			State s = new State();
+			for (int pass = 0; pass < 3; pass++) {
+				if (pass == 1 || pass == 2) {
+					// Where every chunk starts, now that the chunk before it is
+					// known
+					s = new State();
+					for (int i = 0; i < n; i++) {
+						chunks[i].entry.copy(s);
+						s = chunks[i].follow(s, pass);
+					}
+				}
+				runPass(pool, chunks, pass);
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		for (int i = 0; i < n; i++)
+			total.add(chunks[i].report);
+		System.arraycopy(travel, 0, total.travel, 0, 3);
+		total.threads = threads;
+		total.millis = System.currentTimeMillis() - t0;
+		if (total.minFeed == Double.MAX_VALUE)
+			total.minFeed = 0;
+		Log.d(TAG, "preflight: " + total);
+		return total;
+	}
+
+	private void runPass(ExecutorService pool, Chunk chunks[], final int pass)
+			throws InterruptedException, ExecutionException {
+		List<Future<Object>> done = new ArrayList<Future<Object>>(chunks.length);
+
+		for (int i = 0; i < chunks.length; i++) {
+			final Chunk c = chunks[i];
+			done.add(pool.submit(new Callable<Object>() {
+				public Object call() {
+					c.scan(pass);
+					return null;
+				}
+			}));
+		}
+		for (int i = 0; i < done.size(); i++)
+			done.get(i).get();
+	}
+
+	// Modal state while scanning.  A position is either absolute, relative
+	// to wherever the chunk started (during the second pass), or unknown.
+	private static class State {
+		int motion = -1;
+		boolean absolute = true, inches;
+		int plane = 17;
+		// Which modes the chunk set itself, in the first pass
+		boolean setMotion, setAbsolute, setInches, setPlane;
+		final double pos[] = new double[3];
+		final boolean known[] = new boolean[3];
+		final boolean relative[] = new boolean[3];
+
+		void copy(State s) {
+			motion = s.motion;
+			absolute = s.absolute;
+			inches = s.inches;
+			plane = s.plane;
+			setMotion = setAbsolute = setInches = setPlane = false;
+			for (int i = 0; i < 3; i++) {
+				pos[i] = s.pos[i];
+				known[i] = s.known[i];
+				relative[i] = s.relative[i];
+			}
+		}
+	}
+
+	private class Chunk {
+		final int from, to;
+		final State entry = new State();
+		final State exit = new State();
+		final Report report = new Report();
+		private final GcodeParser parser = new GcodeParser();
+		private final boolean has[] = new boolean[3];
+		private final double v[] = new double[3];
+
+		Chunk(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		// The state after this chunk, given the one before it, from what the
+		// last pass found
+		State follow(State before, int pass) {
+			State s = new State();
+			s.copy(before);
+			if (exit.setMotion)
+				s.motion = exit.motion;
+			if (exit.setAbsolute)
+				s.absolute = exit.absolute;
+			if (exit.setInches)
+				s.inches = exit.inches;
+			if (exit.setPlane)
+				s.plane = exit.plane;
+			if (pass == 2) {
+				for (int i = 0; i < 3; i++) {
+					if (!exit.known[i])
+						s.known[i] = false;
+					else if (exit.relative[i])
+						s.pos[i] += exit.pos[i];
+					else {
+						s.pos[i] = exit.pos[i];
+						s.known[i] = true;
+					}
+				}
+			}
+			return s;
+		}
+
+		void scan(int pass) {
+			ByteBuffer data = file.data();
+			int base = file.lineStart(from);
+			int len = file.lineStart(to) - base;
+			byte buf[] = new byte[len];
+
+			data.position(base);
+			data.get(buf, 0, len);
+			exit.copy(entry);
+			if (pass == 1)
+				for (int i = 0; i < 3; i++) {
+					exit.pos[i] = 0;
+					exit.known[i] = true;
+					exit.relative[i] = true;
+				}
+			for (int l = from; l < to; l++) {
+				int off = file.lineStart(l) - base;
+				int n = file.lineLength(l);
+				if (n > 0)
+					line(buf, off, n, l + 1, pass == 2 ? report : null);
+			}
+		}
+
+		private void line(byte buf[], int off, int len, int lineNum, Report r) {
+			State s = exit;
+			boolean lose = false, machine = false, offset = false, any = false;
+			double i = 0, j = 0, f = Double.NaN;
+
+			parser.reset(buf, off, len);
+			has[X] = has[Y] = has[Z] = false;
+			while (parser.next()) {
+				char c = parser.letter();
+				if (c == 'G') {
+					int code = parser.code();
+					switch (code) {
+					case 0:
+					case 10:
+					case 20:
+					case 30:
+						s.motion = code / 10;
+						s.setMotion = true;
+						break;
+					case 170:
+					case 180:
+					case 190:
+						s.plane = code / 10;
+						s.setPlane = true;
+						break;
+					case 200:
+					case 210:
+						s.inches = code == 200;
+						s.setInches = true;
+						break;
+					case 900:
+					case 910:
+						s.absolute = code == 900;
+						s.setAbsolute = true;
+						break;
+					case 530:
+						machine = true;
+						break;
+					case 920:
+						offset = true;
+						break;
+					case 100:
+					case 280:
+					case 300:
+					case 380:
+					case 382:
+					case 921:
+					case 922:
+					case 923:
+						lose = true;
+						break;
+					default:
+						if (code >= 540 && code <= 590)
+							lose = true;
+					}
+				} else if (c == 'F') {
+					f = parser.value();
+				} else if (c == 'I') {
+					i = parser.value();
+				} else if (c == 'J') {
+					j = parser.value();
+				} else {
+					int a = c == 'X' ? X : c == 'Y' ? Y : c == 'Z' ? Z : -1;
+					if (a >= 0 && !Double.isNaN(parser.value())) {
+						has[a] = true;
+						v[a] = parser.value();
+						any = true;
+					}
+				}
+			}
+			// Words are read in the units in effect for the line
+			double scale = s.inches ? 25.4 : 1;
+			if (r != null) {
+				r.lines++;
+				if (!Double.isNaN(f)) {
+					r.minFeed = Math.min(r.minFeed, f * scale);
+					r.maxFeed = Math.max(r.maxFeed, f * scale);
+				}
+			}
+
+			if (!any) {
+				if (lose)
+					s.known[X] = s.known[Y] = s.known[Z] = false;
+				if (r != null)
+					r.other++;
+				return;
+			}
+			if (lose || machine) {
+				for (int a = 0; a < 3; a++)
+					if (has[a] || lose)
+						s.known[a] = false;
+				if (r != null)
+					r.other++;
+				return;
+			}
+			if (offset) {
+				// G92 makes the named axes read as the given values
+				for (int a = 0; a < 3; a++)
+					if (has[a]) {
+						s.pos[a] = v[a] * scale;
+						s.known[a] = true;
+						s.relative[a] = false;
+					}
+				if (r != null)
+					r.other++;
+				return;
+			}
+
+			double sx = s.pos[X], sy = s.pos[Y];
+			boolean startKnown = s.known[X] && s.known[Y] && !s.relative[X]
+					&& !s.relative[Y];
+			for (int a = 0; a < 3; a++) {
+				if (!has[a])
+					continue;
+				if (s.absolute) {
+					s.pos[a] = v[a] * scale;
+					s.known[a] = true;
+					s.relative[a] = false;
+				} else
+					s.pos[a] += v[a] * scale;
+			}
+			if (r == null)
+				return;
+
+			switch (s.motion) {
+			case 0:
+				r.rapid++;
+				break;
+			case 1:
+				r.linear++;
+				break;
+			case 2:
+			case 3:
+				r.arc++;
+				if (s.plane == 17 && startKnown)
+					arcBounds(r, sx, sy, sx + i * scale, sy + j * scale,
+							s.motion == 2);
+				break;
+			default:
+				r.other++;
+			}
+			boolean out = false;
+			for (int a = 0; a < 3; a++) {
+				if (!s.known[a] || s.relative[a])
+					continue;
+				r.include(a, s.pos[a]);
+				if (travel[a] > 0 && Math.abs(s.pos[a]) > travel[a])
+					out = true;
+			}
+			if (out && r.outOfTravel++ == 0)
+				r.firstOutOfTravel = lineNum;
+		}
+
+		// An arc can bulge past its end points; include every quadrant
+		// point it sweeps through
+		private void arcBounds(Report r, double sx, double sy, double cx,
+				double cy, boolean cw) {
+			double ex = exit.pos[X], ey = exit.pos[Y];
+			double rad = Math.hypot(sx - cx, sy - cy);
+			double a0 = Math.atan2(sy - cy, sx - cx);
+			double a1 = Math.atan2(ey - cy, ex - cx);
+			double sweep = cw ? a0 - a1 : a1 - a0;
+
+			while (sweep <= 1e-9)
+				sweep += 2 * Math.PI; // same start and end is a full circle
+			for (int q = 0; q < 4; q++) {
+				double a = q * Math.PI / 2;
+				double d = cw ? a0 - a : a - a0;
+				while (d < 0)
+					d += 2 * Math.PI;
+				while (d >= 2 * Math.PI)
+					d -= 2 * Math.PI;
+				if (d <= sweep) {
+					r.include(X, cx + rad * Math.cos(a));
+					r.include(Y, cy + rad * Math.sin(a));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package org.csgeeks.TinyG.Support;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Restarting a file partway through.  One pass over the file records the
+// modal state every INTERVAL lines; the state before any line is then the
+// nearest checkpoint plus at most INTERVAL - 1 lines replayed, however
+// long the file is.  From that state comes the preamble that puts the
+// machine back the way the file left it: units, plane, coordinate system,
+// feed, spindle and coolant, then the tool back over where it was.
+public class ResumeIndex {
+	private static final int INTERVAL = 256;
+	private final GcodeFile file;
+	// The state before line c * INTERVAL + 1, and the highest Z seen by then
+	private final ModalState checkpoints[];
+	private final double tops[];
+
+	private ResumeIndex(GcodeFile file) {
+		this.file = file;
+		int n = file.lineCount() / INTERVAL + 1;
+		checkpoints = new ModalState[n];
+		tops = new double[n];
+	}
+
+	public static ResumeIndex build(GcodeFile file) {
+		ResumeIndex index = new ResumeIndex(file);
+		ModalState state = new ModalState();
+		GcodeParser p = new GcodeParser();
+		byte buf[] = new byte[256];
+		double top = -Double.MAX_VALUE;
+
+		for (int l = 0; l < file.lineCount(); l++) {
+			if (l % INTERVAL == 0) {
+				ModalState s = new ModalState();
+				s.set(state);
+				index.checkpoints[l / INTERVAL] = s;
+				index.tops[l / INTERVAL] = top;
+			}
+			if (buf.length < file.lineLength(l))
+				buf = new byte[file.lineLength(l)];
+			top = follow(state, p, buf, file.getLine(l, buf, 0), top);
+		}
+		return index;
+	}
+
+	public GcodeFile getFile() {
+		return file;
+	}
+
+	// line is 1 based, as in status reports
+	public ModalState stateBefore(int line) {
+		return replay(line, null);
+	}
+
+	// Lines to send before streaming from line, which is 1 based
+	public List<String> preamble(int line) {
+		double top[] = new double[1];
+		ModalState s = replay(line, top);
+		List<String> cmds = new ArrayList<String>();
+		int dec = s.inches ? 5 : 4;
+
+		cmds.add((s.inches ? "G20" : "G21") + " G" + s.plane + " G" + s.wcs
+				+ (s.inverseTime ? " G93" : " G94") + " G90");
+		if (s.spindle != 5)
+			cmds.add("M" + s.spindle + (s.speed > 0 ? " " + word('S', s.speed, 1) : ""));
+		if (s.mist)
+			cmds.add("M7");
+		if (s.flood)
+			cmds.add("M8");
+		if (!s.mist && !s.flood)
+			cmds.add("M9");
+		// Up to the highest Z the file used before, over, then down at the
+		// feed rate
+		boolean plunge = s.known[ModalState.Z] && top[0] > s.pos[ModalState.Z];
+		if (s.known[ModalState.Z])
+			cmds.add("G0 " + word('Z', plunge ? top[0] : s.pos[ModalState.Z], dec));
+		if (s.known[ModalState.X] || s.known[ModalState.Y]) {
+			String xy = "G0";
+			if (s.known[ModalState.X])
+				xy += " " + word('X', s.pos[ModalState.X], dec);
+			if (s.known[ModalState.Y])
+				xy += " " + word('Y', s.pos[ModalState.Y], dec);
+			cmds.add(xy);
+		}
+		String feed = s.feed > 0 && !s.inverseTime ? " " + word('F', s.feed, dec)
+				: "";
+		if (plunge)
+			cmds.add((feed.length() > 0 ? "G1 " : "G0 ")
+					+ word('Z', s.pos[ModalState.Z], dec) + feed);
+		else if (feed.length() > 0)
+			cmds.add(feed.trim());
+		if (s.motion >= 0)
+			cmds.add("G" + s.motion);
+		if (!s.absolute)
+			cmds.add("G91");
+		if (s.arcAbsolute)
+			cmds.add("G90.1");
+		return cmds;
+	}
+
+	private ModalState replay(int line, double top[]) {
+		int target = Math.max(0, Math.min(line - 1, file.lineCount()));
+		int c = Math.min(target / INTERVAL, checkpoints.length - 1);
+		ModalState s = new ModalState();
+		GcodeParser p = new GcodeParser();
+		byte buf[] = new byte[256];
+		double t = tops[c];
+
+		s.set(checkpoints[c]);
+		for (int l = c * INTERVAL; l < target; l++) {
+			if (buf.length < file.lineLength(l))
+				buf = new byte[file.lineLength(l)];
+			t = follow(s, p, buf, file.getLine(l, buf, 0), t);
+		}
+		if (top != null)
+			top[0] = t;
+		return s;
+	}
+
+	private static double follow(ModalState s, GcodeParser p, byte buf[],
+			int len, double top) {
+		s.apply(p, buf, 0, len);
+		if (s.known[ModalState.Z] && s.pos[ModalState.Z] > top)
+			return s.pos[ModalState.Z];
+		return top;
+	}
+
+	private static String word(char letter, double v, int dec) {
+		byte b[] = new byte[32];
+		return new String(b, 0, ToolpathCompactor.word(b, 0, letter, v, dec));
+	}
+}
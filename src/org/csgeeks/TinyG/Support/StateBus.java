@@ -0,0 +1,264 @@
+package org.csgeeks.TinyG.Support;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.os.Handler;
+import android.os.Looper;
+
+// Hands machine state from the service to anyone in the process that wants
+// it, in place of a broadcast Intent for every report.  Each publish makes
+// one Snapshot that all the subscribers share and nobody changes after.
+// A subscriber has at most one snapshot waiting for it, so one that falls
+// behind skips to the newest instead of working through a backlog; the
+// snapshots it never saw are counted as dropped.  Neither side blocks or
+// takes a lock to hand a snapshot over.
+//
+// Only one thread publishes at a time (the response processor, holding the
+// machine lock).  Subscribers can subscribe and go from any thread.
+public class StateBus {
+	// Fields a subscriber can ask for
+	public static final int POSITION = 1, VELOCITY = 2, LINE = 4,
+			MOTION_MODE = 8, MACHINE_STATE = 16, UNITS = 32, QUEUE = 64,
+			AXIS = 128, ERROR = 256, ALL = 511;
+	private static final int FIELDS = 9;
+
+	public interface Listener {
+		// On the subscriber's thread.  changed has the fields it asked for
+		// that are new since the last snapshot it was given.
+		void onState(Snapshot s, int changed);
+	}
+
+	public static final class Snapshot {
+		public final long seq;
+		// System.nanoTime() when it was published
+		public final long published;
+		// X, Y, Z and A
+		public final float pos[] = new float[4];
+		public float velocity;
+		public int line;
+		// TinyG's codes, as in MachineState
+		public int momo, stat, unit;
+		public int qr;
+		// The axis whose settings changed last, or -1
+		public int axis = -1;
+		public String error;
+		// Fields we have heard a value for
+		public int known;
+		// seq of the snapshot each field last changed in
+		private final long changedAt[] = new long[FIELDS];
+
+		private Snapshot(long seq, Snapshot prev) {
+			this.seq = seq;
+			published = System.nanoTime();
+			if (prev == null)
+				return;
+			System.arraycopy(prev.pos, 0, pos, 0, pos.length);
+			velocity = prev.velocity;
+			line = prev.line;
+			momo = prev.momo;
+			stat = prev.stat;
+			unit = prev.unit;
+			qr = prev.qr;
+			axis = prev.axis;
+			error = prev.error;
+			known = prev.known;
+			System.arraycopy(prev.changedAt, 0, changedAt, 0, FIELDS);
+		}
+
+		public boolean has(int field) {
+			return (known & field) == field;
+		}
+
+		// Fields that changed after snapshot seq
+		int changedSince(long seq) {
+			int changed = 0;
+
+			for (int i = 0; i < FIELDS; i++)
+				if (changedAt[i] > seq)
+					changed |= 1 << i;
+			return changed;
+		}
+
+		private void mark(int changed) {
+			known |= changed;
+			for (int i = 0; i < FIELDS; i++)
+				if ((changed & (1 << i)) != 0)
+					changedAt[i] = seq;
+		}
+	}
+
+	public final class Subscription implements Runnable {
+		private final Listener listener;
+		private final int fields;
+		private final Handler handler;
+		private final AtomicReference<Snapshot> pending = new AtomicReference<Snapshot>();
+		private volatile boolean active = true;
+		// Only touched on the handler's thread
+		private long lastSeq;
+
+		private Subscription(Listener listener, int fields, Handler handler) {
+			this.listener = listener;
+			this.fields = fields;
+			this.handler = handler;
+		}
+
+		private void offer(Snapshot s, int changed) {
+			if ((changed & fields) == 0)
+				return;
+			if (pending.getAndSet(s) == null)
+				handler.post(this);
+			else
+				dropped.incrementAndGet();
+		}
+
+		public void run() {
+			Snapshot s = pending.getAndSet(null);
+
+			if (s == null || !active)
+				return;
+			latency.record((System.nanoTime() - s.published) / 1000);
+			delivered.incrementAndGet();
+			int changed = s.changedSince(lastSeq) & fields;
+			lastSeq = s.seq;
+			if (changed != 0)
+				listener.onState(s, changed);
+		}
+	}
+
+	private final CopyOnWriteArrayList<Subscription> subscribers = new CopyOnWriteArrayList<Subscription>();
+	private volatile Snapshot latest;
+	private long seq;
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	// From publish to the listener being called, in us
+	private final LatencyHistogram latency = new LatencyHistogram(10000000L);
+
+	// Listens on the main thread
+	public Subscription subscribe(Listener listener, int fields) {
+		return subscribe(listener, fields, new Handler(Looper.getMainLooper()));
+	}
+
+	// Listens on the handler's thread.  What we know already comes
+	// straight away, as the first snapshot.
+	public Subscription subscribe(Listener listener, int fields,
+			Handler handler) {
+		Subscription sub = new Subscription(listener, fields, handler);
+		Snapshot s;
+
+		subscribers.add(sub);
+		if ((s = latest) != null)
+			sub.offer(s, s.known);
+		return sub;
+	}
+
+	// Nothing more reaches the listener once this returns, if it's called
+	// on the subscription's thread
+	public void unsubscribe(Subscription sub) {
+		if (sub == null)
+			return;
+		sub.active = false;
+		subscribers.remove(sub);
+		sub.handler.removeCallbacks(sub);
+	}
+
+	public Snapshot latest() {
+		return latest;
+	}
+
+	// After a status or queue report
+	public void publishStatus(MachineState m) {
+		Snapshot prev = latest;
+		Snapshot s = new Snapshot(seq + 1, prev);
+		int known = m.knownStatus(), changed = 0;
+
+		if ((known & POSITION) != 0) {
+			for (int i = 0; i < s.pos.length; i++) {
+				if (s.pos[i] != m.pos[i]) {
+					s.pos[i] = m.pos[i];
+					changed |= POSITION;
+				}
+			}
+		}
+		if ((known & VELOCITY) != 0 && s.velocity != m.velocity) {
+			s.velocity = m.velocity;
+			changed |= VELOCITY;
+		}
+		if ((known & LINE) != 0 && s.line != m.line) {
+			s.line = m.line;
+			changed |= LINE;
+		}
+		if ((known & MOTION_MODE) != 0 && s.momo != m.momo) {
+			s.momo = m.momo;
+			changed |= MOTION_MODE;
+		}
+		if ((known & MACHINE_STATE) != 0 && s.stat != m.stat) {
+			s.stat = m.stat;
+			changed |= MACHINE_STATE;
+		}
+		if ((known & UNITS) != 0 && s.unit != m.unit) {
+			s.unit = m.unit;
+			changed |= UNITS;
+		}
+		if ((known & QUEUE) != 0 && s.qr != m.qr) {
+			s.qr = m.qr;
+			changed |= QUEUE;
+		}
+		// Fields heard for the first time count even if they're 0
+		changed |= known & ~s.known;
+		publish(s, changed);
+	}
+
+	// After the settings of an axis were read
+	public void publishAxis(int a) {
+		Snapshot s = new Snapshot(seq + 1, latest);
+
+		s.axis = a;
+		publish(s, AXIS);
+	}
+
+	public void publishError(String error) {
+		Snapshot s = new Snapshot(seq + 1, latest);
+
+		s.error = error;
+		publish(s, ERROR);
+	}
+
+	private void publish(Snapshot s, int changed) {
+		// A report that changed nothing isn't worth waking anyone for
+		if (changed == 0)
+			return;
+		seq = s.seq;
+		s.mark(changed);
+		latest = s;
+		published.incrementAndGet();
+		for (Subscription sub : subscribers)
+			sub.offer(s, changed);
+	}
+
+	public long getPublished() {
+		return published.get();
+	}
+
+	public long getDelivered() {
+		return delivered.get();
+	}
+
+	// Snapshots a subscriber never saw because a newer one replaced it
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	@Override
+	public String toString() {
+		return "published=" + published.get() + " delivered="
+				+ delivered.get() + " dropped=" + dropped.get()
+				+ " latency us: " + latency;
+	}
+}
@@ -2,12 +2,14 @@ package org.csgeeks.TinyG.Support;
 
 // Copyright 2012 Matthew Stock
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.util.Map;
 
-import android.annotation.SuppressLint;
 import android.app.Service;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -17,7 +19,8 @@ import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
-abstract public class TinyGService extends Service {
+abstract public class TinyGService extends Service implements
+		LineFramer.Sink {
 	public static final String CMD_GET_OK_PROMPT = "{\"gc\":\"?\"}\n";
 	public static final String CMD_GET_STATUS_REPORT = "{\"sr\":null}\n";
 	public static final String CMD_SET_QR_VERBOSITY = "{\"qv\":2}\n";
@@ -42,24 +45,61 @@ abstract public class TinyGService extends Service {
 
 	// buffer size on TinyG
 	public static final int TINYG_BUFFER_SIZE = 254;
-
-	// broadcast messages when we get updated data
-	public static final String STATUS = "org.csgeeks.TinyG.STATUS";
-	public static final String JSON_ERROR = "org.csgeeks.TinyG.JSON_ERROR";
-	public static final String AXIS_UPDATE = "org.csgeeks.TinyG.AXIS_UPDATE";
+	// bytes of pending commands we hold on our side
+	public static final int QUEUE_SIZE = 64 * 1024;
+	// and of responses waiting to be parsed
+	private static final int INBOUND_SIZE = 64 * 1024;
+	private static final String GCODE_PREFIX = "{\"gc\": \"";
+	private static final String GCODE_SUFFIX = "\"}\n";
+
+	// Single character commands TinyG acts on as soon as they arrive,
+	// ahead of anything sitting in its serial buffer
+	public static final byte RT_FEEDHOLD = '!';
+	public static final byte RT_CYCLE_START = '~';
+	public static final byte RT_QUEUE_FLUSH = '%';
+	public static final byte RT_RESET = 0x18;
+
+	// broadcast when the connection comes or goes.  Updated data goes out
+	// on the state bus instead.
 	public static final String CONNECTION_STATUS = "org.csgeeks.TinyG.CONNECTION_STATUS";
 
 	protected static final String TAG = "TinyG";
 	protected Machine machine;
-	private final Semaphore serialBufferAvail = new Semaphore(
-			TINYG_BUFFER_SIZE, true);
-	protected final Semaphore writeLock = new Semaphore(1, true);
-	private final BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+	// One for the process, so the UI can subscribe before it's bound to
+	// whichever driver service is in use
+	private static final StateBus bus = new StateBus();
+	private volatile FlowControl flow = new CharacterCountFlow(TINYG_BUFFER_SIZE);
+	// Held only for the length of one transport write, so a realtime
+	// command waits at most for the batch that is already going out.
+	private final Object transportLock = new Object();
+	private final Object hold = new Object();
+	private final byte realtimeCmd[] = new byte[1];
+	private final CommandEncoder encoder = new CommandEncoder();
+	private final CommandRing queue = new CommandRing(QUEUE_SIZE);
+	private final GcodeStreamer streamer = new GcodeStreamer(GCODE_PREFIX, GCODE_SUFFIX);
+	private GcodeCache gcodeCache;
+	// Handles from submit_message(), by sequence number, until answered
+	private final Map<Integer, CommandFuture> pending = new HashMap<Integer, CommandFuture>();
+	private volatile boolean anyPending;
+	private final AckTracker inFlight = new AckTracker(TINYG_BUFFER_SIZE);
+	// Both in microseconds
+	private final LatencyHistogram ackLatency = new LatencyHistogram(60000000L);
+	private final LatencyHistogram realtimeLatency = new LatencyHistogram(10000000L);
 	private final IBinder mBinder = new TinyGBinder();
 	private final QueueProcessor procQ = new QueueProcessor();
 	private Thread dequeueWorker;
-	private boolean paused = false;
-	private volatile boolean flushed;
+	// Lines from the transport, each behind its two byte footer checksum,
+	// waiting for the response processor
+	private final CommandRing inbound = new CommandRing(INBOUND_SIZE);
+	private final ResponseProcessor procR = new ResponseProcessor();
+	private Thread responseWorker;
+	private volatile boolean paused = false;
+	// Bumped by flush and reset so batches built before them are dropped
+	private volatile int generation;
+	// Held to bump the generation and clear the queue, and by the queue
+	// processor to take each line, so no batch mixes the two generations
+	private final Object wipeLock = new Object();
+	private volatile long lastRealtimeLatency;
 	private BlackBox ioLog;
 	private SharedPreferences settings;
 	
@@ -82,23 +122,57 @@ abstract public class TinyGService extends Service {
 		return machine;
 	}
 
+	public static StateBus getStateBus() {
+		return bus;
+	}
+
 	public void connect() {
+		settings = PreferenceManager.getDefaultSharedPreferences(this);
+		flow = createFlowControl();
+		machine.setChecksumSampling(Integer.parseInt(settings.getString(
+				"checksum_sample", "1")));
+
 		if (dequeueWorker == null || !dequeueWorker.isAlive()) {
 			dequeueWorker = new Thread(procQ);
 			dequeueWorker.start();
 		}	
 		
-		paused = false;
-		flushed = false;
+		setPaused(false);
 		
 		ioLog = new BlackBox();
-
-		settings = PreferenceManager.getDefaultSharedPreferences(this);
 		logging();
-}
+
+		inbound.clear();
+		if (responseWorker == null || !responseWorker.isAlive()) {
+			responseWorker = new Thread(procR, "TinyG-Responses");
+			responseWorker.start();
+		}
+	}
+
+	// Flow control is picked per connection from the preferences.
+	protected FlowControl createFlowControl() {
+		switch (Integer.parseInt(settings.getString("flow_control", "0"))) {
+		case 1:
+			return new LineModeFlow(TINYG_BUFFER_SIZE);
+		default:
+			return new CharacterCountFlow(TINYG_BUFFER_SIZE);
+		}
+	}
+
+	public FlowControl getFlowControl() {
+		return flow;
+	}
+
+	// Swap the flow control strategy, e.g. for a headless client.  Anything
+	// in flight is forgotten, so only do this with an idle queue.
+	public void setFlowControl(FlowControl fc) {
+		flow.reset();
+		flow = fc;
+	}
 
 	abstract protected void write(String cmd);
 	abstract protected void write(byte b[]);
+	abstract protected void write(byte b[], int off, int len);
 
 	public void logging() {
 		if (ioLog == null)
@@ -116,14 +190,24 @@ abstract public class TinyGService extends Service {
 		Intent i = new Intent(CONNECTION_STATUS);
 		i.putExtras(b);
 		sendBroadcast(i, null);
-		int inuse = TINYG_BUFFER_SIZE - serialBufferAvail.availablePermits();
-		if (inuse > 0)
-			serialBufferAvail.release(inuse);
-		queue.clear();
-		writeLock.release();
+		flow.reset();
+		streamer.cancel();
+		wipeQueue();
+		cancelPending(true);
+		inFlight.clear();
+		setPaused(false);
+		Log.d(TAG, "ack latency us: " + ackLatency);
+		Log.d(TAG, "realtime latency us: " + realtimeLatency);
+		Log.d(TAG, "checksums checked: " + machine.getChecksumsChecked()
+				+ ", mismatched: " + machine.getChecksumMismatches());
+		Log.d(TAG, "state bus: " + bus);
 		if (dequeueWorker != null)
 			dequeueWorker.interrupt();
 		dequeueWorker = null;
+		if (responseWorker != null)
+			responseWorker.interrupt();
+		responseWorker = null;
+		inbound.clear();
 		if (ioLog != null)
 			ioLog.close();
 		Log.d(TAG, "disconnect done");
@@ -135,28 +219,168 @@ abstract public class TinyGService extends Service {
 		}
 	}
 
-	@SuppressLint("DefaultLocale")
 	public static String short_jog(String axis, double step) {
-		return String.format("g91g0%s%f", axis, step);
+		return new CommandEncoder().append("g91g0").append(axis)
+				.appendFixed(step, 6).toString();
 	}
 
+	// There are three ways to queue a command.  send_* blocks while the
+	// queue is over its high watermark (until it drains to the low one), so
+	// a bulk producer is paced by TinyG.  offer_* never blocks and fails
+	// if the queue is full.  submit_* never blocks either, and returns a
+	// handle that completes once the command has been answered.
+	//
+	// Only submit_* commands get a handle.  Every line written, whichever
+	// way it was queued, is still paired with its response for inFlight()
+	// and getAckLatency(); there is just nothing to wait on for the rest.
+
 	public void send_gcode(String gcode) {
-		send_message("{\"gc\": \"" + gcode + "\"}\n"); // In verbose mode
-														// 2, only the f is
-														// returned for gc
+		try {
+			enqueue(GCODE_PREFIX, gcode, GCODE_SUFFIX, true, null); // In verbose mode
+																	// 2, only the f is
+																	// returned for gc
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public boolean offer_gcode(String gcode) {
+		return offer(GCODE_PREFIX, gcode, GCODE_SUFFIX, null);
+	}
+
+	public CommandFuture submit_gcode(String gcode) {
+		CommandFuture f = new CommandFuture();
+		offer(GCODE_PREFIX, gcode, GCODE_SUFFIX, f);
+		return f;
 	}
 
 	// Enqueue a command
 	public void send_message(String cmd) {
 		try {
-			Log.d(TAG, "adding " + cmd);
-			queue.put(cmd);
+			enqueue("", cmd, "", true, null);
 		} catch (InterruptedException e) {
 			// This really shouldn't happen
 			e.printStackTrace();
 		}
 	}
 
+	public boolean offer_message(String cmd) {
+		return offer("", cmd, "", null);
+	}
+
+	public CommandFuture submit_message(String cmd) {
+		CommandFuture f = new CommandFuture();
+		offer("", cmd, "", f);
+		return f;
+	}
+
+	// In bytes of queued commands
+	public void setQueueWatermarks(int low, int high) {
+		queue.setWatermarks(low, high);
+	}
+
+	private boolean offer(String prefix, String cmd, String suffix,
+			CommandFuture f) {
+		try {
+			if (enqueue(prefix, cmd, suffix, false, f))
+				return true;
+		} catch (InterruptedException e) {
+			// Can't happen without blocking
+		}
+		if (f != null)
+			f.complete(CommandFuture.REJECTED);
+		return false;
+	}
+
+	// Builds the line straight into the queue, no intermediate String.  A
+	// handle is registered before the line is visible to the processor.
+	// Whatever goes wrong in between, the line is dropped and the queue
+	// let go, so one bad command can't lock out every other producer.
+	private boolean enqueue(String prefix, String cmd, String suffix,
+			boolean block, CommandFuture f) throws InterruptedException {
+		int len = prefix.length() + cmd.length() + suffix.length();
+		int seq;
+
+		if (block)
+			seq = queue.beginLine(len);
+		else if ((seq = queue.tryBeginLine(len)) < 0)
+			return false;
+		try {
+			if (f != null) {
+				f.setSeq(seq);
+				synchronized (pending) {
+					pending.put(seq, f);
+					anyPending = true;
+				}
+			}
+			queue.append(prefix);
+			queue.append(cmd);
+			queue.append(suffix);
+		} catch (RuntimeException e) {
+			queue.abortLine();
+			if (f != null) {
+				synchronized (pending) {
+					pending.remove(seq);
+					anyPending = !pending.isEmpty();
+				}
+			}
+			throw e;
+		}
+		queue.endLine();
+		return true;
+	}
+
+	private void markSent(int seq[], int count) {
+		synchronized (pending) {
+			for (int i = 0; i < count; i++) {
+				CommandFuture f = pending.get(seq[i]);
+				if (f != null)
+					f.sent();
+			}
+		}
+	}
+
+	// Pairs a response with the oldest line still waiting for one
+	private void acknowledge(int status) {
+		int seq = inFlight.acked(System.nanoTime());
+
+		if (seq < 0)
+			return;
+		long rtt = inFlight.lastRoundTrip();
+		ackLatency.record(rtt / 1000);
+		if (anyPending) {
+			synchronized (pending) {
+				CommandFuture f = pending.remove(seq);
+				if (f != null)
+					f.acked(status, rtt);
+				anyPending = !pending.isEmpty();
+			}
+		}
+	}
+
+	// A flush only drops what we haven't written yet; lines already sent
+	// will still be answered.  Pass all when TinyG won't answer them.
+	private void cancelPending(boolean all) {
+		synchronized (pending) {
+			Iterator<CommandFuture> it = pending.values().iterator();
+			while (it.hasNext()) {
+				CommandFuture f = it.next();
+				if (all || !f.isSent()) {
+					f.complete(CommandFuture.CANCELLED);
+					it.remove();
+				}
+			}
+			anyPending = !pending.isEmpty();
+		}
+	}
+
+	private void wipeQueue() {
+		synchronized (wipeLock) {
+			generation++;
+			queue.clear();
+		}
+	}
+
 	// Pause can be completed by either a resume or a flush.
 	public void send_stop() {
 		Log.d(TAG, "in send_stop()");
@@ -164,146 +388,378 @@ abstract public class TinyGService extends Service {
 		send_flush();
 	}
 	
+	// Holding stops the queue processor before its next batch; the
+	// feedhold itself goes straight out on the realtime path.
 	public void send_pause() {
 		if (!paused) {
-			try {
-				writeLock.acquire();
-				Log.d(TAG, "sending feedhold");
-				write("!");
-				ioLog.write("* ", "!\n");
-				paused = true;
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+			setPaused(true);
+			send_realtime(RT_FEEDHOLD);
+			Log.d(TAG, "sent feedhold");
+			ioLog.write("* ", "!\n");
 		}
 	}
 	
 	public void send_flush() {
-			try {
-				if (!paused)
-					writeLock.acquire();
-				Log.d(TAG, "sending queue flush");
-				write("%");
-				ioLog.write("* ", "%\n");
-				
-				Log.d(TAG, "permits: " + serialBufferAvail.availablePermits());
-				int inuse = TINYG_BUFFER_SIZE - serialBufferAvail.availablePermits();
-				if (inuse > 0)
-					serialBufferAvail.release(inuse);
-				if (!queue.isEmpty()) {
-					queue.clear();
-					flushed = true;
-				}
-				paused = false;
-				writeLock.release();
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+		streamer.cancel();
+		wipeQueue();
+		cancelPending(false);
+		send_realtime(RT_QUEUE_FLUSH);
+		Log.d(TAG, "sent queue flush, flow: " + flow);
+		ioLog.write("* ", "%\n");
+		flow.reset();
+		setPaused(false);
 	}
 	
 	public void send_resume() {
 		if (paused) {
-			Log.d(TAG, "Sending cycle start");
-			write("~");
+			send_realtime(RT_CYCLE_START);
+			Log.d(TAG, "sent cycle start");
 			ioLog.write("* ", "~\n");
-			paused = false;
-			writeLock.release();
+			setPaused(false);
 		}
 	}
 	
 	public void send_reset() {
-		byte[] rst = {0x18};
-		
-		Log.d(TAG, "in send_reset()");
-		try {
-			writeLock.acquire();
-			Log.d(TAG, "sending reset");
-			ioLog.write("* ", "RESET\n");
-			write(rst);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+		streamer.cancel();
+		wipeQueue();
+		cancelPending(true);
+		inFlight.clear();
+		send_realtime(RT_RESET);
+		Log.d(TAG, "sent reset");
+		ioLog.write("* ", "RESET\n");
+		flow.reset();
+		setPaused(false);
+		refresh();
+	}
+
+	// Write a realtime command ahead of anything queued.  The latency from
+	// the call to the byte reaching the transport is kept for inspection.
+	protected void send_realtime(byte cmd) {
+		long start = System.nanoTime();
+
+		synchronized (transportLock) {
+			realtimeCmd[0] = cmd;
+			write(realtimeCmd, 0, 1);
 		}
+		long latency = System.nanoTime() - start;
+		lastRealtimeLatency = latency;
+		realtimeLatency.record(latency / 1000);
+		Log.d(TAG, "realtime " + cmd + " latency " + latency / 1000 + "us");
+	}
 
-		int inuse = TINYG_BUFFER_SIZE - serialBufferAvail.availablePermits();
-		if (inuse > 0)
-			serialBufferAvail.release(inuse);
-		if (!queue.isEmpty()) {
-			queue.clear();
-			flushed = true;
+	// Microseconds from the API call until a realtime command was written
+	public long getLastRealtimeLatency() {
+		return lastRealtimeLatency / 1000;
+	}
+
+	public long getMaxRealtimeLatency() {
+		return realtimeLatency.getMax();
+	}
+
+	public LatencyHistogram getRealtimeLatency() {
+		return realtimeLatency;
+	}
+
+	// Microseconds from writing a line until TinyG's response to it
+	public LatencyHistogram getAckLatency() {
+		return ackLatency;
+	}
+
+	// Lines written that TinyG hasn't answered yet
+	public int inFlight() {
+		return inFlight.size();
+	}
+
+	private void setPaused(boolean p) {
+		synchronized (hold) {
+			paused = p;
+			hold.notifyAll();
 		}
-		writeLock.release();
-		refresh();
 	}
 
+	// The machine state is updated on the response processor's thread, so
+	// anything else reading or changing it holds its lock
 	public Bundle getMotor(int m) {
-		return machine.getMotorBundle(m);
+		synchronized (machine) {
+			return machine.getMotorBundle(m);
+		}
 	}
 
 	// apply any new values in the bundle to the machine state
 	// and sends the necessary change commands to TinyG
+	// The settings commands are encoded straight to bytes and queued a line
+	// at a time; the debug log shows them as they go out.
 	public void putMotor(int m, Bundle b) {
-		String cmd = machine.updateMotorBundle(m, b);
-		Log.d(TAG, "update motor command: " + cmd);
-		send_message(cmd + "\n");
+		synchronized (encoder) {
+			synchronized (machine) {
+				machine.encodeMotorUpdate(m, b, encoder.reset());
+			}
+			send_encoded(encoder);
+		}
 	}
 
 	public void putAxis(int a, Bundle b) {
-		String cmd = machine.updateAxisBundle(a, b);
-		Log.d(TAG, "update axis command: " + cmd);
-		send_message(cmd + "\n");
+		synchronized (encoder) {
+			synchronized (machine) {
+				machine.encodeAxisUpdate(a, b, encoder.reset());
+			}
+			send_encoded(encoder);
+		}
 	}
 
 	public void putSystem(Bundle b) {
-		List<String> cmds = machine.updateSystemBundle(b);
+		synchronized (encoder) {
+			synchronized (machine) {
+				machine.encodeSystemUpdate(b, encoder.reset());
+			}
+			send_encoded(encoder);
+		}
+	}
+
+	// Jogs an axis (by index) step mm from where it is, at the rapid rate
+	// or at feed mm/min.  Like offer_gcode, false if the queue is full.
+	public boolean offer_jog(int axis, double step) {
+		synchronized (encoder) {
+			encoder.reset().append(GCODE_PREFIX).jog(axisLetter(axis), step)
+					.append(GCODE_SUFFIX);
+			return offer_encoded(encoder);
+		}
+	}
+
+	public boolean offer_jog(int axis, double step, double feed) {
+		synchronized (encoder) {
+			encoder.reset().append(GCODE_PREFIX).jog(axisLetter(axis), step,
+					feed).append(GCODE_SUFFIX);
+			return offer_encoded(encoder);
+		}
+	}
+
+	private static char axisLetter(int axis) {
+		return Machine.axisIndexToName[axis].charAt(0);
+	}
+
+	// Queues each line the encoder holds, blocking for room like send_*
+	private void send_encoded(CommandEncoder e) {
+		byte b[] = e.buffer();
+		int start = 0, n = e.length();
+
+		try {
+			for (int i = 0; i < n; i++) {
+				if (b[i] != '\n')
+					continue;
+				queue.beginLine(i + 1 - start);
+				try {
+					queue.append(b, start, i + 1 - start);
+				} catch (RuntimeException ex) {
+					queue.abortLine();
+					throw ex;
+				}
+				queue.endLine();
+				start = i + 1;
+			}
+		} catch (InterruptedException ex) {
+			ex.printStackTrace();
+		}
+	}
 
-		for (String cmd : cmds) {
-			Log.d(TAG, "update system command: " + cmd);
-			send_message(cmd + "\n");
+	// A single line, without blocking
+	private boolean offer_encoded(CommandEncoder e) {
+		if (queue.tryBeginLine(e.length()) < 0)
+			return false;
+		try {
+			queue.append(e.buffer(), 0, e.length());
+		} catch (RuntimeException ex) {
+			queue.abortLine();
+			throw ex;
 		}
+		queue.endLine();
+		return true;
 	}
 
 	public Bundle getAxis(int a) {
-		return machine.getAxisBundle(a);
+		synchronized (machine) {
+			return machine.getAxisBundle(a);
+		}
 	}
 
 	public Bundle getMachineStatus() {
-		return machine.getStatusBundle();
+		synchronized (machine) {
+			return machine.getStatusBundle();
+		}
 	}
 
 	public int queueSize() {
 		return queue.size();
 	}
+
+	// Sends a G-code file, reading it only as TinyG has room for more.
+	// Commands sent meanwhile go ahead of the rest of the file.  A flush or
+	// reset cancels the job.  The file is opened on a worker thread, as
+	// that can mean reading all of it; an error from there goes out on the
+	// state bus.
+	public void stream_file(String path) throws IOException {
+		stream_file(path, 1, 0, null);
+	}
+
+	// Streams from line (1 based), which starts offset bytes into the file,
+	// after sending the preamble lines that set up the machine for it.  The
+	// preamble is queued from the worker too, so waiting for queue room
+	// never holds up the caller.
+	public void stream_file(String path, final int line, final long offset,
+			final List<String> preamble) throws IOException {
+		final File src = new File(path);
+		double t = 0;
+
+		if (!src.canRead())
+			throw new FileNotFoundException(path);
+		try {
+			t = Double.parseDouble(settings.getString("compact_tolerance",
+					"0"));
+		} catch (NumberFormatException e) {
+		}
+		final double tolerance = t;
+		final boolean minimize = settings.getBoolean("minimize_gcode", true);
+		if (gcodeCache == null)
+			gcodeCache = new GcodeCache(getCacheDir());
+		final int job = streamer.prepare();
+		new Thread(new Runnable() {
+			public void run() {
+				openJob(src, minimize, tolerance, line, offset, preamble, job);
+			}
+		}, "TinyG-Open").start();
+	}
+
+	private void openJob(File src, boolean minimize, double tolerance,
+			int line, long offset, List<String> preamble, int job) {
+		GcodeStreamer.Source s;
+
+		try {
+			s = GcodeStreamer.open(src, minimize, tolerance, gcodeCache, line,
+					offset);
+		} catch (IOException e) {
+			Log.e(TAG, "error opening " + src + ": " + e.getMessage());
+			streamer.abandon(job);
+			synchronized (machine) {
+				bus.publishError("Can't open " + src.getName() + ": "
+						+ e.getMessage());
+			}
+			return;
+		}
+		// Ahead of the file's first line, and given up on with the job
+		if (preamble != null) {
+			for (String cmd : preamble) {
+				if (!streamer.isCurrent(job))
+					break;
+				send_gcode(cmd);
+			}
+		}
+		if (!streamer.start(s, job)) {
+			Log.d(TAG, "job for " + src + " cancelled while opening");
+			return;
+		}
+		streamer.feed(queue); // wakes the queue processor
+		Log.d(TAG, "streaming " + src + " from line " + line);
+	}
+
+	// Stops feeding the file without holding the machine
+	public void stream_pause() {
+		streamer.pause();
+	}
+
+	public void stream_resume() {
+		streamer.resume();
+		streamer.feed(queue);
+	}
+
+	public void stream_cancel() {
+		streamer.cancel();
+	}
+
+	public boolean isStreaming() {
+		return streamer.isActive();
+	}
+
+	// Line number in the file of the last line queued
+	public int streamLine() {
+		return streamer.lineNumber();
+	}
+
+	// G-code bytes read for the current or last job, and how many were
+	// left to send after minimizing
+	public long streamBytesRead() {
+		return streamer.bytesRead();
+	}
+
+	public long streamBytesSent() {
+		return streamer.bytesMinimized();
+	}
+
+	// Lines of G-code in the current or last job and how many were sent
+	// after toolpath compaction, both 0 if compaction is off
+	public long streamLinesRead() {
+		return streamer.linesRead();
+	}
+
+	public long streamLinesSent() {
+		return streamer.linesSent();
+	}
 	
-	protected void updateInfo(String line, Bundle b) {
-		String json = b.getString("json");
-		Intent i;
-
-		ioLog.write("< ", line + "\n");
-		Log.d(TAG, "< " + line);
-		if (json != null) {
-			if (json.equals("sr")) {
-				i = new Intent(STATUS);
-				i.putExtras(b);
-				sendBroadcast(i, null);
+	// From the transport's LineFramer, on its reader thread.  The line is
+	// copied into the inbound ring, waiting for room if the response
+	// processor is behind.
+	public void line(byte b[], int off, int len, int checksum) {
+		if (len + 3 > inbound.maxLine()) {
+			Log.e(TAG, "dropping a " + len + " byte response");
+			return;
+		}
+		try {
+			inbound.beginLine(len + 3);
+		} catch (InterruptedException e) {
+			return;
+		}
+		inbound.append((byte) (checksum >> 8));
+		inbound.append((byte) checksum);
+		inbound.append(b, off, len);
+		inbound.append((byte) '\n');
+		inbound.endLine();
+	}
+
+	// What the UI hears about goes out on the state bus from here.  Runs on
+	// the response processor's thread; the line ends in its newline.
+	protected void updateInfo(byte line[], int off, int len, Machine.Response r) {
+		ioLog.write("< ", line, off, len);
+		Log.d(TAG, "< " + new String(line, off, len - 1));
+		// The bus takes one publisher at a time; the machine lock makes
+		// sure of that against a job failing to open
+		switch (r.report) {
+		case Machine.Response.STATUS:
+		case Machine.Response.QUEUE:
+			synchronized (machine) {
+				bus.publishStatus(machine.getState());
 			}
-			if (json.equals("error")) {
-				ioLog.write("* ", "Parse error on JSON line\n");
-				i = new Intent(JSON_ERROR);
-				i.putExtras(b);
-				sendBroadcast(i, null);
+			break;
+		case Machine.Response.ERROR:
+			ioLog.write("* ", "Parse error on JSON line\n");
+			synchronized (machine) {
+				bus.publishError(r.error);
 			}
-			if (json.equals("x") || json.equals("y") || json.equals("z") ||
-					json.equals("a") || json.equals("b") || json.equals("c")) {
-				i = new Intent(AXIS_UPDATE);
-				sendBroadcast(i, null);
+			break;
+		case Machine.Response.AXIS:
+			synchronized (machine) {
+				bus.publishAxis(r.which);
 			}
+			break;
+		}
+		if (r.ack) {
+			acknowledge(r.status);
+			flow.onResponse(r.buffer);
 		}
-		int freed = b.getInt("buffer");
-		if (freed > 0) {
-			Log.d(TAG, "b: +" + freed);
-			serialBufferAvail.release(freed);
+		if (r.queueReport) {
+			int qr;
+			synchronized (machine) {
+				qr = machine.getState().qr;
+			}
+			flow.onQueueReport(qr);
 		}
 	}
 
@@ -330,31 +786,123 @@ abstract public class TinyGService extends Service {
 		send_message(CMD_GET_MACHINE_SETTINGS);
 	}
 
+	// Drains the queue into TinyG.  After blocking for the first line, it
+	// packs as many more queued lines as the flow control will take right
+	// now into one buffer, so a dense file goes out in a few large writes
+	// instead of one transport write per line.  Every line that got its
+	// credit and then isn't written gives the credit back.
 	private class QueueProcessor implements Runnable {
+		private final byte batch[] = new byte[QUEUE_SIZE];
+		private int batchSeq[] = new int[256];
+		private int batchLength[] = new int[256];
+		private int batchLines;
+
 		public void run() {
+			int len, batchLen;
+
 			try {
 				while (true) {
-					String cmd = queue.take();
-					Log.d(TAG, "taken");
-					Log.d(TAG, "b: -" + serialBufferAvail.availablePermits());
-					serialBufferAvail.acquire(cmd.length());
-					Log.d(TAG, "buffered");
-					flushed = false;
-					writeLock.acquire();
-					Log.d(TAG, "locked");
-					if (flushed) { // Don't write that last command if we wiped the queue
-						Log.d(TAG, "Skipping command line");
-						flushed = false;
-					} else {
-						ioLog.write("> ", cmd);
-						Log.d(TAG, "> " + cmd);
-						write(cmd);
-					} writeLock.release();
+					if (queue.isEmpty())
+						streamer.feed(queue);
+					queue.awaitData();
+					int gen = generation;
+					if ((len = queue.peekLength()) < 0)
+						continue;
+					flow.acquire(len);
+					batchLines = 0;
+					if ((batchLen = take(gen, len, 0)) < 0)
+						continue; // flushed underneath us
+					while (generation == gen
+							&& ((len = queue.peekLength()) >= 0 || (streamer
+									.feed(queue) && (len = queue.peekLength()) >= 0))
+							&& batchLen + len <= batch.length
+							&& flow.tryAcquire(len)) {
+						int n = take(gen, len, batchLen);
+						if (n < 0)
+							break;
+						batchLen += n;
+					}
+					synchronized (hold) {
+						while (paused)
+							hold.wait();
+					}
+					synchronized (transportLock) {
+						if (gen != generation) { // Don't write that batch if we wiped the queue
+							Log.d(TAG, "Skipping command lines");
+							for (int i = 0; i < batchLines; i++)
+								flow.release(batchLength[i]);
+						} else {
+							// Tracked before the write so a fast response
+							// can't beat its entry
+							long now = System.nanoTime();
+							for (int i = 0; i < batchLines; i++)
+								inFlight.sent(batchSeq[i], now);
+							if (anyPending)
+								markSent(batchSeq, batchLines);
+							ioLog.write("> ", batch, 0, batchLen);
+							write(batch, 0, batchLen);
+						}
+					}
 				}
 			} catch (InterruptedException e) {
 				Log.d(TAG, "Exiting queue processor");
 			}
 		}
+
+		// Moves the next line into the batch at off, for the credit taken
+		// for credit bytes.  Only lines of generation gen are taken; if
+		// the queue was wiped since, the credit goes back and this is -1.
+		private int take(int gen, int credit, int off) {
+			int n, seq;
+
+			synchronized (wipeLock) {
+				if (gen != generation || (n = queue.poll(batch, off)) < 0) {
+					flow.release(credit);
+					return -1;
+				}
+				seq = queue.lastSeq();
+			}
+			if (batchLines == batchSeq.length) {
+				int tmp[] = new int[2 * batchSeq.length];
+				System.arraycopy(batchSeq, 0, tmp, 0, batchLines);
+				batchSeq = tmp;
+				tmp = new int[2 * batchLength.length];
+				System.arraycopy(batchLength, 0, tmp, 0, batchLines);
+				batchLength = tmp;
+			}
+			batchSeq[batchLines] = seq;
+			batchLength[batchLines++] = credit;
+			return n;
+		}
+	}
+
+	// Parses what TinyG sends, off the main thread, and acts on it: the
+	// machine state is updated and acks go to the flow control here.  The
+	// UI only hears about it through the state bus.
+	private class ResponseProcessor implements Runnable {
+		private final byte line[] = new byte[INBOUND_SIZE];
+
+		public void run() {
+			int len;
+
+			try {
+				while (true) {
+					inbound.awaitData();
+					if ((len = inbound.poll(line, 0)) < 0)
+						continue;
+					int checksum = (short) (((line[0] & 0xff) << 8) | (line[1] & 0xff));
+					Machine.Response r;
+					synchronized (machine) {
+						r = machine.processJSON(line, 2, len - 3, checksum);
+					}
+					// r is only reused by the next processJSON, on this thread
+					if (r != null)
+						updateInfo(line, 2, len - 2, r);
+				}
+			} catch (InterruptedException e) {
+				Log.d(TAG, "Exiting response processor");
+			}
+		}
 	}
 
 }
@@ -0,0 +1,486 @@
+package org.csgeeks.TinyG.Support;
+
+// Replaces runs of short G1 moves with fewer lines: a single G1 when the
+// points lie within the tolerance of a straight line, or a G2/G3 when they
+// lie within it of a circular arc in the XY plane.  Arcs are only written
+// in G17 with incremental arc centers (G91.1), since their I and J are
+// offsets from the start; in any other plane or arc mode runs can only
+// become lines.  Lines are pushed in
+// one at a time and come out in order; at most MAX_RUN moves are held
+// back, so memory use is fixed.
+//
+// Only lines that are nothing but an optional G1 and X/Y/Z/F/N words are
+// merged, and only in absolute mode with the position of all three axes
+// known.  Everything else goes through untouched and just updates the
+// modal state.
+public class ToolpathCompactor {
+	private static final int MAX_RUN = 32;
+	// Arcs flatter than this are left as lines
+	private static final double MAX_RADIUS_MM = 2000;
+
+	private final double tolerance; // mm
+	private final GcodeParser parser = new GcodeParser();
+	private final ModalState state = new ModalState();
+
+	// The run: start point, then the end of each move in it
+	private final double start[] = new double[3];
+	private final double px[] = new double[MAX_RUN];
+	private final double py[] = new double[MAX_RUN];
+	private final double pz[] = new double[MAX_RUN];
+	private final int pline[] = new int[MAX_RUN];
+	private int count;
+	private boolean runLine, runArc; // what the run still fits
+	private double cx, cy; // arc center
+	private boolean ccw;
+	private boolean runFeed; // first move set the feed
+	private double feed;
+	// Original text of the first two moves, sent as is if they can't be
+	// merged
+	private byte first[] = new byte[254], second[] = new byte[254];
+	private int firstLen, secondLen;
+	private boolean secondFeed;
+	// TinyG was left in G2/G3 by an arc we wrote
+	private boolean wireArc;
+
+	// Finished lines waiting to be taken
+	private final byte out[][] = new byte[4][];
+	private final int outLen[] = new int[4];
+	private final int outNum[] = new int[4];
+	private int outHead, outCount;
+	private int taken;
+
+	private long linesIn, linesOut;
+
+	// tolerance is the most any point may be off the new path, in mm
+	public ToolpathCompactor(double tolerance) {
+		this.tolerance = tolerance;
+		for (int i = 0; i < out.length; i++)
+			out[i] = new byte[first.length + 2];
+	}
+
+	public void reset() {
+		state.reset();
+		count = 0;
+		outHead = outCount = 0;
+		wireArc = false;
+		linesIn = linesOut = 0;
+	}
+
+	public long linesIn() {
+		return linesIn;
+	}
+
+	public long linesOut() {
+		return linesOut;
+	}
+
+	public boolean hasOutput() {
+		return outCount > 0;
+	}
+
+	// Length of the line take() will return
+	public int nextLength() {
+		return outLen[outHead];
+	}
+
+	// Copies the next finished line into dst, returning its length, and
+	// leaves its file line number for lineNumber()
+	public int take(byte dst[]) {
+		int i = outHead, len = outLen[i];
+
+		System.arraycopy(out[i], 0, dst, 0, len);
+		outHead = (outHead + 1) % out.length;
+		outCount--;
+		taken = outNum[i];
+		return len;
+	}
+
+	public int lineNumber() {
+		return taken;
+	}
+
+	// Call at the end of the file to release the last run
+	public void finish() {
+		flushRun();
+	}
+
+	public void push(byte line[], int len, int lineNum) {
+		linesIn++;
+		if (!compactable(line, len)) {
+			flushRun();
+			passThrough(line, len, lineNum);
+			state.apply(parser, line, 0, len);
+			return;
+		}
+
+		// Where this move ends
+		double x = state.pos[ModalState.X], y = state.pos[ModalState.Y], z = state.pos[ModalState.Z];
+		double f = Double.NaN;
+		parser.reset(line, 0, len);
+		while (parser.next()) {
+			switch (parser.letter()) {
+			case 'X':
+				x = parser.value();
+				break;
+			case 'Y':
+				y = parser.value();
+				break;
+			case 'Z':
+				z = parser.value();
+				break;
+			case 'F':
+				f = parser.value();
+				break;
+			}
+		}
+
+		if (count > 0 && (count == MAX_RUN || (!Double.isNaN(f) && f != feed))) {
+			flushRun();
+		} else if (count > 0 && !extend(x, y, z)) {
+			if (count == 2 && !runLine) {
+				// The first move stays as it was, the second may start a run
+				emitOriginal(first, firstLen, pline[0]);
+				dropFirst();
+				extend(x, y, z);
+			} else
+				flushRun();
+		}
+		if (count == 0) {
+			System.arraycopy(state.pos, 0, start, 0, 3);
+			runLine = true;
+			runArc = false;
+			runFeed = !Double.isNaN(f);
+			feed = runFeed ? f : state.feed;
+			firstLen = len;
+			System.arraycopy(line, 0, first, 0, len);
+		} else if (count == 1) {
+			secondFeed = !Double.isNaN(f);
+			secondLen = len;
+			System.arraycopy(line, 0, second, 0, len);
+		}
+		px[count] = x;
+		py[count] = y;
+		pz[count] = z;
+		pline[count] = lineNum;
+		count++;
+		state.apply(parser, line, 0, len);
+	}
+
+	// A plain G1 in absolute mode starting from a known position
+	private boolean compactable(byte line[], int len) {
+		boolean axes = false;
+		int motion = state.motion;
+
+		if (tolerance <= 0 || !state.absolute || !state.positionKnown()
+				|| len > first.length)
+			return false;
+		parser.reset(line, 0, len);
+		while (parser.next()) {
+			switch (parser.letter()) {
+			case 'G':
+				if (parser.code() != 10)
+					return false;
+				motion = 1;
+				break;
+			case 'X':
+			case 'Y':
+			case 'Z':
+				axes = true;
+				break;
+			case 'F':
+			case 'N':
+				break;
+			default:
+				return false;
+			}
+		}
+		return axes && motion == 1 && !parser.isBad() && !parser.hasComment()
+				&& !parser.isBlockDelete();
+	}
+
+	// Tries to add a point to the run, keeping track of what it still fits.
+	// Two moves that aren't straight are kept while they might begin an arc.
+	private boolean extend(double x, double y, double z) {
+		px[count] = x;
+		py[count] = y;
+		pz[count] = z;
+		boolean line = runLine && fitsLine(count + 1);
+		boolean arc = fitsArc(count + 1);
+
+		if (!line && !arc && count > 1)
+			return false;
+		runLine = line;
+		runArc = arc;
+		return true;
+	}
+
+	private double tol() {
+		return state.inches ? tolerance / 25.4 : tolerance;
+	}
+
+	// Every point within tolerance of the chord from start to the last
+	// point, and moving forward along it
+	private boolean fitsLine(int n) {
+		double dx = px[n - 1] - start[0], dy = py[n - 1] - start[1], dz = pz[n - 1] - start[2];
+		double len2 = dx * dx + dy * dy + dz * dz, t, last = 0, tol = tol();
+
+		if (len2 == 0)
+			return false;
+		for (int i = 0; i < n - 1; i++) {
+			double ax = px[i] - start[0], ay = py[i] - start[1], az = pz[i] - start[2];
+			t = (ax * dx + ay * dy + az * dz) / len2;
+			if (t < last || t > 1)
+				return false;
+			last = t;
+			double ex = ax - t * dx, ey = ay - t * dy, ez = az - t * dz;
+			if (ex * ex + ey * ey + ez * ez > tol * tol)
+				return false;
+		}
+		return true;
+	}
+
+	// A circle in the XY plane through the start, middle and last point
+	// that every point and every chord stays within tolerance of, swept in
+	// one direction by less than a full turn
+	private boolean fitsArc(int n) {
+		double tol = tol();
+
+		if (n < 3 || state.plane != 17 || state.arcAbsolute)
+			return false;
+		for (int i = 0; i < n; i++)
+			if (pz[i] != start[2])
+				return false;
+
+		int m = n / 2;
+		double ax = start[0], ay = start[1];
+		double bx = px[m - 1], by = py[m - 1];
+		double ex = px[n - 1], ey = py[n - 1];
+		double d = 2 * (ax * (by - ey) + bx * (ey - ay) + ex * (ay - by));
+		if (Math.abs(d) < 1e-12)
+			return false;
+		double a2 = ax * ax + ay * ay, b2 = bx * bx + by * by, e2 = ex * ex + ey * ey;
+		double x0 = (a2 * (by - ey) + b2 * (ey - ay) + e2 * (ay - by)) / d;
+		double y0 = (a2 * (ex - bx) + b2 * (ax - ex) + e2 * (bx - ax)) / d;
+		double r = Math.hypot(ax - x0, ay - y0);
+		double maxR = state.inches ? MAX_RADIUS_MM / 25.4 : MAX_RADIUS_MM;
+		if (r > maxR || r < 2 * tol)
+			return false;
+
+		double sweep = 0, lx = ax, ly = ay;
+		int dir = 0;
+		for (int i = 0; i < n; i++) {
+			double qx = px[i], qy = py[i];
+			if (Math.abs(Math.hypot(qx - x0, qy - y0) - r) > tol)
+				return false;
+			double cross = (lx - x0) * (qy - y0) - (ly - y0) * (qx - x0);
+			double dot = (lx - x0) * (qx - x0) + (ly - y0) * (qy - y0);
+			int s = cross > 0 ? 1 : cross < 0 ? -1 : 0;
+			if (s == 0 || (dir != 0 && s != dir))
+				return false;
+			dir = s;
+			// How far the chord strays from the arc
+			double half = Math.hypot(qx - lx, qy - ly) / 2;
+			if (half >= r || r - Math.sqrt(r * r - half * half) > tol)
+				return false;
+			sweep += Math.abs(Math.atan2(cross, dot));
+			lx = qx;
+			ly = qy;
+		}
+		if (sweep >= 2 * Math.PI - 0.01)
+			return false;
+		cx = x0;
+		cy = y0;
+		ccw = dir > 0;
+		return true;
+	}
+
+	private void flushRun() {
+		if (count == 0)
+			return;
+		if (count == 1 || (!runLine && !runArc)) {
+			// Nothing merged, send what was in the file
+			emitOriginal(first, firstLen, pline[0]);
+			if (count == 2)
+				emitOriginal(second, secondLen, pline[1]);
+			count = 0;
+			return;
+		}
+
+		int slot = slot();
+		byte b[] = out[slot];
+		int n = 0;
+
+		if (runLine) {
+			n = word(b, n, 'G', 1, 0);
+			n = axes(b, n);
+			wireArc = false;
+		} else {
+			n = word(b, n, 'G', ccw ? 3 : 2, 0);
+			n = axes(b, n);
+			n = word(b, n, 'I', cx - start[0], decimals());
+			n = word(b, n, 'J', cy - start[1], decimals());
+			wireArc = true;
+		}
+		if (runFeed)
+			n = word(b, n, 'F', feed, 3);
+		emit(slot, n, pline[count - 1]);
+		count = 0;
+	}
+
+	private void emitOriginal(byte line[], int len, int lineNum) {
+		int slot = slot();
+
+		emit(slot, copy(line, len, out[slot], wireArc && movesWithoutG(line, len)),
+				lineNum);
+		wireArc = false;
+	}
+
+	// Starts the run over from the second move
+	private void dropFirst() {
+		start[0] = px[0];
+		start[1] = py[0];
+		start[2] = pz[0];
+		px[0] = px[1];
+		py[0] = py[1];
+		pz[0] = pz[1];
+		pline[0] = pline[1];
+		byte t[] = first;
+		first = second;
+		second = t;
+		firstLen = secondLen;
+		runFeed = secondFeed;
+		runLine = true;
+		runArc = false;
+		count = 1;
+	}
+
+	private int axes(byte b[], int n) {
+		int last = count - 1, dec = decimals();
+
+		if (px[last] != start[0])
+			n = word(b, n, 'X', px[last], dec);
+		if (py[last] != start[1])
+			n = word(b, n, 'Y', py[last], dec);
+		if (pz[last] != start[2])
+			n = word(b, n, 'Z', pz[last], dec);
+		return n;
+	}
+
+	private int decimals() {
+		return state.inches ? 5 : 4;
+	}
+
+	private void passThrough(byte line[], int len, int lineNum) {
+		int slot = slot();
+		byte b[] = out[slot];
+		boolean restore = false;
+
+		if (b.length < len + 2)
+			b = out[slot] = new byte[len + 2];
+		// An arc we wrote changed TinyG's motion mode under the file
+		if (wireArc && state.motion == 1 && movesWithoutG(line, len)) {
+			restore = true;
+			wireArc = false;
+		} else if (wireArc && startsMotion(line, len)) {
+			wireArc = false;
+		}
+		emit(slot, copy(line, len, b, restore), lineNum);
+	}
+
+	// Copies a line, putting a G1 in after any block delete and line number
+	// if asked to
+	private static int copy(byte line[], int len, byte b[], boolean g1) {
+		int k = 0;
+
+		if (!g1) {
+			System.arraycopy(line, 0, b, 0, len);
+			return len;
+		}
+		if (k < len && line[k] == '/')
+			k++;
+		while (k < len && line[k] == ' ')
+			k++;
+		if (k < len && (line[k] == 'N' || line[k] == 'n')) {
+			k++;
+			while (k < len && line[k] >= '0' && line[k] <= '9')
+				k++;
+		}
+		System.arraycopy(line, 0, b, 0, k);
+		b[k] = 'G';
+		b[k + 1] = '1';
+		System.arraycopy(line, k, b, k + 2, len - k);
+		return len + 2;
+	}
+
+	private boolean movesWithoutG(byte line[], int len) {
+		boolean axes = false;
+
+		parser.reset(line, 0, len);
+		while (parser.next()) {
+			if (parser.letter() == 'G' && parser.code() <= 30)
+				return false;
+			if (ModalState.axis(parser.letter()) >= 0)
+				axes = true;
+		}
+		return axes;
+	}
+
+	private boolean startsMotion(byte line[], int len) {
+		parser.reset(line, 0, len);
+		while (parser.next())
+			if (parser.letter() == 'G' && parser.code() <= 30)
+				return true;
+		return false;
+	}
+
+	private int slot() {
+		return (outHead + outCount) % out.length;
+	}
+
+	private void emit(int slot, int len, int lineNum) {
+		outLen[slot] = len;
+		outNum[slot] = lineNum;
+		outCount++;
+		linesOut++;
+	}
+
+	// Appends a word like X-1.25, at most dec decimals with trailing zeros
+	// dropped
+	static int word(byte b[], int n, char letter, double v, int dec) {
+		long scale = 1;
+		for (int i = 0; i < dec; i++)
+			scale *= 10;
+		long q = Math.round(Math.abs(v) * scale);
+
+		b[n++] = (byte) letter;
+		if (v < 0 && q != 0)
+			b[n++] = '-';
+		n = digits(b, n, q / scale);
+		long frac = q % scale;
+		if (frac != 0) {
+			int len = dec;
+			while (frac % 10 == 0) {
+				frac /= 10;
+				len--;
+			}
+			b[n++] = '.';
+			for (long p = scale / 10; len > 0; len--, p /= 10)
+				b[n++] = (byte) ('0' + (q % scale) / p % 10);
+		}
+		return n;
+	}
+
+	private static int digits(byte b[], int n, long v) {
+		int start = n;
+		do {
+			b[n++] = (byte) ('0' + v % 10);
+			v /= 10;
+		} while (v > 0);
+		for (int i = start, j = n - 1; i < j; i++, j--) {
+			byte t = b[i];
+			b[i] = b[j];
+			b[j] = t;
+		}
+		return n;
+	}
+}
@@ -6,6 +6,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
+import org.csgeeks.TinyG.Support.LineFramer;
 import org.csgeeks.TinyG.Support.TinyGService;
 
 import android.annotation.TargetApi;
@@ -16,7 +17,6 @@ import android.content.IntentFilter;
 import android.hardware.usb.UsbAccessory;
 import android.hardware.usb.UsbManager;
 import android.os.AsyncTask;
-import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.widget.Toast;
@@ -59,9 +59,12 @@ public class USBAccessoryService extends TinyGService {
 	}
 
 	public void write(byte b[]) {
-		Log.d(TAG, "Writing bytes to USB");
+		write(b, 0, b.length);
+	}
+
+	public void write(byte b[], int off, int len) {
 		try {
-			mOutputStream.write(b);
+			mOutputStream.write(b, off, len);
 		} catch (IOException e) {
 			e.printStackTrace();			
 		}
@@ -74,6 +77,8 @@ public class USBAccessoryService extends TinyGService {
 			Log.d(TAG, "already connected");
 			return;
 		}
+		// Starts the queue and response processors and the debug log
+		super.connect();
 
 		UsbAccessory[] accessories = usbManager.getAccessoryList();
 		mAccessory = (accessories == null ? null
@@ -139,28 +144,22 @@ public class USBAccessoryService extends TinyGService {
 		}
 	};
 	
-	protected class ListenerTask extends AsyncTask<InputStream, String, Void> {
+	// Lines go straight to the service's response processor.
+	protected class ListenerTask extends AsyncTask<InputStream, Void, Void> {
 		@Override
 		protected Void doInBackground(InputStream... params) {
 			byte[] buffer = new byte[1024];
+			LineFramer framer = new LineFramer(USBAccessoryService.this);
 			InputStream lis = params[0];
-			int r_idx;
 			int res = 0;
-			int idx = 0;
 			try {
 				Log.d(TAG, "Starting read loop");
 				while (!isCancelled()) {
-					res = lis.read(buffer, idx, buffer.length-idx);
+					res = lis.read(buffer, 0, buffer.length);
 					if (res < 0) {
 						break;
 					}
-					idx += res;
-					r_idx = processLine(buffer, idx);
-					Log.d(TAG, "Leftovers: " + r_idx + "bytes");
-					if (r_idx > 0) {
-						System.arraycopy(buffer, r_idx, buffer, 0, idx-r_idx);
-						idx = idx-r_idx;
-					}
+					framer.feed(buffer, 0, res);
 				}
 			} catch (IOException e) {
 				Log.e(TAG, "listener read: " + e.getMessage());
@@ -168,33 +167,6 @@ public class USBAccessoryService extends TinyGService {
 			return null;
 		}
 
-		private int processLine(byte[] buf, int len) {
-			Log.d(TAG, "processing " + len + " bytes (" + new String(buf, 0, len) + ")");
-			for (int i=0; i < len; i++) {
-				if (buf[i] == '\n') {
-					Log.d(TAG, "found newline at " + i);
-					publishProgress(new String(buf, 0, i));
-					return i+1;
-				}
-			}
-			return 0;
-		}
-
-		@Override
-		protected void onProgressUpdate(String... values) {
-			Bundle b;
-			if (values.length > 0) {
-				if ((b = machine.processJSON(values[0])) != null) {
-					String json = b.getString("json");
-					if (json.equals("sr")) {
-						Intent i = new Intent(STATUS);
-						i.putExtras(b);
-						sendBroadcast(i, null);
-					}
-				}
-			}
-		}
-
 		@Override
 		protected void onCancelled() {
 			Log.i(TAG, "ListenerTask cancelled");
@@ -2,6 +2,7 @@ package org.csgeeks.TinyG.USBHost;
 
 // Copyright 2012 Matthew Stock
 
+import org.csgeeks.TinyG.Support.LineFramer;
 import org.csgeeks.TinyG.Support.TinyGService;
 
 import android.annotation.TargetApi;
@@ -27,6 +28,8 @@ public class USBHostService extends TinyGService {
 	private static final String TAG = "TinyG-USBHost";
 	private static final String ACTION_USB_PERMISSION = "org.csgeeks.TinyG.USB_PERMISSION";
 	private static final int USB_BUFFER_SIZE = 16*1024;
+	// Largest single bulk transfer we hand to the host controller
+	private static final int USB_WRITE_SIZE = 4*1024;
 
 	// USB IDs for the TinyG hardware.
 	// TODO make them parameters.
@@ -36,6 +39,7 @@ public class USBHostService extends TinyGService {
 	private UsbDeviceConnection conn;
 	private UsbEndpoint epIN;
 	private UsbEndpoint epOUT;
+	private final byte outbuffer[] = new byte[USB_WRITE_SIZE];
 	protected ListenerTask mListener;
 
 	@Override
@@ -145,19 +149,27 @@ public class USBHostService extends TinyGService {
 	}
 	
 	public void write(byte b[]) {
-		int from_idx, to_idx, res;
-		byte tmp[] = new byte[64];
-
-		from_idx = 0;
-		while (from_idx < b.length) {
-			to_idx = 0;
-			while (to_idx < 64 && from_idx < b.length) {
-				tmp[to_idx++] = b[from_idx++];
-			}
+		write(b, 0, b.length);
+	}
 
-			if ((res = conn.bulkTransfer(epOUT, tmp, to_idx, 500)) != to_idx) {
-				Log.e(TAG, "USB send failed with code " + res);
+	// bulkTransfer() can't take an offset before API 18, so a batch that
+	// doesn't start at 0 goes through outbuffer.  Either way a whole batch
+	// is one transfer; the host controller splits it into packets.
+	public synchronized void write(byte b[], int off, int len) {
+		int chunk, res;
+
+		while (len > 0) {
+			chunk = Math.min(len, USB_WRITE_SIZE);
+			if (off == 0 && chunk == len) {
+				res = conn.bulkTransfer(epOUT, b, chunk, 500);
+			} else {
+				System.arraycopy(b, off, outbuffer, 0, chunk);
+				res = conn.bulkTransfer(epOUT, outbuffer, chunk, 500);
 			}
+			if (res != chunk)
+				Log.e(TAG, "USB send failed with code " + res);
+			off += chunk;
+			len -= chunk;
 		}
 	}
 
@@ -177,12 +189,13 @@ public class USBHostService extends TinyGService {
 	}
 
 	// Handle data from the USB endpoint in a separate thread.
-	protected class ListenerTask extends AsyncTask<Integer, String, Void> {
+	// Lines go straight to the service's response processor.
+	protected class ListenerTask extends AsyncTask<Integer, Void, Void> {
 		@Override
 		protected Void doInBackground(Integer... params) {
 			byte[] inbuffer = new byte[USB_BUFFER_SIZE];
-			byte[] linebuffer = new byte[1024];
-			int cnt, idx = 0;
+			LineFramer framer = new LineFramer(USBHostService.this);
+			int cnt;
 			try {
 				Log.d(TAG, "USB listener loop starting");
 				while (!isCancelled()) {
@@ -190,17 +203,11 @@ public class USBHostService extends TinyGService {
 						Log.e(TAG, "Bulk read failed");
 						return null;
 					}
-					for (int i = 0; i < cnt; i++) {
-						if (i % 64 == 0) { // Skip the two FTDI bytes that are spaced every 64 bytes
-							i++;
-							continue;
-						}		
-						if (inbuffer[i] == '\n') {
-							Log.d(TAG, "Got a line");
-							publishProgress(new String(linebuffer, 0, idx));
-							idx = 0;
-						} else
-							linebuffer[idx++] = inbuffer[i];
+					// Skip the two FTDI status bytes that start every 64 byte packet
+					for (int p = 0; p < cnt; p += 64) {
+						int n = Math.min(64, cnt - p) - 2;
+						if (n > 0)
+							framer.feed(inbuffer, p + 2, n);
 					}
 				}
 			} catch (Exception e) {
@@ -209,18 +216,6 @@ public class USBHostService extends TinyGService {
 			return null;
 		}
 
-		// When we receive a full line of input, parse it and send
-		// a broadcast to notify activities if needed.
-		@Override
-		protected void onProgressUpdate(String... values) {
-			Bundle b;
-			if (values.length <= 0)
-				return;
-			if ((b = machine.processJSON(values[0])) == null)
-				return;
-			updateInfo(values[0], b);
-		}
-
 		@Override
 		protected void onCancelled() {
 			Log.i(TAG, "ListenerTask cancelled");
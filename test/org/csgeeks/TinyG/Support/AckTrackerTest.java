@@ -0,0 +1,83 @@
+package org.csgeeks.TinyG.Support;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AckTrackerTest {
+	@Test
+	public void answersInOrder() {
+		AckTracker t = new AckTracker(4);
+
+		t.sent(1, 100);
+		t.sent(2, 150);
+		t.sent(3, 175);
+		assertEquals(3, t.size());
+		assertEquals(1, t.acked(1000));
+		assertEquals(900, t.lastRoundTrip());
+		assertEquals(2, t.acked(1100));
+		assertEquals(950, t.lastRoundTrip());
+		assertEquals(3, t.acked(1200));
+		assertEquals(0, t.size());
+	}
+
+	@Test
+	public void nothingOutstanding() {
+		AckTracker t = new AckTracker(4);
+
+		assertEquals(-1, t.acked(100));
+		t.sent(7, 100);
+		assertEquals(7, t.acked(300));
+		assertEquals(-1, t.acked(400));
+		// A stray response leaves the last round trip alone
+		assertEquals(200, t.lastRoundTrip());
+	}
+
+	@Test
+	public void sequenceWraps() {
+		AckTracker t = new AckTracker(4);
+		int s = Integer.MAX_VALUE - 1;
+
+		for (int i = 0; i < 4; i++)
+			t.sent(s + i, i);
+		assertEquals(Integer.MAX_VALUE - 1, t.acked(10));
+		assertEquals(Integer.MAX_VALUE, t.acked(10));
+		assertEquals(Integer.MIN_VALUE, t.acked(10));
+		assertEquals(Integer.MIN_VALUE + 1, t.acked(10));
+	}
+
+	@Test
+	public void ringWrapsAndGrows() {
+		AckTracker t = new AckTracker(4);
+		int next = 0, expect = 0;
+
+		// Move head part way round so the grow has to unwrap the ring
+		for (int i = 0; i < 3; i++, next++)
+			t.sent(next, next);
+		for (int i = 0; i < 2; i++)
+			assertEquals(expect++, t.acked(100));
+		for (int i = 0; i < 9; i++, next++)
+			t.sent(next, next);
+		assertEquals(10, t.size());
+		while (t.size() > 0) {
+			assertEquals(expect, t.acked(100));
+			assertEquals(100 - expect, t.lastRoundTrip());
+			expect++;
+		}
+		assertEquals(next, expect);
+	}
+
+	@Test
+	public void clearForgetsEverything() {
+		AckTracker t = new AckTracker(2);
+
+		t.sent(1, 0);
+		t.sent(2, 0);
+		t.sent(3, 0);
+		t.clear();
+		assertEquals(0, t.size());
+		assertEquals(-1, t.acked(10));
+		t.sent(4, 5);
+		assertEquals(4, t.acked(10));
+	}
+}
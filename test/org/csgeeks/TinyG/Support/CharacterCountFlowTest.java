@@ -0,0 +1,97 @@
+package org.csgeeks.TinyG.Support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CharacterCountFlowTest {
+	private static final int SIZE = 254;
+	private CharacterCountFlow flow;
+	private FakeTinyG tinyg;
+
+	@Before
+	public void setUp() {
+		flow = new CharacterCountFlow(SIZE);
+		tinyg = new FakeTinyG(flow);
+	}
+
+	@Test
+	public void creditsAreByteExact() {
+		assertTrue(tinyg.trySend(100));
+		assertTrue(tinyg.trySend(100));
+		assertFalse(tinyg.trySend(55));
+		assertTrue(tinyg.trySend(54));
+		assertEquals(SIZE, tinyg.buffered());
+		assertFalse(tinyg.trySend(1));
+	}
+
+	@Test
+	public void answersGiveBackTheirBytes() {
+		tinyg.trySend(100);
+		tinyg.trySend(100);
+		tinyg.trySend(54);
+		tinyg.answer();
+		assertFalse(tinyg.trySend(101));
+		assertTrue(tinyg.trySend(100));
+		assertFalse(tinyg.trySend(1));
+	}
+
+	@Test
+	public void lineLongerThanTheBufferTakesAllOfIt() {
+		assertTrue(flow.tryAcquire(SIZE + 100));
+		assertFalse(flow.tryAcquire(1));
+	}
+
+	@Test
+	public void streamingNeverOverrunsTheBuffer() {
+		for (int i = 0; i < 2000; i++) {
+			int length = 5 + (i * 37) % 90;
+			while (!tinyg.trySend(length))
+				tinyg.answer();
+		}
+		assertTrue(tinyg.maxBuffered() <= SIZE);
+		assertTrue(tinyg.maxBuffered() > SIZE - 95);
+	}
+
+	@Test(timeout = 5000)
+	public void blockedSendWakesOnAnswer() throws Exception {
+		tinyg.trySend(200);
+		Thread sender = new Thread() {
+			public void run() {
+				try {
+					tinyg.send(100);
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		sender.start();
+		Thread.sleep(50);
+		assertEquals(1, tinyg.unanswered());
+		tinyg.answer();
+		sender.join();
+		assertEquals(100, tinyg.buffered());
+	}
+
+	@Test
+	public void resetFreesEverything() {
+		tinyg.trySend(200);
+		tinyg.trySend(54);
+		flow.reset();
+		assertTrue(flow.tryAcquire(SIZE));
+		assertFalse(flow.tryAcquire(1));
+	}
+
+	@Test
+	public void releaseNeverFreesMoreThanInUse() {
+		assertTrue(flow.tryAcquire(100));
+		flow.release(100);
+		assertTrue(flow.tryAcquire(SIZE));
+		flow.reset();
+		flow.release(100);
+		assertTrue(flow.tryAcquire(SIZE));
+		assertFalse(flow.tryAcquire(1));
+	}
+}
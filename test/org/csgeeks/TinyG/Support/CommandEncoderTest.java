@@ -0,0 +1,111 @@
+package org.csgeeks.TinyG.Support;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+// The encoder has to write numbers byte for byte the way the old
+// String.format and Float.toString code did
+public class CommandEncoderTest {
+	private final CommandEncoder e = new CommandEncoder(4);
+
+	private void checkFixed(double v, int decimals) {
+		String expected = String.format(Locale.US, "%." + decimals + "f", v);
+		assertEquals(v + " to " + decimals, expected, e.reset().appendFixed(
+				v, decimals).toString());
+	}
+
+	private void checkFloat(float v) {
+		assertEquals(Float.toString(v), e.reset().appendFloat(v).toString());
+	}
+
+	@Test
+	public void fixedEdgeValues() {
+		double values[] = { 0, -0.0, 1, -1, 0.5, -0.5, 1.5, 2.5, 0.0000005,
+				-0.0000005, 0.00000049, 1e-7, -1e-7, 0.9999995, -0.9999995,
+				9.9999999, 99.9999995, 0.125, 0.375, 1.0005, 2.675, 1.005,
+				123456.789, -123456.789, 1e9, 1e12, -1e12, 3.999e9, 4e9,
+				1e15, 1e20, -1e20, 1e300, Double.MIN_VALUE, Double.MAX_VALUE,
+				Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+		for (double v : values)
+			for (int d = 0; d <= 10; d++)
+				checkFixed(v, d);
+	}
+
+	@Test
+	public void fixedRoundingCarries() {
+		checkFixed(9.9995, 3);
+		checkFixed(-9.9995, 3);
+		checkFixed(999.9996, 3);
+		checkFixed(0.0999995, 6);
+		checkFixed(19.9999999, 6);
+		checkFixed(-99999.9999995, 6);
+	}
+
+	@Test
+	public void fixedHalfwayDecimals() {
+		// Every n + 0.5 / 10^d is a tie that %f rounds up
+		for (int d = 0; d <= 6; d++)
+			for (int n = 0; n < 2000; n++)
+				checkFixed((n + 0.5) / Math.pow(10, d), d);
+	}
+
+	@Test
+	public void fixedRandomValues() {
+		Random r = new Random(20);
+
+		for (int i = 0; i < 200000; i++) {
+			double v = (r.nextDouble() - 0.5) * Math.pow(10, r.nextInt(12) - 3);
+			checkFixed(v, r.nextInt(8));
+		}
+	}
+
+	@Test
+	public void floatEdgeValues() {
+		float values[] = { 0, -0.0f, 1, -1, 0.1f, -0.1f, 0.001f, 0.00099999f,
+				0.0009f, 1e-3f, 9999999f, 1e7f, 1e7f - 1, 123.456f, 16000f,
+				800.5f, 36.54f, 1.8f, 0.3f, 1f / 3, 2f / 3, -2f / 3, 1e-10f,
+				3.4e38f, Float.MIN_VALUE, Float.MAX_VALUE, Float.NaN,
+				Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY };
+
+		for (float v : values)
+			checkFloat(v);
+	}
+
+	@Test
+	public void floatRandomValues() {
+		Random r = new Random(21);
+
+		for (int i = 0; i < 200000; i++)
+			checkFloat((float) ((r.nextDouble() - 0.5) * Math.pow(10, r
+					.nextInt(12) - 4)));
+		for (int i = 0; i < 200000; i++)
+			checkFloat(Float.intBitsToFloat(r.nextInt()));
+	}
+
+	@Test
+	public void ints() {
+		long values[] = { 0, 1, -1, 9, 10, 99, 100, 123456789, -987654321,
+				Long.MAX_VALUE, Long.MIN_VALUE };
+
+		for (long v : values)
+			assertEquals(Long.toString(v), e.reset().appendInt(v).toString());
+	}
+
+	// With the format strings and float steps JogFragment used
+	@Test
+	public void jogsAsTheyWereFormatted() {
+		float steps[] = { 0.1f, -0.1f, 1, -10, 0.01f, 2.5f, 100 };
+
+		for (float step : steps) {
+			assertEquals(String.format(Locale.US, "g91 g0%s%f", "x", step), e
+					.reset().jog('x', step).toString());
+			assertEquals(String.format(Locale.US, "g91 f%f g1%s%f", 8000f / 3,
+					"z", step), e.reset().jog('z', step, 8000f / 3).toString());
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package org.csgeeks.TinyG.Support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CommandFutureTest {
+	@Test
+	public void sentThenAcked() throws InterruptedException {
+		CommandFuture f = new CommandFuture();
+
+		assertEquals(-1, f.getSeq());
+		f.setSeq(12);
+		assertEquals(CommandFuture.PENDING, f.getState());
+		assertFalse(f.isSent());
+		f.sent();
+		assertEquals(CommandFuture.SENT, f.getState());
+		assertTrue(f.isSent());
+		assertFalse(f.isDone());
+		f.acked(0, 2500000);
+		assertEquals(CommandFuture.ACKED, f.await());
+		assertTrue(f.isSent());
+		assertTrue(f.isDone());
+		assertEquals(12, f.getSeq());
+		assertEquals(0, f.getStatus());
+		assertEquals(2500, f.getRoundTrip());
+	}
+
+	// The response can be processed before the writer marks the line sent
+	@Test
+	public void ackedBeforeSent() {
+		CommandFuture f = new CommandFuture();
+
+		f.acked(20, 1000);
+		f.sent();
+		assertEquals(CommandFuture.ACKED, f.getState());
+		assertEquals(20, f.getStatus());
+	}
+
+	@Test
+	public void firstOutcomeWins() {
+		CommandFuture f = new CommandFuture();
+
+		f.sent();
+		f.acked(0, 1000);
+		f.complete(CommandFuture.CANCELLED);
+		assertEquals(CommandFuture.ACKED, f.getState());
+
+		f = new CommandFuture();
+		f.complete(CommandFuture.CANCELLED);
+		f.acked(0, 1000);
+		f.sent();
+		assertEquals(CommandFuture.CANCELLED, f.getState());
+		assertFalse(f.isSent());
+		assertEquals(0, f.getRoundTrip());
+	}
+
+	@Test
+	public void flushed() throws InterruptedException {
+		CommandFuture f = new CommandFuture();
+
+		f.setSeq(3);
+		f.complete(CommandFuture.CANCELLED);
+		assertEquals(CommandFuture.CANCELLED, f.await(0, TimeUnit.MILLISECONDS));
+		assertTrue(f.isDone());
+		assertFalse(f.isSent());
+	}
+
+	@Test
+	public void rejected() throws InterruptedException {
+		CommandFuture f = new CommandFuture();
+
+		f.complete(CommandFuture.REJECTED);
+		assertEquals(CommandFuture.REJECTED, f.await());
+		assertEquals(-1, f.getSeq());
+	}
+
+	@Test
+	public void awaitTimesOut() throws InterruptedException {
+		CommandFuture f = new CommandFuture();
+
+		f.sent();
+		assertEquals(CommandFuture.SENT, f.await(10, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void awaitWakesOnAck() throws InterruptedException {
+		final CommandFuture f = new CommandFuture();
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+				}
+				f.acked(0, 1000);
+			}
+		};
+
+		t.start();
+		assertEquals(CommandFuture.ACKED, f.await(5, TimeUnit.SECONDS));
+		t.join();
+	}
+}
@@ -0,0 +1,262 @@
+package org.csgeeks.TinyG.Support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class CommandRingTest {
+	private static final int HEADER = 6;
+	private final byte dst[] = new byte[1024];
+
+	private String poll(CommandRing ring) {
+		int n = ring.poll(dst, 0);
+		return n < 0 ? null : new String(dst, 0, n);
+	}
+
+	// Waits until t is blocked or finished
+	private static void settle(Thread t) throws InterruptedException {
+		for (int i = 0; i < 200; i++) {
+			Thread.State s = t.getState();
+			if (s == Thread.State.WAITING || s == Thread.State.TERMINATED)
+				return;
+			Thread.sleep(5);
+		}
+	}
+
+	private static Thread putter(final CommandRing ring, final String s) {
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					ring.put(s);
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		t.start();
+		return t;
+	}
+
+	@Test
+	public void linesComeOutInOrderWithTheirSequence() throws InterruptedException {
+		CommandRing ring = new CommandRing(256);
+
+		assertEquals(0, ring.put("g0x1"));
+		assertEquals(1, ring.offer("g0x2"));
+		assertEquals(2, ring.size());
+		assertEquals(2 * (4 + HEADER), ring.used());
+		assertEquals("g0x1", poll(ring));
+		assertEquals(0, ring.lastSeq());
+		assertEquals("g0x2", poll(ring));
+		assertEquals(1, ring.lastSeq());
+		assertTrue(ring.isEmpty());
+		assertEquals(-1, ring.poll(dst, 0));
+		assertEquals(-1, ring.peekLength());
+	}
+
+	// Lines of every length, many times round a small ring, so headers and
+	// bodies both get split at the end of the buffer
+	@Test
+	public void wrapsAround() {
+		CommandRing ring = new CommandRing(64);
+		StringBuilder b = new StringBuilder();
+
+		for (int i = 0; i < 500; i++) {
+			b.setLength(0);
+			for (int j = 0; j < i % 29; j++)
+				b.append((char) ('a' + (i + j) % 26));
+			String line = b.toString();
+			assertEquals(i, ring.offer(line));
+			assertEquals(line.length(), ring.peekLength());
+			assertEquals(line, poll(ring));
+			assertEquals(i, ring.lastSeq());
+		}
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void wrapsAroundWithSeveralLinesQueued() {
+		CommandRing ring = new CommandRing(64);
+		int in = 0, out = 0;
+
+		for (int round = 0; round < 100; round++) {
+			while (ring.offer("line" + in) >= 0)
+				in++;
+			assertTrue(ring.used() <= ring.capacity());
+			for (int i = 0; i < 2 && out < in; i++, out++)
+				assertEquals("line" + out, poll(ring));
+		}
+		while (out < in)
+			assertEquals("line" + out++, poll(ring));
+	}
+
+	@Test
+	public void emptyLines() {
+		CommandRing ring = new CommandRing(64);
+
+		assertEquals(0, ring.offer(""));
+		assertEquals(0, ring.peekLength());
+		assertEquals(0, ring.poll(dst, 0));
+		assertTrue(ring.isEmpty());
+	}
+
+	// Even a blocking put, with the line longer than the high watermark
+	@Test
+	public void anEmptyRingTakesAnyLineThatFits() throws InterruptedException {
+		CommandRing ring = new CommandRing(64);
+
+		ring.setWatermarks(4, 16);
+		assertEquals(0, ring.put("0123456789012345678901234567890123456789"));
+		assertEquals(46, ring.used());
+	}
+
+	@Test
+	public void offerUsesTheHeadroomAboveTheHighWatermark()
+			throws InterruptedException {
+		CommandRing ring = new CommandRing(64);
+
+		ring.setWatermarks(16, 32);
+		ring.put("0123456789"); // 16
+		ring.put("0123456789"); // 32, at the high watermark
+		assertTrue(ring.offer("0123456789") >= 0);
+		assertTrue(ring.offer("0123456789") >= 0); // 64, full
+		assertEquals(-1, ring.offer(""));
+	}
+
+	@Test
+	public void producerWaitsForTheLowWatermark() throws InterruptedException {
+		CommandRing ring = new CommandRing(64);
+
+		ring.setWatermarks(16, 40);
+		for (int i = 0; i < 4; i++)
+			ring.offer("0123456789"); // 64 bytes, well over high
+		Thread t = putter(ring, "ab");
+		settle(t);
+		assertTrue(t.isAlive());
+		// Under the high watermark, but not yet down to the low one
+		poll(ring);
+		poll(ring);
+		assertEquals(32, ring.used());
+		settle(t);
+		assertTrue("should wait for the low watermark", t.isAlive());
+		poll(ring);
+		t.join(2000);
+		assertFalse(t.isAlive());
+		assertEquals(16 + 2 + HEADER, ring.used());
+		assertEquals("0123456789", poll(ring));
+		assertEquals("ab", poll(ring));
+	}
+
+	@Test
+	public void noWaitWhileUnderTheHighWatermark() throws InterruptedException {
+		CommandRing ring = new CommandRing(64);
+
+		ring.setWatermarks(8, 48);
+		ring.offer("0123456789");
+		ring.offer("0123456789"); // 32
+		Thread t = putter(ring, "0123456789"); // 48 exactly
+		t.join(2000);
+		assertFalse(t.isAlive());
+		assertEquals(48, ring.used());
+	}
+
+	@Test
+	public void clearDropsEverythingAndWakesProducers()
+			throws InterruptedException {
+		CommandRing ring = new CommandRing(64);
+
+		ring.setWatermarks(16, 32);
+		for (int i = 0; i < 4; i++)
+			ring.offer("0123456789");
+		Thread t = putter(ring, "after");
+		settle(t);
+		assertTrue(t.isAlive());
+		ring.clear();
+		t.join(2000);
+		assertFalse(t.isAlive());
+		assertEquals(1, ring.size());
+		// Sequence numbers carry on from before the clear
+		assertEquals("after", poll(ring));
+		assertEquals(4, ring.lastSeq());
+		assertEquals(0, ring.size());
+		assertEquals(5, ring.offer("next"));
+	}
+
+	@Test
+	public void clearFromAnotherThreadWhileAProducerBuildsALine() {
+		CommandRing ring = new CommandRing(64);
+
+		ring.offer("old");
+		int seq = ring.tryBeginLine(3);
+		ring.append("new");
+		ring.clear(); // doesn't need the producer lock
+		ring.endLine();
+		assertEquals(1, seq);
+		assertEquals("new", poll(ring));
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void abortedLineLeavesNothingAndFreesTheLock() throws InterruptedException {
+		final CommandRing ring = new CommandRing(64);
+
+		assertEquals(0, ring.tryBeginLine(5));
+		ring.append("parti");
+		ring.abortLine();
+		assertTrue(ring.isEmpty());
+		Thread t = putter(ring, "whole");
+		t.join(2000);
+		assertFalse("producer lock still held", t.isAlive());
+		assertEquals("whole", poll(ring));
+		assertEquals(0, ring.lastSeq());
+	}
+
+	@Test
+	public void putThatThrowsReleasesTheLock() throws InterruptedException {
+		CommandRing ring = new CommandRing(64);
+		CharSequence bad = new CharSequence() {
+			public int length() {
+				return 4;
+			}
+
+			public char charAt(int i) {
+				if (i == 2)
+					throw new IllegalStateException();
+				return 'x';
+			}
+
+			public CharSequence subSequence(int start, int end) {
+				return null;
+			}
+		};
+
+		try {
+			ring.put(bad);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		try {
+			ring.offer(bad);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertTrue(ring.isEmpty());
+		Thread t = putter(ring, "ok");
+		t.join(2000);
+		assertFalse(t.isAlive());
+		assertEquals("ok", poll(ring));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void tooLongALine() {
+		new CommandRing(64).tryBeginLine(64 - HEADER + 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void capacityMustBeAPowerOfTwo() {
+		new CommandRing(100);
+	}
+}
@@ -0,0 +1,67 @@
+package org.csgeeks.TinyG.Support;
+
+import java.util.LinkedList;
+
+// Stands in for the transport and TinyG behind it.  Lines go into a serial
+// buffer once the flow control lets them, and are answered oldest first,
+// with the response and queue reports fed back the way the service does.
+class FakeTinyG {
+	private final FlowControl flow;
+	private final LinkedList<Integer> unanswered = new LinkedList<Integer>();
+	private int buffered, maxBuffered, maxUnanswered;
+
+	FakeTinyG(FlowControl flow) {
+		this.flow = flow;
+	}
+
+	// Waits for the credit, like the queue processor
+	void send(int length) throws InterruptedException {
+		flow.acquire(length);
+		write(length);
+	}
+
+	boolean trySend(int length) {
+		if (!flow.tryAcquire(length))
+			return false;
+		write(length);
+		return true;
+	}
+
+	private synchronized void write(int length) {
+		unanswered.add(length);
+		buffered += length;
+		maxBuffered = Math.max(maxBuffered, buffered);
+		maxUnanswered = Math.max(maxUnanswered, unanswered.size());
+	}
+
+	// The oldest line leaves the serial buffer and its "r" comes back
+	void answer() {
+		int length;
+
+		synchronized (this) {
+			length = unanswered.removeFirst();
+			buffered -= length;
+		}
+		flow.onResponse(length);
+	}
+
+	void queueReport(int qr) {
+		flow.onQueueReport(qr);
+	}
+
+	synchronized int buffered() {
+		return buffered;
+	}
+
+	synchronized int maxBuffered() {
+		return maxBuffered;
+	}
+
+	synchronized int unanswered() {
+		return unanswered.size();
+	}
+
+	synchronized int maxUnanswered() {
+		return maxUnanswered;
+	}
+}
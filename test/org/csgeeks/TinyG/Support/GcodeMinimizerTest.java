@@ -0,0 +1,92 @@
+package org.csgeeks.TinyG.Support;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class GcodeMinimizerTest {
+	private final GcodeMinimizer min = new GcodeMinimizer();
+
+	private String minimize(String line) {
+		byte src[] = line.getBytes();
+		byte dst[] = new byte[src.length];
+
+		return new String(dst, 0, min.minimize(src, src.length, dst));
+	}
+
+	@Test
+	public void whitespace() {
+		assertEquals("N10G1X1Y2", minimize("N10 G1 X1\tY2"));
+		assertEquals("G1X12.5", minimize("G1 X 1 2 . 5"));
+		assertEquals("", minimize("   "));
+	}
+
+	@Test
+	public void comments() {
+		assertEquals("G0X1", minimize("G0 (rapid) X1"));
+		assertEquals("G0X1", minimize("G0 X1 ; to the start"));
+		assertEquals("G0X1", minimize("G0 X1 % end"));
+		assertEquals("", minimize("(nothing but a comment)"));
+		assertEquals("G0", minimize("G0 (never closed"));
+	}
+
+	@Test
+	public void messagesKept() {
+		assertEquals("(MSG change tool)M0", minimize("(MSG change tool) M0"));
+		assertEquals("(msg  lower case)", minimize("(msg  lower case)"));
+		assertEquals("G0( MSG spaced)", minimize("G0 ( MSG spaced)"));
+		assertEquals("(MSG never closed", minimize("(MSG never closed"));
+		assertEquals("", minimize("(MS)"));
+	}
+
+	@Test
+	public void signs() {
+		assertEquals("X1.5", minimize("X+01.500"));
+		assertEquals("Y-.25", minimize("Y-0.250"));
+		assertEquals("Z-3", minimize("Z - 3"));
+		// Negative zero is just zero
+		assertEquals("X0", minimize("X-0.000"));
+		assertEquals("X0", minimize("X+0"));
+	}
+
+	@Test
+	public void zeros() {
+		assertEquals("G1", minimize("G01"));
+		assertEquals("G0", minimize("G00"));
+		assertEquals("X10", minimize("X10"));
+		assertEquals("X100", minimize("X100.0"));
+		assertEquals("X10", minimize("X10."));
+		assertEquals("X.05", minimize("X.050"));
+		assertEquals("X-.0001", minimize("X-0.00010"));
+		assertEquals("X1.001", minimize("X0001.0010"));
+	}
+
+	@Test
+	public void wordWithoutNumber() {
+		assertEquals("G1X", minimize("G1 X"));
+		assertEquals("X-", minimize("X-"));
+		assertEquals("XY1", minimize("X Y1"));
+	}
+
+	@Test
+	public void overflowPassedThrough() {
+		String many = "123456789012345678901234567890.12345";
+		String exact = "1234567890123456789012345678901.2";
+
+		assertEquals("G1X+" + many + "Y1", minimize("G1 X+" + many + " Y1.0"));
+		assertEquals("X-00" + many, minimize("X -00" + many));
+		// 32 digits still fit
+		assertEquals("X" + exact, minimize("X0" + exact + "00"));
+	}
+
+	@Test
+	public void counts() {
+		minimize("G01 X1.000");
+		minimize("(comment)");
+		assertEquals(19, min.bytesIn());
+		assertEquals(4, min.bytesOut());
+		min.resetCounts();
+		assertEquals(0, min.bytesIn());
+		assertEquals(0, min.bytesOut());
+	}
+}
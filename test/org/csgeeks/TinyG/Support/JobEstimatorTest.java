@@ -0,0 +1,108 @@
+package org.csgeeks.TinyG.Support;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Move times worked out by hand with the default settings: fr 16000 mm/min
+// for X and Y and 1000 for Z, jm 5e9 mm/min^3, jd 0.05 mm, ja 100000
+// mm/min^2.  A ramp from v0 to v1 at jerk j takes 2 sqrt(|v1 - v0| / j)
+// minutes and (v0 + v1) sqrt(|v1 - v0| / j) mm.
+public class JobEstimatorTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final JobEstimator e = new JobEstimator();
+
+	private double estimate(String... lines) throws IOException {
+		File f = tmp.newFile();
+		FileOutputStream out = new FileOutputStream(f);
+		for (String l : lines)
+			out.write((l + "\n").getBytes());
+		out.close();
+		return e.estimate(GcodeFile.open(f, null));
+	}
+
+	// Ramps to 600 and back take 0.2078 mm and 0.000693 min each, and
+	// the 99.584 mm between them 0.16597 min at 600 mm/min: 10.0416s
+	@Test
+	public void oneLongMove() throws IOException {
+		assertEquals(10.0416, estimate("G1 X100 F600"), 1e-3);
+		assertEquals(10.0416, e.totalSeconds(), 1e-3);
+	}
+
+	// The feed is capped by Z's fr of 1000: ramps of 0.4472 mm and
+	// 0.000894 min, and 9.1056 mm at 1000: 0.6537s
+	@Test
+	public void feedCappedByTheAxis() throws IOException {
+		assertEquals(0.6537, estimate("G1 Z-10 F2000"), 1e-3);
+	}
+
+	// Too short to reach 600: it peaks where 2 v sqrt(v / j) = 0.1 mm,
+	// v = 232.08 mm/min, and spends 4 sqrt(v / j) = 0.000862 min ramping
+	@Test
+	public void shortMoveNeverCruises() throws IOException {
+		assertEquals(0.0517, estimate("G1 X0.1 F600"), 1e-3);
+	}
+
+	// No slowing down between moves in a straight line, so two halves take
+	// as long as the whole
+	@Test
+	public void straightOnThroughAJunction() throws IOException {
+		assertEquals(10.0416, estimate("G1 X50 F600", "X100"), 1e-3);
+	}
+
+	// A right angle: junction deviation gives a corner radius of
+	// 0.05^0.5 sin45 / (1 - sin45) = 0.5398 mm, so the corner is taken at
+	// sqrt(0.5398 * 100000) = 232.34 mm/min
+	@Test
+	public void rightAngleCorner() throws IOException {
+		assertEquals(10.0615, estimate("G1 X50 F600", "Y50"), 1e-3);
+	}
+
+	// 1 inch at 10 inch/min is 25.4 mm at 254 mm/min
+	@Test
+	public void inches() throws IOException {
+		assertEquals(6.0270, estimate("G20", "G1 X1 F10"), 1e-3);
+	}
+
+	@Test
+	public void dwellsAreInSeconds() throws IOException {
+		assertEquals(2.5, estimate("G4 P2.5"), 1e-9);
+		assertEquals(10.0416 + 2.5, estimate("G1 X100 F600", "G4 P2.5"), 1e-3);
+	}
+
+	@Test
+	public void nothingToDo() throws IOException {
+		assertEquals(0, estimate("G21 G90", "(just a comment)", "M3 S1000", ""), 0);
+	}
+
+	// A hundred of the same 10mm move, there and back, with straight-on
+	// junctions
+	@Test
+	public void remainingTimeByLine() throws IOException {
+		String lines[] = new String[101];
+		lines[0] = "G1 F600";
+		for (int i = 1; i < lines.length; i++)
+			lines[i] = i % 2 == 1 ? "X10" : "X0";
+		double total = estimate(lines);
+
+		assertEquals(total, e.remainingSeconds(1), 1e-3);
+		assertEquals(0, e.remainingSeconds(lines.length + 1), 1e-3);
+		// Each reversal stops, so the moves on lines 2 to 101 all take the
+		// same time.  Line 49 starts a checkpoint, with 53 moves to go.
+		assertEquals(53 * total / 100, e.remainingSeconds(49), 1e-3);
+		double last = total;
+		for (int l = 1; l <= lines.length; l++) {
+			double left = e.remainingSeconds(l);
+			assertEquals(true, left <= last);
+			last = left;
+		}
+	}
+}
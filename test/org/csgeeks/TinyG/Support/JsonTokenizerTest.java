@@ -0,0 +1,253 @@
+package org.csgeeks.TinyG.Support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+// Everything the tokenizer reads is checked against what org.json, which
+// Machine used before, makes of the same line.
+public class JsonTokenizerTest {
+	static final String LINES[] = {
+		"{\"r\":{\"sr\":{\"line\":0,\"posx\":0.000,\"posy\":0.000,\"posz\":0.000,\"posa\":0.000,\"vel\":0.000,\"unit\":1,\"momo\":0,\"stat\":3}},\"f\":[1,0,10,5483]}",
+		"{\"sr\":{\"posx\":12.345,\"posy\":-3.500,\"vel\":1200.000,\"line\":1234,\"stat\":5,\"momo\":1}}",
+		"{\"qr\":28}",
+		"{\"r\":{\"qr\":31},\"f\":[1,0,6,1234]}",
+		"{\"r\":{\"x\":{\"am\":1,\"vm\":16000,\"fr\":16000,\"tm\":220,\"jm\":5000000000,\"jd\":0.0500,\"sn\":1,\"sv\":3000,\"lv\":1000,\"lb\":2.000,\"zb\":1.000}},\"f\":[1,0,9,4402]}",
+		"{\"r\":{\"1\":{\"ma\":0,\"sa\":1.800,\"tr\":36.540,\"mi\":8,\"po\":0,\"pm\":1}},\"f\":[1,0,9,4402]}",
+		"{\"r\":{\"sys\":{\"fb\":380.08,\"fv\":0.970,\"hv\":8,\"id\":\"2X2660-EVM\",\"ja\":200000,\"ct\":0.0100,\"st\":0,\"ej\":1,\"jv\":5,\"tv\":1,\"qv\":2,\"sv\":1,\"si\":100}},\"f\":[1,0,9,4402]}",
+		"{\"r\":{\"sr\":{\"posx\":1.000},\"f\":[1,0,10,5483]}}",
+		"{\"r\":{\"msg\":\"say \\\"hi\\\"\\n\\t\\u0041\\/\"},\"f\":[1,0,5,1234]}",
+		"{\"er\":{\"fb\":380.08,\"st\":204,\"msg\":\"Command not complete\",\"val\":null}}",
+		"{\"r\":{\"ee\":true,\"ex\":false,\"gc\":null,\"a\":[],\"o\":{}},\"f\":[1,0,5,1234]}",
+		" { \"r\" : { \"qr\" : -1.5e2 , \"e\" : 2E-3 } , \"f\" : [ 1 , 0 , 6 , 1234 ] } ",
+	};
+	// Not JSON, and org.json says so too
+	static final String BROKEN[] = {
+		"{\"a\":1",
+		"{\"a\" 1}",
+		"{\"a\":1 \"b\":2}",
+		"{\"a\":[1,2}",
+		"{\"a\":\"x}",
+		"{,\"a\":1}",
+		"{\"a\"::1}",
+		"{\"a\":\"\\q\"}",
+		"{\"a\":\"\\u12\"}",
+		"{\"a\",1}",
+		"{\"a\":{\"b\":1}",
+		"",
+	};
+	// Not JSON either, though org.json lets them through
+	static final String LENIENT[] = {
+		"{\"a\":tru}",
+		"{\"a\":1,}",
+		"{\"a\":[1,]}",
+		"{\"a\":1}}",
+		"{\"a\":01}",
+		"{\"a\":1.}",
+		"{\"a\":-}",
+		"{\"a\":1e}",
+		"{a:1}",
+		"{\"a\":[1 2]}",
+		"{\"a\":1}x",
+		"{\"a\":1:2}",
+		"{\"a\":[\"b\":1]}",
+	};
+
+	private final JsonTokenizer json = new JsonTokenizer();
+
+	// What the tokenizer reads, as maps, lists, strings, doubles, booleans
+	// and nulls; throws at the first ERROR
+	private Object parse(String s) {
+		byte b[] = s.getBytes();
+		json.reset(b, 0, b.length);
+		Object v = value(json.next());
+		if (json.next() != JsonTokenizer.END)
+			throw new IllegalArgumentException("trailing junk");
+		return v;
+	}
+
+	private Object value(int t) {
+		switch (t) {
+		case JsonTokenizer.BEGIN_OBJECT:
+			Map<String, Object> m = new HashMap<String, Object>();
+			while ((t = json.next()) == JsonTokenizer.KEY) {
+				String k = json.stringValue();
+				m.put(k, value(json.next()));
+			}
+			if (t != JsonTokenizer.END_OBJECT)
+				throw new IllegalArgumentException("bad object");
+			return m;
+		case JsonTokenizer.BEGIN_ARRAY:
+			List<Object> l = new ArrayList<Object>();
+			while ((t = json.next()) != JsonTokenizer.END_ARRAY)
+				l.add(value(t));
+			return l;
+		case JsonTokenizer.STRING:
+			return json.stringValue();
+		case JsonTokenizer.NUMBER:
+			return json.doubleValue();
+		case JsonTokenizer.TRUE:
+			return Boolean.TRUE;
+		case JsonTokenizer.FALSE:
+			return Boolean.FALSE;
+		case JsonTokenizer.NULL:
+			return null;
+		default:
+			throw new IllegalArgumentException("token " + t);
+		}
+	}
+
+	// org.json's reading of the same, in the same shapes
+	private static Object expected(Object o) {
+		if (o instanceof JSONObject) {
+			JSONObject j = (JSONObject) o;
+			Map<String, Object> m = new HashMap<String, Object>();
+			Iterator<String> it = j.keys();
+			while (it.hasNext()) {
+				String k = it.next();
+				m.put(k, expected(j.get(k)));
+			}
+			return m;
+		}
+		if (o instanceof JSONArray) {
+			JSONArray a = (JSONArray) o;
+			List<Object> l = new ArrayList<Object>();
+			for (int i = 0; i < a.length(); i++)
+				l.add(expected(a.get(i)));
+			return l;
+		}
+		if (o instanceof Number)
+			return ((Number) o).doubleValue();
+		if (o == JSONObject.NULL)
+			return null;
+		return o;
+	}
+
+	@Test
+	public void readsWhatOrgJsonReads() {
+		for (String line : LINES)
+			assertEquals(line, expected(new JSONObject(line)), parse(line));
+	}
+
+	@Test
+	public void rejectsWhatOrgJsonRejects() {
+		for (String line : BROKEN) {
+			try {
+				new JSONObject(line);
+				fail("org.json took " + line);
+			} catch (JSONException e) {
+			}
+			try {
+				parse(line);
+				fail("took " + line);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+	@Test
+	public void isStricterThanOrgJson() {
+		for (String line : LENIENT) {
+			try {
+				parse(line);
+				fail("took " + line);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+	@Test
+	public void errorsStick() {
+		byte b[] = "{\"a\" 1, \"b\":2}".getBytes();
+
+		json.reset(b, 0, b.length);
+		assertEquals(JsonTokenizer.BEGIN_OBJECT, json.next());
+		assertEquals(JsonTokenizer.ERROR, json.next());
+		assertEquals(JsonTokenizer.ERROR, json.next());
+		json.reset(b, 0, b.length);
+		assertEquals(JsonTokenizer.BEGIN_OBJECT, json.next());
+	}
+
+	@Test
+	public void escapedKeysMatch() {
+		byte b[] = "{\"p\\u006fsx\":1,\"po\\\"\":2}".getBytes();
+
+		json.reset(b, 0, b.length);
+		json.next();
+		assertEquals(JsonTokenizer.KEY, json.next());
+		assertTrue(json.keyIs("posx"));
+		assertEquals(4, json.length());
+		assertEquals('o', json.charAt(1));
+		assertEquals(-1, json.charAt(4));
+		json.next();
+		assertEquals(JsonTokenizer.KEY, json.next());
+		assertTrue(json.keyIs("po\""));
+		assertFalse(json.keyIs("po"));
+	}
+
+	@Test
+	public void intValueIsExactForIntegersAndRoundsTheRest() {
+		String nums[] = { "0", "-0", "7", "-42", "2147483647", "-2147483648",
+				"4.9999", "5.4", "-2.5", "1e3", "3000000000" };
+		int want[] = { 0, 0, 7, -42, Integer.MAX_VALUE, Integer.MIN_VALUE,
+				5, 5, -2, 1000, Integer.MAX_VALUE };
+
+		for (int i = 0; i < nums.length; i++) {
+			byte b[] = nums[i].getBytes();
+			json.reset(b, 0, b.length);
+			assertEquals(JsonTokenizer.NUMBER, json.next());
+			assertEquals(nums[i], want[i], json.intValue());
+		}
+	}
+
+	@Test
+	public void doubleValueMatchesTheJdk() {
+		String nums[] = { "0.000", "-3.500", "380.08", "0.0500", "1.8",
+				"36.540", "5000000000", "-1.5e2", "2E-3", "123456.789012",
+				"0.1", "1e-7" };
+
+		for (String n : nums) {
+			byte b[] = n.getBytes();
+			json.reset(b, 0, b.length);
+			json.next();
+			assertEquals(n, Double.parseDouble(n), json.doubleValue(), 0);
+		}
+	}
+
+	@Test
+	public void positionAndSeekReadAValueAgain() {
+		byte b[] = "{\"a\":\"str\",\"f\":[1,0,9,4402]}".getBytes();
+		int a, f;
+
+		json.reset(b, 0, b.length);
+		json.next();
+		json.next();
+		json.next();
+		a = json.position();
+		assertEquals(JsonTokenizer.KEY, json.next());
+		assertEquals(JsonTokenizer.BEGIN_ARRAY, json.next());
+		f = json.position();
+		json.seek(a);
+		assertEquals(JsonTokenizer.STRING, json.next());
+		assertEquals("str", json.stringValue());
+		json.seek(f);
+		assertEquals(JsonTokenizer.BEGIN_ARRAY, json.next());
+		json.next();
+		json.next();
+		json.next();
+		assertEquals(JsonTokenizer.NUMBER, json.next());
+		assertEquals(4402, json.intValue());
+	}
+}
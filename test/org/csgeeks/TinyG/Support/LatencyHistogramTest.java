@@ -0,0 +1,108 @@
+package org.csgeeks.TinyG.Support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+	@Test
+	public void empty() {
+		LatencyHistogram h = new LatencyHistogram(1000000);
+
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getMin());
+		assertEquals(0, h.getMax());
+		assertEquals(0.0, h.getMean(), 0);
+		assertEquals(0, h.getValueAtPercentile(50));
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		LatencyHistogram h = new LatencyHistogram(1000000);
+
+		for (int v = 0; v < 128; v++)
+			h.record(v);
+		for (int v = 0; v < 128; v++)
+			assertEquals(v, h.getValueAtPercentile((v + 1) * 100.0 / 128));
+		assertEquals(63.5, h.getMean(), 1e-9);
+	}
+
+	// A percentile reports the top of its bucket, which is never more than
+	// 1/64 above the value recorded
+	@Test
+	public void bucketError() {
+		for (long v = 128; v < 10000000; v = v * 3 / 2 + 1) {
+			LatencyHistogram h = new LatencyHistogram(100000000);
+
+			h.record(v);
+			h.record(v + 1000000000);
+			long p = h.getValueAtPercentile(50);
+			assertTrue(v + " read as " + p, p >= v);
+			assertTrue(v + " read as " + p, p - v < v / 64 + 1);
+		}
+	}
+
+	@Test
+	public void bucketEdges() {
+		LatencyHistogram h = new LatencyHistogram(1000000);
+
+		// 128 and 129 share a bucket of two; 256 starts one of four
+		h.record(128);
+		h.record(1000000);
+		assertEquals(129, h.getValueAtPercentile(50));
+		h.reset();
+		h.record(256);
+		h.record(1000000);
+		assertEquals(259, h.getValueAtPercentile(50));
+		h.reset();
+		h.record(255);
+		h.record(1000000);
+		assertEquals(255, h.getValueAtPercentile(50));
+	}
+
+	@Test
+	public void percentiles() {
+		LatencyHistogram h = new LatencyHistogram(1000000);
+
+		for (int v = 1; v <= 1000; v++)
+			h.record(v);
+		assertEquals(1000, h.getCount());
+		assertEquals(1, h.getMin());
+		assertEquals(1000, h.getMax());
+		assertEquals(500.5, h.getMean(), 1e-9);
+		assertEquals(1, h.getValueAtPercentile(0));
+		assertEquals(503, h.getValueAtPercentile(50));
+		assertEquals(903, h.getValueAtPercentile(90));
+		assertEquals(991, h.getValueAtPercentile(99));
+		// Never above what was actually seen
+		assertEquals(1000, h.getValueAtPercentile(100));
+		assertEquals(1000, h.getValueAtPercentile(150));
+	}
+
+	@Test
+	public void clamped() {
+		LatencyHistogram h = new LatencyHistogram(5000);
+
+		h.record(-20);
+		h.record(1L << 40);
+		assertEquals(0, h.getMin());
+		assertEquals(5000, h.getMax());
+		assertEquals(0, h.getValueAtPercentile(50));
+		assertEquals(5000, h.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void reset() {
+		LatencyHistogram h = new LatencyHistogram(5000);
+
+		h.record(10);
+		h.record(4000);
+		h.reset();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getMax());
+		h.record(30);
+		assertEquals(30, h.getMin());
+		assertEquals(30, h.getValueAtPercentile(99));
+	}
+}
@@ -0,0 +1,158 @@
+package org.csgeeks.TinyG.Support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LineFramerTest {
+	private final List<String> lines = new ArrayList<String>();
+	private final List<Integer> checksums = new ArrayList<Integer>();
+	private final List<byte[]> buffers = new ArrayList<byte[]>();
+	private final LineFramer.Sink sink = new LineFramer.Sink() {
+		public void line(byte b[], int off, int len, int checksum) {
+			lines.add(new String(b, off, len));
+			checksums.add(checksum);
+			buffers.add(b);
+		}
+	};
+	private LineFramer framer;
+
+	@Before
+	public void setUp() {
+		framer = new LineFramer(sink);
+	}
+
+	private void feed(String s) {
+		byte b[] = s.getBytes();
+		framer.feed(b, 0, b.length);
+	}
+
+	// The footer checksum the way Machine worked it out before the framer
+	private static int oldChecksum(String line) {
+		int pos = line.lastIndexOf(",");
+		if (pos == -1)
+			return FooterChecksum.NONE;
+		return (int) ((line.substring(0, pos).hashCode() & 0x00000000ffffffffL) % 9999);
+	}
+
+	@Test
+	public void severalLinesInOneRead() {
+		byte b[] = "{\"r\":{}}\n{\"sr\":{\"line\":3}}\n\n{\"qr\":28}\n".getBytes();
+
+		framer.feed(b, 0, b.length);
+		assertEquals(4, lines.size());
+		assertEquals("{\"r\":{}}", lines.get(0));
+		assertEquals("{\"sr\":{\"line\":3}}", lines.get(1));
+		assertEquals("", lines.get(2));
+		assertEquals("{\"qr\":28}", lines.get(3));
+		// Whole lines are views of the caller's buffer
+		for (byte x[] : buffers)
+			assertTrue(x == b);
+		assertEquals(0, framer.pending());
+	}
+
+	@Test
+	public void lineSplitAcrossReads() {
+		feed("{\"sr\":{\"po");
+		feed("sx\":1.5");
+		assertEquals(0, lines.size());
+		assertEquals(17, framer.pending());
+		feed("}}\n{\"qr\"");
+		assertEquals(1, lines.size());
+		assertEquals("{\"sr\":{\"posx\":1.5}}", lines.get(0));
+		feed(":4}\n");
+		assertEquals("{\"qr\":4}", lines.get(1));
+	}
+
+	@Test
+	public void byteAtATime() {
+		String text = "{\"r\":{\"f\":[1,0,4,1234]}}\n{\"qr\":28}\n";
+
+		for (int i = 0; i < text.length(); i++)
+			feed(text.substring(i, i + 1));
+		assertEquals(2, lines.size());
+		assertEquals("{\"r\":{\"f\":[1,0,4,1234]}}", lines.get(0));
+		assertEquals("{\"qr\":28}", lines.get(1));
+	}
+
+	@Test
+	public void carriageReturnStaysInTheLine() {
+		feed("{\"r\":{\"f\":[1,0,4,1]}}\r\n{\"qr\":28}\r");
+		assertEquals(1, lines.size());
+		assertEquals("{\"r\":{\"f\":[1,0,4,1]}}\r", lines.get(0));
+		feed("\n");
+		assertEquals("{\"qr\":28}\r", lines.get(1));
+		// The checksum stops at the last comma, so the '\r' doesn't count
+		assertEquals(oldChecksum("{\"r\":{\"f\":[1,0,4,1]}}"),
+				checksums.get(0).intValue());
+	}
+
+	@Test
+	public void partialLineGrowsPastItsBuffer() {
+		StringBuilder big = new StringBuilder("{\"msg\":\"");
+		framer = new LineFramer(sink, 8);
+
+		for (int i = 0; i < 5000; i++)
+			big.append((char) ('a' + i % 26));
+		big.append("\",\"x\":1}");
+		String text = big + "\n";
+		for (int i = 0; i < text.length(); i += 7)
+			feed(text.substring(i, Math.min(text.length(), i + 7)));
+		assertEquals(1, lines.size());
+		assertEquals(big.toString(), lines.get(0));
+		assertEquals(oldChecksum(big.toString()), checksums.get(0).intValue());
+	}
+
+	@Test
+	public void resetDropsThePartialLine() {
+		feed("{\"sr\":{\"li");
+		framer.reset();
+		assertEquals(0, framer.pending());
+		feed("{\"qr\":1,\"x\":2}\n");
+		assertEquals("{\"qr\":1,\"x\":2}", lines.get(0));
+		assertEquals(oldChecksum("{\"qr\":1,\"x\":2}"), checksums.get(0)
+				.intValue());
+	}
+
+	@Test
+	public void lineWithoutCommaHasNoChecksum() {
+		feed("{\"qr\":28}\n");
+		assertEquals(FooterChecksum.NONE, checksums.get(0).intValue());
+	}
+
+	@Test
+	public void checksumsMatchTheOldWayInRandomReads() {
+		Random r = new Random(22);
+		List<String> sent = new ArrayList<String>();
+		StringBuilder text = new StringBuilder();
+
+		for (int i = 0; i < 2000; i++) {
+			String line = "{\"r\":{\"gc\":\"g1 x" + r.nextInt(1000) + "."
+					+ r.nextInt(1000) + "\"},\"f\":[1,0," + r.nextInt(255)
+					+ "," + r.nextInt(9999) + "]}";
+			sent.add(line);
+			text.append(line).append('\n');
+		}
+		byte b[] = text.toString().getBytes();
+		for (int off = 0; off < b.length;) {
+			int n = Math.min(b.length - off, 1 + r.nextInt(300));
+			framer.feed(b, off, n);
+			off += n;
+		}
+		assertEquals(sent.size(), lines.size());
+		for (int i = 0; i < sent.size(); i++) {
+			String line = sent.get(i);
+			byte lb[] = line.getBytes();
+			assertEquals(line, lines.get(i));
+			assertEquals(oldChecksum(line), checksums.get(i).intValue());
+			assertEquals(FooterChecksum.of(lb, 0, lb.length), checksums
+					.get(i).intValue());
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package org.csgeeks.TinyG.Support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LineModeFlowTest {
+	private static final int SIZE = 254;
+	private LineModeFlow flow;
+	private FakeTinyG tinyg;
+
+	@Before
+	public void setUp() {
+		flow = new LineModeFlow(SIZE);
+		tinyg = new FakeTinyG(flow);
+	}
+
+	@Test
+	public void capsLinesInFlight() {
+		for (int i = 0; i < 4; i++)
+			assertTrue(tinyg.trySend(10));
+		assertFalse(tinyg.trySend(10));
+		tinyg.answer();
+		assertTrue(tinyg.trySend(10));
+	}
+
+	@Test
+	public void capsBytesInFlight() {
+		assertTrue(tinyg.trySend(200));
+		assertFalse(tinyg.trySend(55));
+		assertTrue(tinyg.trySend(54));
+		tinyg.answer();
+		assertTrue(tinyg.trySend(200));
+	}
+
+	@Test
+	public void keepsThePlannerReserve() {
+		tinyg.queueReport(6);
+		assertTrue(tinyg.trySend(10));
+		assertTrue(tinyg.trySend(10));
+		assertFalse(tinyg.trySend(10));
+		tinyg.queueReport(4);
+		tinyg.answer();
+		tinyg.answer();
+		assertFalse(tinyg.trySend(10));
+		tinyg.queueReport(LineModeFlow.PLANNER_BUFFERS);
+		assertTrue(tinyg.trySend(10));
+	}
+
+	@Test
+	public void streamingStaysWithinBothLimits() {
+		for (int i = 0; i < 2000; i++) {
+			int length = 20 + (i * 53) % 100;
+			while (!tinyg.trySend(length))
+				tinyg.answer();
+		}
+		assertEquals(4, tinyg.maxUnanswered());
+		assertTrue(tinyg.maxBuffered() <= SIZE);
+	}
+
+	@Test(timeout = 5000)
+	public void blockedSendWakesOnQueueReport() throws Exception {
+		tinyg.queueReport(4);
+		Thread sender = new Thread() {
+			public void run() {
+				try {
+					tinyg.send(10);
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		sender.start();
+		Thread.sleep(50);
+		assertEquals(0, tinyg.unanswered());
+		tinyg.queueReport(LineModeFlow.PLANNER_BUFFERS);
+		sender.join();
+		assertEquals(1, tinyg.unanswered());
+	}
+
+	@Test
+	public void resetForgetsLinesAndQueueReports() {
+		for (int i = 0; i < 4; i++)
+			tinyg.trySend(50);
+		tinyg.queueReport(2);
+		flow.reset();
+		for (int i = 0; i < 4; i++)
+			assertTrue(flow.tryAcquire(50));
+		assertFalse(flow.tryAcquire(50));
+	}
+
+	@Test
+	public void releaseGivesBackTheNewestLine() {
+		assertTrue(flow.tryAcquire(100));
+		assertTrue(flow.tryAcquire(150));
+		flow.release(150);
+		assertTrue(flow.tryAcquire(154));
+		flow.reset();
+		flow.release(100);
+		for (int i = 0; i < 4; i++)
+			assertTrue(flow.tryAcquire(10));
+	}
+}
@@ -0,0 +1,116 @@
+package org.csgeeks.TinyG.Support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MachineStateTest {
+	private final MachineState s = new MachineState();
+
+	@Test
+	public void floatsAreStoredAsFloats() {
+		MachineState.Axis x = s.axis[0];
+		int vm = MachineState.Axis.VM;
+
+		x.set(vm, 0.1);
+		assertEquals(0.1f, x.getFloat(vm), 0);
+		assertEquals(0, x.getInt(vm));
+		x.set(vm, 16000.7);
+		assertEquals(16000.7f, x.getFloat(vm), 0);
+		assertEquals(16000, x.getInt(vm));
+	}
+
+	@Test
+	public void intsAreTruncated() {
+		MachineState.Motor m = s.motor[0];
+		int mi = Config.MOTOR.slot("mi");
+
+		m.set(mi, 8.9);
+		assertEquals(8, m.getInt(mi));
+		assertEquals(8.0f, m.getFloat(mi), 0);
+		m.set(mi, -2.5);
+		assertEquals(-2, m.getInt(mi));
+	}
+
+	@Test
+	public void booleansAreOnlyTrueForOne() {
+		MachineState.Motor m = s.motor[0];
+		int po = Config.MOTOR.slot("po");
+
+		m.set(po, 1);
+		assertTrue(m.getBoolean(po));
+		assertEquals(1, m.getInt(po));
+		m.set(po, 0);
+		assertFalse(m.getBoolean(po));
+		m.set(po, 2);
+		assertFalse(m.getBoolean(po));
+		assertEquals(0, m.getInt(po));
+	}
+
+	@Test
+	public void strings() {
+		int id = Config.SYS.slot("id");
+
+		assertNull(s.sys.getString(id));
+		assertFalse(s.sys.has(id));
+		s.sys.setString(id, "2X2660-EVM");
+		assertTrue(s.sys.has(id));
+		assertEquals("2X2660-EVM", s.sys.getString(id));
+	}
+
+	@Test
+	public void hasOnlyWhatWasSet() {
+		MachineState.Axis y = s.axis[1];
+
+		for (int i = 0; i < y.schema.size(); i++)
+			assertFalse(y.has(i));
+		y.set(MachineState.Axis.VM, 1);
+		for (int i = 0; i < y.schema.size(); i++)
+			assertEquals(i == MachineState.Axis.VM, y.has(i));
+		assertFalse(s.axis[0].has(MachineState.Axis.VM));
+	}
+
+	@Test
+	public void groupsKnowWhichTheyAre() {
+		for (int i = 0; i < MachineState.AXES; i++)
+			assertEquals(i, s.axis[i].index);
+		for (int i = 0; i < MachineState.MOTORS; i++)
+			assertEquals(i + 1, s.motor[i].number);
+		assertEquals(Config.AXIS, s.axis[0].schema);
+		assertEquals(Config.MOTOR, s.motor[0].schema);
+		assertEquals(Config.SYS, s.sys.schema);
+	}
+
+	@Test
+	public void knownStatusFollowsTheSetters() {
+		assertEquals(0, s.knownStatus());
+		s.setPosition(2, 1.5f);
+		assertEquals(StateBus.POSITION, s.knownStatus());
+		assertTrue(s.hasPosition(2));
+		assertFalse(s.hasPosition(0));
+		s.setVelocity(100);
+		s.setLine(3);
+		assertEquals(StateBus.POSITION | StateBus.VELOCITY | StateBus.LINE,
+				s.knownStatus());
+		s.setMotionMode(1);
+		s.setMachineState(5);
+		s.setUnits(1);
+		s.setQueue(28);
+		assertEquals(StateBus.POSITION | StateBus.VELOCITY | StateBus.LINE
+				| StateBus.MOTION_MODE | StateBus.MACHINE_STATE
+				| StateBus.UNITS | StateBus.QUEUE, s.knownStatus());
+		// Settings aren't status
+		assertEquals(0, s.knownStatus() & (StateBus.AXIS | StateBus.ERROR));
+	}
+
+	// A value of 0 still counts as heard
+	@Test
+	public void zeroIsKnown() {
+		s.setLine(0);
+		assertEquals(StateBus.LINE, s.knownStatus());
+		assertEquals(0, s.line);
+	}
+}
@@ -0,0 +1,246 @@
+package org.csgeeks.TinyG.Support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+// Responses as TinyG sends them, with the machine state checked against
+// org.json's reading of the same line
+public class MachineTest {
+	private final Machine m = new Machine();
+
+	// A response with a new style footer and the right checksum
+	private static String withFooter(String body, int status, int buffer) {
+		String head = "{\"r\":" + body + ",\"f\":[1," + status + "," + buffer;
+		return head + "," + checksum(head) + "]}";
+	}
+
+	private static long checksum(String s) {
+		return (s.hashCode() & 0xffffffffL) % 9999;
+	}
+
+	private static JSONObject body(String line) {
+		return new JSONObject(line).getJSONObject("r");
+	}
+
+	private static void assertGroup(JSONObject o, MachineState.Group g) {
+		Iterator<String> it = o.keys();
+		while (it.hasNext()) {
+			String name = it.next();
+			int slot = g.schema.slot(name);
+			if (slot < 0)
+				continue;
+			assertTrue(name, g.has(slot));
+			switch (g.schema.type(slot)) {
+			case FLOAT:
+				assertEquals(name, (float) o.getDouble(name), g.getFloat(slot), 0);
+				break;
+			case INT:
+				assertEquals(name, o.getInt(name), g.getInt(slot));
+				break;
+			case BOOLEAN:
+				assertEquals(name, o.getInt(name) == 1, g.getBoolean(slot));
+				break;
+			default:
+				assertEquals(name, o.get(name).toString(), g.getString(slot));
+			}
+		}
+	}
+
+	@Test
+	public void statusReport() {
+		String line = JsonTokenizerTest.LINES[1];
+		JSONObject sr = new JSONObject(line).getJSONObject("sr");
+		Machine.Response r = m.processJSON(line);
+		MachineState s = m.getState();
+
+		assertEquals(Machine.Response.STATUS, r.report);
+		assertFalse(r.ack);
+		assertEquals((float) sr.getDouble("posx"), s.pos[0], 0);
+		assertEquals((float) sr.getDouble("posy"), s.pos[1], 0);
+		assertEquals((float) sr.getDouble("vel"), s.velocity, 0);
+		assertEquals(sr.getInt("line"), s.line);
+		assertEquals(sr.getInt("stat"), s.stat);
+		assertEquals(sr.getInt("momo"), s.momo);
+		assertEquals(StateBus.POSITION | StateBus.VELOCITY | StateBus.LINE
+				| StateBus.MACHINE_STATE | StateBus.MOTION_MODE, s.knownStatus());
+	}
+
+	@Test
+	public void statusInAResponse() {
+		String line = withFooter("{\"sr\":{\"line\":7,\"posx\":1.250,\"posz\":-0.500,\"unit\":1,\"stat\":3}}",
+				0, 10);
+		JSONObject sr = body(line).getJSONObject("sr");
+		Machine.Response r = m.processJSON(line);
+
+		assertEquals(Machine.Response.STATUS, r.report);
+		assertTrue(r.ack);
+		assertTrue(r.footer);
+		assertEquals(0, r.status);
+		assertEquals(10, r.buffer);
+		assertEquals(1, m.getChecksumsChecked());
+		assertEquals(0, m.getChecksumMismatches());
+		assertEquals(sr.getInt("line"), m.getState().line);
+		assertEquals((float) sr.getDouble("posz"), m.getState().pos[2], 0);
+		assertEquals(sr.getInt("unit"), m.getState().unit);
+	}
+
+	@Test
+	public void queueReport() {
+		Machine.Response r = m.processJSON("{\"qr\":28}");
+
+		assertEquals(Machine.Response.QUEUE, r.report);
+		assertTrue(r.queueReport);
+		assertFalse(r.ack);
+		assertEquals(28, m.getState().qr);
+		r = m.processJSON(withFooter("{\"qr\":31}", 0, 6));
+		assertTrue(r.queueReport);
+		assertTrue(r.ack);
+		assertEquals(31, m.getState().qr);
+	}
+
+	@Test
+	public void axisSettings() {
+		String line = withFooter("{\"x\":{\"am\":1,\"vm\":16000,\"fr\":16000,\"tm\":220,\"jm\":5000000000,\"jd\":0.0500,\"sn\":1,\"sv\":3000,\"lv\":1000,\"lb\":2.000,\"zb\":1.000}}",
+				0, 9);
+		Machine.Response r = m.processJSON(line);
+
+		assertEquals(Machine.Response.AXIS, r.report);
+		assertEquals(0, r.which);
+		assertGroup(body(line).getJSONObject("x"), m.getState().axis[0]);
+	}
+
+	@Test
+	public void motorSettings() {
+		String line = withFooter("{\"3\":{\"ma\":2,\"sa\":1.800,\"tr\":36.540,\"mi\":8,\"po\":1,\"pm\":0}}",
+				0, 9);
+		Machine.Response r = m.processJSON(line);
+
+		assertEquals(Machine.Response.MOTOR, r.report);
+		assertEquals(3, r.which);
+		assertGroup(body(line).getJSONObject("3"), m.getState().motor[2]);
+	}
+
+	@Test
+	public void systemSettings() {
+		String line = withFooter("{\"sys\":{\"fb\":380.08,\"fv\":0.970,\"hv\":8,\"id\":\"2X2660-EVM\",\"ja\":200000,\"ct\":0.0100,\"st\":0,\"ej\":1,\"jv\":5,\"tv\":1,\"qv\":2,\"sv\":1,\"si\":100,\"ee\":0}}",
+				0, 9);
+		Machine.Response r = m.processJSON(line);
+
+		assertEquals(Machine.Response.SYS, r.report);
+		assertGroup(body(line).getJSONObject("sys"), m.getState().sys);
+	}
+
+	// Before 380.05 the footer was inside the body
+	@Test
+	public void oldStyleFooter() {
+		String head = "{\"r\":{\"sr\":{\"posx\":1.000},\"f\":[1,0,10";
+		String line = head + "," + checksum(head) + "]}}";
+		Machine.Response r = m.processJSON(line);
+
+		assertTrue(r.ack);
+		assertTrue(r.footer);
+		assertEquals(10, r.buffer);
+		assertEquals(1.0f, m.getState().pos[0], 0);
+	}
+
+	@Test
+	public void badChecksumSkipsTheBodyButNotTheAck() {
+		Machine.Response r = m.processJSON("{\"r\":{\"sr\":{\"line\":9}},\"f\":[1,0,10,1]}");
+
+		assertTrue(r.ack);
+		assertEquals(10, r.buffer);
+		assertEquals(Machine.Response.NONE, r.report);
+		assertEquals(1, m.getChecksumMismatches());
+		assertEquals(0, m.getState().line);
+	}
+
+	@Test
+	public void errorStatusSkipsTheBody() {
+		Machine.Response r = m.processJSON(withFooter("{\"sr\":{\"line\":9}}", 108, 12));
+
+		assertTrue(r.ack);
+		assertEquals(108, r.status);
+		assertEquals(12, r.buffer);
+		assertEquals(0, m.getState().line);
+	}
+
+	// The body is bad but the footer was fine, so the line's room in
+	// TinyG's buffer still comes back
+	@Test
+	public void malformedBodyKeepsTheFooter() {
+		Machine.Response r = m.processJSON(withFooter("{\"sr\":5}", 0, 11));
+
+		assertEquals(Machine.Response.ERROR, r.report);
+		assertTrue(r.ack);
+		assertTrue(r.footer);
+		assertEquals(11, r.buffer);
+	}
+
+	@Test
+	public void brokenLineAfterTheFooterKeepsIt() {
+		Machine.Response r = m.processJSON("{\"r\":{},\"f\":[1,0,7,1234],\"x\":}");
+
+		assertEquals(Machine.Response.ERROR, r.report);
+		assertTrue(r.ack);
+		assertTrue(r.footer);
+		assertEquals(7, r.buffer);
+	}
+
+	@Test
+	public void brokenResponseWithNoFooterStillAcks() {
+		Machine.Response r = m.processJSON("{\"r\":{\"sr\":{\"line\" 1}}}");
+
+		assertEquals(Machine.Response.ERROR, r.report);
+		assertTrue(r.ack);
+		assertFalse(r.footer);
+		assertEquals(0, r.buffer);
+	}
+
+	@Test
+	public void malformedLines() {
+		for (String line : JsonTokenizerTest.BROKEN) {
+			Machine.Response r = m.processJSON(line);
+			assertEquals(line, Machine.Response.ERROR, r.report);
+			assertFalse(line, r.ack);
+		}
+	}
+
+	@Test
+	public void notAResponse() {
+		assertNull(m.processJSON(JsonTokenizerTest.LINES[9]));
+		assertNull(m.processJSON("{}"));
+	}
+
+	@Test
+	public void framedChecksumIsUsed() {
+		String line = withFooter("{\"qr\":3}", 0, 6);
+		byte b[] = line.getBytes();
+		JSONArray f = new JSONObject(line).getJSONArray("f");
+
+		m.processJSON(b, 0, b.length, f.getInt(3));
+		assertEquals(0, m.getChecksumMismatches());
+		m.processJSON(b, 0, b.length, f.getInt(3) + 1);
+		assertEquals(1, m.getChecksumMismatches());
+	}
+
+	@Test
+	public void checksumSampling() {
+		String line = "{\"r\":{},\"f\":[1,0,1,1]}";
+
+		m.setChecksumSampling(0);
+		m.processJSON(line);
+		assertEquals(0, m.getChecksumsChecked());
+		m.setChecksumSampling(3);
+		for (int i = 0; i < 7; i++)
+			m.processJSON(line);
+		assertEquals(3, m.getChecksumsChecked());
+	}
+}
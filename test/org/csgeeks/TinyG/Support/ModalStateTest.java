@@ -0,0 +1,158 @@
+package org.csgeeks.TinyG.Support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ModalStateTest {
+	private final ModalState s = new ModalState();
+	private final GcodeParser p = new GcodeParser();
+
+	private void apply(String... lines) {
+		for (String l : lines) {
+			byte b[] = l.getBytes();
+			s.apply(p, b, 0, b.length);
+		}
+	}
+
+	@Test
+	public void startsInTheDefaults() {
+		assertEquals(-1, s.motion);
+		assertTrue(s.absolute);
+		assertFalse(s.inches);
+		assertEquals(17, s.plane);
+		assertEquals(54, s.wcs);
+		assertEquals(5, s.spindle);
+		assertFalse(s.positionKnown());
+	}
+
+	@Test
+	public void units() {
+		apply("G20");
+		assertTrue(s.inches);
+		apply("G21 G0 X1");
+		assertFalse(s.inches);
+		assertEquals(0, s.motion);
+	}
+
+	@Test
+	public void planeAndFeedMode() {
+		apply("G18 G93");
+		assertEquals(18, s.plane);
+		assertTrue(s.inverseTime);
+		apply("G19");
+		assertEquals(19, s.plane);
+		apply("G17 G94");
+		assertEquals(17, s.plane);
+		assertFalse(s.inverseTime);
+	}
+
+	@Test
+	public void arcDistanceMode() {
+		assertFalse(s.arcAbsolute);
+		apply("G90.1");
+		assertTrue(s.arcAbsolute);
+		assertTrue(s.absolute);
+		apply("G91.1");
+		assertFalse(s.arcAbsolute);
+		apply("G90.1");
+		s.reset();
+		assertFalse(s.arcAbsolute);
+	}
+
+	@Test
+	public void coordinateSystemForgetsThePosition() {
+		apply("G0 X1 Y2 Z3");
+		assertTrue(s.positionKnown());
+		apply("G56");
+		assertEquals(56, s.wcs);
+		assertFalse(s.known[ModalState.X]);
+		assertFalse(s.known[ModalState.Z]);
+		apply("G59");
+		assertEquals(59, s.wcs);
+		// G59.1 and the like aren't a coordinate system we track
+		apply("G59.1");
+		assertEquals(59, s.wcs);
+	}
+
+	@Test
+	public void spindleAndCoolant() {
+		apply("M3 S12000");
+		assertEquals(3, s.spindle);
+		assertEquals(12000, s.speed, 0);
+		apply("M4");
+		assertEquals(4, s.spindle);
+		apply("M7");
+		apply("M8");
+		assertTrue(s.mist);
+		assertTrue(s.flood);
+		apply("M9");
+		assertFalse(s.mist);
+		assertFalse(s.flood);
+		apply("M8 M3");
+		apply("M2");
+		assertEquals(5, s.spindle);
+		assertFalse(s.flood);
+	}
+
+	@Test
+	public void followsAbsoluteAndIncrementalMoves() {
+		apply("G90 G1 X10 Y20 Z-1 F300");
+		assertEquals(10, s.pos[ModalState.X], 0);
+		assertEquals(-1, s.pos[ModalState.Z], 0);
+		assertEquals(300, s.feed, 0);
+		assertEquals(1, s.motion);
+		apply("G91 X1.5 Y-2");
+		assertFalse(s.absolute);
+		assertEquals(11.5, s.pos[ModalState.X], 1e-9);
+		assertEquals(18, s.pos[ModalState.Y], 1e-9);
+		apply("G2 X1 Y1 I1");
+		assertEquals(2, s.motion);
+		assertEquals(12.5, s.pos[ModalState.X], 1e-9);
+	}
+
+	@Test
+	public void homingAndOffsetsLoseThePosition() {
+		apply("G0 X1 Y2 Z3", "G28.2 X0");
+		assertFalse(s.known[ModalState.X]);
+		assertFalse(s.known[ModalState.Y]);
+		apply("G0 X1 Y2 Z3", "G92 X0");
+		assertFalse(s.positionKnown());
+		apply("G0 X1 Y2 Z3", "G53 G0 Z0");
+		assertFalse(s.known[ModalState.Z]);
+		assertTrue(s.known[ModalState.X]);
+	}
+
+	@Test
+	public void incrementalMovesFromAnUnknownPositionStayUnknown() {
+		apply("G91 G1 X1");
+		assertFalse(s.known[ModalState.X]);
+		apply("G90 X5");
+		assertTrue(s.known[ModalState.X]);
+		assertEquals(5, s.pos[ModalState.X], 0);
+	}
+
+	@Test
+	public void setCopiesEverything() {
+		ModalState c = new ModalState();
+
+		apply("G20 G91 G18 G55 M4 S100 M7 G1 X1 F20", "G90 X2 Y3 Z4");
+		c.set(s);
+		assertEquals(s.motion, c.motion);
+		assertEquals(s.absolute, c.absolute);
+		assertEquals(s.inches, c.inches);
+		assertEquals(s.plane, c.plane);
+		assertEquals(s.wcs, c.wcs);
+		assertEquals(s.spindle, c.spindle);
+		assertEquals(s.speed, c.speed, 0);
+		assertEquals(s.mist, c.mist);
+		assertEquals(s.feed, c.feed, 0);
+		assertTrue(c.positionKnown());
+		assertEquals(4, c.pos[ModalState.Z], 0);
+		c.reset();
+		assertFalse(c.positionKnown());
+		assertEquals(54, c.wcs);
+	}
+}
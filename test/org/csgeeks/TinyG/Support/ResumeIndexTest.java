@@ -0,0 +1,95 @@
+package org.csgeeks.TinyG.Support;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResumeIndexTest {
+	private static final String JOB[] = {
+		"G21 G90 G17",
+		"G54",
+		"M3 S12000",
+		"M8",
+		"G0 Z5",
+		"G0 X0 Y0",
+		"G1 Z-1 F300",
+		"G1 X10 Y5 F500",
+		"G1 X20 Y5",
+	};
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private ResumeIndex index(String lines[]) throws IOException {
+		File f = tmp.newFile();
+		FileOutputStream out = new FileOutputStream(f);
+		for (String l : lines)
+			out.write((l + "\r\n").getBytes());
+		out.close();
+		return ResumeIndex.build(GcodeFile.open(f, null));
+	}
+
+	@Test
+	public void fromTheStart() throws IOException {
+		assertEquals(Arrays.asList("G21 G17 G54 G94 G90", "M9"),
+				index(JOB).preamble(1));
+	}
+
+	// Up to the safe height, over, then down to the cut at the feed rate
+	@Test
+	public void plungesBackIntoTheCut() throws IOException {
+		assertEquals(Arrays.asList("G21 G17 G54 G94 G90", "M3 S12000", "M8",
+				"G0 Z5", "G0 X10 Y5", "G1 Z-1 F500", "G1"),
+				index(JOB).preamble(9));
+	}
+
+	@Test
+	public void alreadyAtTheSafeHeight() throws IOException {
+		assertEquals(Arrays.asList("G21 G17 G54 G94 G90", "M3 S12000", "M8",
+				"G0 Z5", "G0 X0 Y0", "G0"), index(JOB).preamble(7));
+	}
+
+	// The position is lost with the coordinate system, so there's nothing
+	// to move back to
+	@Test
+	public void inchesIncrementalUnknownPosition() throws IOException {
+		String job[] = { "G20 G91", "G55", "M4 S500", "M7", "G1 X1 F10", "X1" };
+
+		assertEquals(Arrays.asList("G20 G17 G55 G94 G90", "M4 S500", "M7",
+				"F10", "G1", "G91"), index(job).preamble(6));
+	}
+
+	// Far enough in that the state comes from a checkpoint plus a replay
+	@Test
+	public void checkpointsMatchAFullReplay() throws IOException {
+		String job[] = new String[1000];
+		job[0] = "G21 G90 G0 Z2";
+		for (int i = 1; i < job.length; i++)
+			job[i] = i % 100 == 0 ? "G1 Z" + (i / 100) + " F" + i : "G1 X" + i
+					+ " Y" + (i % 7);
+		ResumeIndex index = index(job);
+		GcodeParser p = new GcodeParser();
+
+		for (int line = 1; line <= job.length; line += 37) {
+			ModalState want = new ModalState();
+			for (int l = 0; l < line - 1; l++) {
+				byte b[] = job[l].getBytes();
+				want.apply(p, b, 0, b.length);
+			}
+			ModalState got = index.stateBefore(line);
+			assertEquals("line " + line, want.motion, got.motion);
+			assertEquals("line " + line, want.feed, got.feed, 0);
+			for (int a = 0; a < 3; a++) {
+				assertEquals("line " + line, want.known[a], got.known[a]);
+				assertEquals("line " + line, want.pos[a], got.pos[a], 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package org.csgeeks.TinyG.Support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Test;
+
+public class ToolpathCompactorTest {
+	private static final double TOL = 0.01;
+
+	private final List<String> lines = new ArrayList<String>();
+	private final List<Integer> numbers = new ArrayList<Integer>();
+
+	// Pushes the lines, numbered from 1, and collects what comes out
+	private void compact(ToolpathCompactor c, List<String> in) {
+		byte buf[] = new byte[256];
+		int n = 1;
+
+		for (String l : in) {
+			byte b[] = l.getBytes();
+			c.push(b, b.length, n++);
+			drain(c, buf);
+		}
+		c.finish();
+		drain(c, buf);
+	}
+
+	private void drain(ToolpathCompactor c, byte buf[]) {
+		while (c.hasOutput()) {
+			assertTrue(c.nextLength() <= buf.length);
+			int len = c.take(buf);
+			lines.add(new String(buf, 0, len));
+			numbers.add(c.lineNumber());
+		}
+	}
+
+	private static String g1(double x, double y) {
+		return String.format(Locale.US, "G1 X%.4f Y%.4f", x, y);
+	}
+
+	// n moves round a circle of radius r about (0, 0), counterclockwise
+	// from (r, 0) through angle
+	private static List<String> arc(double r, double angle, int n) {
+		List<String> l = new ArrayList<String>();
+
+		for (int i = 1; i <= n; i++) {
+			double a = angle * i / n;
+			l.add(g1(r * Math.cos(a), r * Math.sin(a)));
+		}
+		return l;
+	}
+
+	private static List<String> job(String setup, double x, double y,
+			List<String> moves) {
+		List<String> l = new ArrayList<String>();
+
+		l.add(setup);
+		l.add(String.format(Locale.US, "G0 X%.4f Y%.4f Z0", x, y));
+		l.addAll(moves);
+		return l;
+	}
+
+	private static double value(String line, char letter) {
+		int i = line.indexOf(letter);
+		int j = i + 1;
+
+		while (j < line.length() && "-.0123456789".indexOf(line.charAt(j)) >= 0)
+			j++;
+		return Double.parseDouble(line.substring(i + 1, j));
+	}
+
+	@Test
+	public void straightRunBecomesOneLine() {
+		List<String> moves = new ArrayList<String>();
+
+		for (int i = 1; i <= 10; i++)
+			moves.add(g1(i, i % 2 == 0 ? 0 : 0.004));
+		compact(new ToolpathCompactor(TOL), job("G21 G90", 0, 0, moves));
+		assertEquals(3, lines.size());
+		assertEquals("G1X10", lines.get(2));
+		assertEquals(12, (int) numbers.get(2));
+	}
+
+	@Test
+	public void toleranceBound() {
+		List<String> moves = new ArrayList<String>();
+
+		// Just inside: a bump of 0.0099 in the middle
+		moves.add(g1(1, 0));
+		moves.add(g1(2, 0.0099));
+		moves.add(g1(3, 0));
+		moves.add(g1(4, 0));
+		compact(new ToolpathCompactor(TOL), job("G21", 0, 0, moves));
+		assertEquals("G1X4", lines.get(2));
+		assertEquals(3, lines.size());
+
+		// Just outside: the bump has to stay
+		lines.clear();
+		moves.set(1, g1(2, 0.0101));
+		compact(new ToolpathCompactor(TOL), job("G21", 0, 0, moves));
+		assertTrue(lines.size() > 3);
+		boolean bump = false;
+		for (String l : lines)
+			bump |= l.contains("Y.0101") || l.contains("Y0.0101");
+		assertTrue(lines.toString(), bump);
+	}
+
+	@Test
+	public void toleranceInInches() {
+		List<String> moves = new ArrayList<String>();
+
+		// 0.0003" is 0.0076mm, 0.0005" is 0.0127mm
+		moves.add(g1(1, 0.0003));
+		moves.add(g1(2, 0));
+		compact(new ToolpathCompactor(TOL), job("G20", 0, 0, moves));
+		assertEquals("G1X2", lines.get(2));
+
+		lines.clear();
+		moves.set(0, g1(1, 0.0005));
+		compact(new ToolpathCompactor(TOL), job("G20", 0, 0, moves));
+		assertEquals(4, lines.size());
+	}
+
+	@Test
+	public void arcInXYPlane() {
+		List<String> moves = arc(10, Math.PI / 2, 20);
+
+		compact(new ToolpathCompactor(TOL), job("G17", 10, 0, moves));
+		assertEquals(3, lines.size());
+		String a = lines.get(2);
+		assertTrue(a, a.startsWith("G3"));
+		assertEquals(22, (int) numbers.get(2));
+		assertEquals(0, value(a, 'X'), 1e-4);
+		assertEquals(10, value(a, 'Y'), 1e-4);
+		// The center as an offset from the start
+		double i = value(a, 'I'), j = value(a, 'J');
+		assertEquals(-10, i, 1e-3);
+		assertEquals(0, j, 1e-3);
+		// Every original point is within tolerance of the arc
+		double r = Math.hypot(i, j);
+		for (String m : moves) {
+			double x = value(m, 'X') - (10 + i), y = value(m, 'Y') - j;
+			assertTrue(m, Math.abs(Math.hypot(x, y) - r) <= TOL);
+		}
+	}
+
+	@Test
+	public void clockwiseArc() {
+		List<String> moves = arc(10, -Math.PI / 2, 20);
+
+		compact(new ToolpathCompactor(TOL), job("G17", 10, 0, moves));
+		assertEquals(3, lines.size());
+		assertTrue(lines.get(2), lines.get(2).startsWith("G2"));
+	}
+
+	// The same points are not an arc TinyG would read the same way outside
+	// G17, or with absolute arc centers
+	@Test
+	public void noArcsOutsideG17() {
+		List<String> moves = arc(10, Math.PI / 2, 20);
+
+		for (String setup : new String[] { "G18", "G19", "G17 G90.1" }) {
+			lines.clear();
+			compact(new ToolpathCompactor(TOL), job(setup, 10, 0, moves));
+			for (String l : lines)
+				assertTrue(setup + ": " + l, !l.startsWith("G2")
+						&& !l.startsWith("G3"));
+			assertEquals(setup, 22, lines.size());
+		}
+	}
+
+	@Test
+	public void arcsAgainAfterG91_1() {
+		List<String> in = job("G17 G90.1", 10, 0, new ArrayList<String>());
+
+		in.add("G91.1");
+		in.addAll(arc(10, Math.PI / 2, 20));
+		compact(new ToolpathCompactor(TOL), in);
+		assertEquals(4, lines.size());
+		assertTrue(lines.get(3), lines.get(3).startsWith("G3"));
+	}
+
+	@Test
+	public void lineNumbersCarryThrough() {
+		List<String> in = new ArrayList<String>();
+
+		in.add("G21 G90");
+		in.add("G0 X0 Y0 Z0");
+		in.add("G1 X1 Y0 F500");
+		in.add("G1 X2 Y0");
+		in.add("M8");
+		in.add("G1 X2 Y1");
+		in.add("G1 X5 Y3");
+		in.add("G1 X5 Y5");
+		compact(new ToolpathCompactor(TOL), in);
+		assertEquals("[G21 G90, G0 X0 Y0 Z0, G1X2F500, M8, G1 X2 Y1, G1 X5 Y3, G1 X5 Y5]",
+				lines.toString());
+		assertEquals("[1, 2, 4, 5, 6, 7, 8]", numbers.toString());
+	}
+
+	@Test
+	public void nothingMergedWithoutTolerance() {
+		List<String> moves = arc(10, Math.PI / 2, 20);
+
+		compact(new ToolpathCompactor(0), job("G17", 10, 0, moves));
+		assertEquals(22, lines.size());
+		for (int i = 0; i < lines.size(); i++)
+			assertEquals(i + 1, (int) numbers.get(i));
+	}
+}